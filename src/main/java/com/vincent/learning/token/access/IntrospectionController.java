@@ -0,0 +1,39 @@
+package com.vincent.learning.token.access;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.exception.RestException;
+import com.vincent.learning.token.model.IntrospectionRequest;
+import com.vincent.learning.token.model.IntrospectionResponse;
+import com.vincent.learning.token.service.TokenIntrospector;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+/**
+ * RFC 7662 introspection of the access tokens issued by IAM, validated locally by {@link
+ * TokenIntrospector} instead of calling the introspection endpoint of IAM.
+ */
+@RestController
+@RequestMapping("/iam/openid-connect/v1")
+@Slf4j
+public class IntrospectionController {
+
+    @Autowired private TokenIntrospector tokenIntrospector;
+
+    @PostMapping(path = "/introspect", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Mono<IntrospectionResponse> introspect(IntrospectionRequest introspectionRequest) {
+        if (!StringUtils.hasText(introspectionRequest.getToken())) {
+            return Mono.error(
+                    new RestException(ErrorConstants.MISSING_MANDATORY, "token is missing"));
+        }
+        return tokenIntrospector.introspect(introspectionRequest.getToken());
+    }
+}
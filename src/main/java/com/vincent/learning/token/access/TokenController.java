@@ -1,42 +1,151 @@
 package com.vincent.learning.token.access;
 
-import static com.vincent.learning.token.util.EncodeUtil.decodeBase64;
+import static com.vincent.learning.token.util.EncodeUtil.decodeBase64Bytes;
 
 import com.vincent.learning.token.config.IamProperties;
 import com.vincent.learning.token.exception.ErrorConstants;
 import com.vincent.learning.token.exception.RestException;
+import com.vincent.learning.token.filter.AccessLogFilter;
 import com.vincent.learning.token.model.*;
 import com.vincent.learning.token.model.*;
+import com.vincent.learning.token.service.AuthEventJournal;
+import com.vincent.learning.token.service.CredentialHasher;
+import com.vincent.learning.token.service.DeadlineResolver;
+import com.vincent.learning.token.service.FailedExchangeCache;
+import com.vincent.learning.token.service.IamCallGuard;
+import com.vincent.learning.token.service.InFlightExchangeRegistry;
+import com.vincent.learning.token.service.IssuedTokenCache;
+import com.vincent.learning.token.service.RefreshTokenPrecheck;
+import com.vincent.learning.token.service.ServiceTokenCache;
+import com.vincent.learning.token.service.TokenForm;
+import com.vincent.learning.token.service.TokenJsonFilter;
+import com.vincent.learning.token.service.TokenMetrics;
+import com.vincent.learning.token.service.TokenRateLimiter;
 import com.vincent.learning.token.service.WebClientFactory;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.handler.ssl.SslHandshakeTimeoutException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
 @RestController
 @RequestMapping("/iam/openid-connect/v1")
 @Slf4j
 public class TokenController {
+    /** the status journaled when the client went away before the response, as nginx logs it. */
+    private static final int CLIENT_CLOSED = 499;
 
     @Autowired private WebClientFactory webClientFactory;
 
     @Autowired private IamProperties iamProperties;
 
+    @Autowired private InFlightExchangeRegistry inFlightExchangeRegistry;
+
+    @Autowired private CredentialHasher credentialHasher;
+
+    @Autowired private IssuedTokenCache issuedTokenCache;
+
+    @Autowired private DeadlineResolver deadlineResolver;
+
+    @Autowired private IamCallGuard iamCallGuard;
+
+    @Autowired private RefreshTokenPrecheck refreshTokenPrecheck;
+
+    @Autowired private ServiceTokenCache serviceTokenCache;
+
+    @Autowired private TokenRateLimiter tokenRateLimiter;
+
+    @Autowired private FailedExchangeCache failedExchangeCache;
+
+    @Autowired private TokenMetrics tokenMetrics;
+
+    @Autowired private TokenJsonFilter tokenJsonFilter;
+
+    @Autowired private AuthEventJournal authEventJournal;
+
     @PostMapping(path = "/token", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
-    @ResponseStatus(HttpStatus.OK)
-    public Mono<TokenResponse> exchangeToken(ExchangeTokenRequest tokenRequest) {
+    public Mono<ResponseEntity<Object>> exchangeToken(
+            ExchangeTokenRequest tokenRequest, ServerWebExchange exchange) {
+        Mono<ResponseEntity<Object>> response =
+                tokenMetrics.timeExchange(
+                        tokenRequest.getGrantType(), doExchangeToken(tokenRequest, exchange));
+        if (!authEventJournal.isEnabled()) {
+            return response;
+        }
+        return Mono.defer(
+                () -> {
+                    long start = System.nanoTime();
+                    return response.doOnSuccess(
+                                    result ->
+                                            journal(tokenRequest, exchange, status(result), start))
+                            .doOnError(e -> journal(tokenRequest, exchange, status(e), start))
+                            // once the cancel went upstream, so the upstream time is recorded
+                            .doFinally(
+                                    signal -> {
+                                        if (signal == SignalType.CANCEL) {
+                                            journal(tokenRequest, exchange, CLIENT_CLOSED, start);
+                                        }
+                                    });
+                });
+    }
+
+    /** the outcome of the exchange in the auth event journal, the user is hashed there. */
+    private void journal(
+            ExchangeTokenRequest tokenRequest, ServerWebExchange exchange, int status, long start) {
+        String grantType =
+                tokenRequest.getGrantType() == null
+                        ? null
+                        : tokenRequest.getGrantType().toLowerCase();
+        String user = null;
+        if (GrantType.PASSWORD.name().equalsIgnoreCase(grantType)) {
+            user = tokenRequest.getUsername();
+        } else if (GrantType.CLIENT_CREDENTIALS.name().equalsIgnoreCase(grantType)) {
+            user = tokenRequest.getClientId();
+        }
+        InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+        Long upstreamNanos = exchange.getAttribute(AccessLogFilter.UPSTREAM_NANOS_ATTRIBUTE);
+        authEventJournal.append(
+                grantType,
+                user,
+                remoteAddress == null ? null : remoteAddress.getAddress(),
+                status,
+                System.nanoTime() - start,
+                upstreamNanos == null ? -1 : upstreamNanos);
+    }
+
+    private static int status(ResponseEntity<?> result) {
+        // empty when IAM answered no body
+        return result == null ? HttpStatus.OK.value() : result.getStatusCode().value();
+    }
+
+    private static int status(Throwable e) {
+        return e instanceof RestException restException
+                ? restException.getStatus().value()
+                : HttpStatus.INTERNAL_SERVER_ERROR.value();
+    }
+
+    private Mono<ResponseEntity<Object>> doExchangeToken(
+            ExchangeTokenRequest tokenRequest, ServerWebExchange exchange) {
 
         if (log.isDebugEnabled()) {
             log.debug("receive the request {}", tokenRequest);
@@ -48,69 +157,215 @@ public class TokenController {
                     new RestException(validateError.getError(), validateError.getMessage()));
         }
 
-        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        Duration budget = deadlineResolver.resolve(exchange.getRequest().getHeaders());
+        if (budget.isNegative() || budget.isZero()) {
+            return Mono.error(
+                    new RestException(
+                            ErrorConstants.DEADLINE_EXCEEDED,
+                            "request deadline is already exceeded",
+                            HttpStatus.GATEWAY_TIMEOUT));
+        }
+
         String grantType = tokenRequest.getGrantType().toLowerCase();
-        if (GrantType.PASSWORD.name().toLowerCase().equals(grantType)) {
-            formData.add("grant_type", grantType);
-            formData.add("username", tokenRequest.getUsername());
+        exchange.getAttributes().put(AccessLogFilter.GRANT_TYPE_ATTRIBUTE, grantType);
+        boolean isPasswordGrant = GrantType.PASSWORD.name().toLowerCase().equals(grantType);
+        boolean isClientCredentialsGrant =
+                GrantType.CLIENT_CREDENTIALS.name().toLowerCase().equals(grantType);
+        TokenForm tokenForm = TokenForm.grant(grantType);
+        String exchangeKey;
+        if (isPasswordGrant) {
+            exchangeKey =
+                    credentialHasher.hash(
+                            grantType, tokenRequest.getUsername(), tokenRequest.getPassword());
+            byte[] password;
             try {
-                formData.add("password", decodeBase64(tokenRequest.getPassword()));
+                password = decodeBase64Bytes(tokenRequest.getPassword());
             } catch (Exception e) {
                 return Mono.error(
                         new RestException(
                                 ErrorConstants.PASSWORD_INVALID_FORMAT,
                                 "fail to decode password with base64"));
             }
-
-            formData.add("client_id", iamProperties.getClientId());
+            tokenForm
+                    .param("username", tokenRequest.getUsername())
+                    .secret("password", password)
+                    .constant("client_id", iamProperties.getClientId());
+        } else if (isClientCredentialsGrant) {
+            exchangeKey =
+                    credentialHasher.hash(
+                            grantType,
+                            tokenRequest.getClientId(),
+                            tokenRequest.getScope(),
+                            tokenRequest.getClientSecret());
+            tokenForm
+                    .param("client_id", tokenRequest.getClientId())
+                    .param("client_secret", tokenRequest.getClientSecret());
+            if (StringUtils.hasText(tokenRequest.getScope())) {
+                tokenForm.param("scope", tokenRequest.getScope());
+            }
         } else {
-            formData.add("grant_type", grantType);
-            formData.add("refresh_token", tokenRequest.getRefreshToken());
-            formData.add("client_id", iamProperties.getClientId());
+            ErrorResponse precheckError =
+                    refreshTokenPrecheck.check(tokenRequest.getRefreshToken());
+            if (Objects.nonNull(precheckError)) {
+                return Mono.error(
+                        new RestException(precheckError.getError(), precheckError.getMessage()));
+            }
+            exchangeKey = credentialHasher.hash(grantType, tokenRequest.getRefreshToken());
+            tokenForm
+                    .param("refresh_token", tokenRequest.getRefreshToken())
+                    .constant("client_id", iamProperties.getClientId());
         }
 
         if (log.isDebugEnabled()) {
-            log.debug("the request form data {}", formData);
+            log.debug("the request form data {}", tokenForm);
+        }
+
+        String user = isPasswordGrant ? tokenRequest.getUsername() : tokenRequest.getClientId();
+        String clientIp = clientIp(exchange);
+        Supplier<Mono<IamToken>> send =
+                () -> sendRateLimited(tokenForm, grantType, user, clientIp);
+        Supplier<Mono<IamToken>> upstream =
+                () ->
+                        failedExchangeCache.getOrLoad(
+                                exchangeKey,
+                                () -> inFlightExchangeRegistry.execute(exchangeKey, send));
+        Mono<IamToken> iamTokenMono;
+        if (isPasswordGrant) {
+            // cleared now when the form is not sent, e.g. a coalesced call, else when it is sent
+            iamTokenMono = Mono.defer(upstream).doFinally(signal -> tokenForm.release());
+        } else if (isClientCredentialsGrant) {
+            iamTokenMono = serviceTokenCache.getOrLoad(exchangeKey, upstream);
+        } else {
+            iamTokenMono = issuedTokenCache.getOrLoad(exchangeKey, upstream);
+        }
+        long upstreamStart = System.nanoTime();
+        Runnable recordUpstream =
+                () ->
+                        exchange.getAttributes()
+                                .put(
+                                        AccessLogFilter.UPSTREAM_NANOS_ATTRIBUTE,
+                                        System.nanoTime() - upstreamStart);
+
+        return iamTokenMono
+                // before the token goes downstream, so the completion of the exchange sees it
+                .doOnTerminate(recordUpstream)
+                // the budget timed out or the client went away
+                .doOnCancel(recordUpstream)
+                .timeout(budget)
+                .onErrorMap(
+                        TokenController::isTimeout,
+                        e ->
+                                new RestException(
+                                        ErrorConstants.DEADLINE_EXCEEDED,
+                                        "no response from iam within the request deadline",
+                                        HttpStatus.GATEWAY_TIMEOUT))
+                .map(iamToken -> toResponse(iamToken, exchange));
+    }
+
+    private static ResponseEntity<Object> toResponse(
+            IamToken iamToken, ServerWebExchange exchange) {
+        byte[] body = iamToken.getPassThroughBody();
+        if (body != null) {
+            // the token may be shared by coalesced calls and the cache, every response wraps it
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(exchange.getResponse().bufferFactory().wrap(body));
         }
+        return ResponseEntity.ok(
+                new TokenResponse(
+                        iamToken.getAccessToken(),
+                        iamToken.getTokenType(),
+                        iamToken.getExpiresIn(),
+                        iamToken.getRefreshToken()));
+    }
 
-        return webClientFactory
-                .getWebClient()
-                .post()
-                .uri("/token")
-                .body(BodyInserters.fromFormData(formData))
-                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_FORM_URLENCODED_VALUE)
-                .retrieve()
-                .onStatus(
-                        HttpStatusCode::isError,
-                        errorResponse ->
-                                errorResponse
-                                        .bodyToMono(ErrorResponse.class)
-                                        .flatMap(
-                                                error -> {
-                                                    if (log.isDebugEnabled()) {
-                                                        log.debug(
-                                                                "error {}, response {}",
-                                                                error,
-                                                                errorResponse.statusCode());
-                                                    }
-                                                    return Mono.error(
-                                                            new RestException(
-                                                                    error.getError(),
-                                                                    error.getMessage(),
-                                                                    errorResponse.statusCode()));
-                                                }))
-                .bodyToMono(IamToken.class)
+    private static String clientIp(ServerWebExchange exchange) {
+        InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+        if (remoteAddress == null || remoteAddress.getAddress() == null) {
+            return null;
+        }
+        return remoteAddress.getAddress().getHostAddress();
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        if (e instanceof TimeoutException) {
+            return true;
+        }
+        Throwable cause = e instanceof WebClientRequestException ? e.getCause() : null;
+        return cause instanceof io.netty.handler.timeout.TimeoutException
+                || cause instanceof ConnectTimeoutException
+                || cause instanceof SslHandshakeTimeoutException;
+    }
+
+    /**
+     * Send the form once the rate limit accepts it. Only the leader of the coalesced calls gets
+     * here, so the answers of the token caches, the replayed failures and the coalesced calls
+     * cost no quota.
+     */
+    private Mono<IamToken> sendRateLimited(
+            TokenForm tokenForm, String grantType, String user, String clientIp) {
+        Duration retryAfter = tokenRateLimiter.acquire(grantType, user, clientIp);
+        if (retryAfter != null) {
+            return Mono.error(
+                    new RestException(
+                            ErrorConstants.TOO_MANY_REQUESTS,
+                            "too many token requests, retry later",
+                            HttpStatus.TOO_MANY_REQUESTS,
+                            retryAfter));
+        }
+        return tokenForm.send(() -> requestToken(tokenForm));
+    }
+
+    /**
+     * The IAM call may be shared by coalesced callers and the background refresh of the service
+     * token cache, so it only has the configured response timeout, the budget of each caller is
+     * enforced downstream of it.
+     */
+    private Mono<IamToken> requestToken(TokenForm tokenForm) {
+        return iamCallGuard.protect(
+                tokenMetrics.timeUpstream(tokenForm.getGrantType(), sendTokenRequest(tokenForm)));
+    }
+
+    private Mono<IamToken> sendTokenRequest(TokenForm tokenForm) {
+        WebClient.ResponseSpec responseSpec =
+                webClientFactory
+                        .getWebClient()
+                        .post()
+                        .uri("/token")
+                        .body(tokenForm)
+                        .header(
+                                HttpHeaders.CONTENT_TYPE,
+                                MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+                        .retrieve()
+                        .onStatus(HttpStatusCode::isError, TokenController::toRestException);
+        // the service token cache rewrites expires_in, a client_credentials token is mapped
+        if (tokenJsonFilter.isEnabled()
+                && !GrantType.CLIENT_CREDENTIALS
+                        .name()
+                        .equalsIgnoreCase(tokenForm.getGrantType())) {
+            return tokenJsonFilter.filter(responseSpec.bodyToFlux(DataBuffer.class));
+        }
+        return responseSpec.bodyToMono(IamToken.class);
+    }
+
+    private static Mono<Throwable> toRestException(ClientResponse errorResponse) {
+        return errorResponse
+                .bodyToMono(ErrorResponse.class)
                 .flatMap(
-                        iamToken ->
-                                Mono.just(
-                                        new TokenResponse(
-                                                iamToken.getAccessToken(),
-                                                iamToken.getTokenType(),
-                                                iamToken.getExpiresIn(),
-                                                iamToken.getRefreshToken())));
+                        error -> {
+                            if (log.isDebugEnabled()) {
+                                log.debug(
+                                        "error {}, response {}", error, errorResponse.statusCode());
+                            }
+                            return Mono.error(
+                                    new RestException(
+                                            error.getError(),
+                                            error.getMessage(),
+                                            errorResponse.statusCode()));
+                        });
     }
 
-    private ErrorResponse validate(ExchangeTokenRequest tokenRequest) {
+    static ErrorResponse validate(ExchangeTokenRequest tokenRequest) {
         if (GrantType.PASSWORD.name().equalsIgnoreCase(tokenRequest.getGrantType())) {
             if (!StringUtils.hasText(tokenRequest.getUsername())) {
                 return new ErrorResponse(ErrorConstants.MISSING_MANDATORY, "username is missing");
@@ -123,6 +378,16 @@ public class TokenController {
                 return new ErrorResponse(
                         ErrorConstants.MISSING_MANDATORY, "refresh_token is missing");
             }
+        } else if (GrantType.CLIENT_CREDENTIALS
+                .name()
+                .equalsIgnoreCase(tokenRequest.getGrantType())) {
+            if (!StringUtils.hasText(tokenRequest.getClientId())) {
+                return new ErrorResponse(ErrorConstants.MISSING_MANDATORY, "client_id is missing");
+            }
+            if (!StringUtils.hasText(tokenRequest.getClientSecret())) {
+                return new ErrorResponse(
+                        ErrorConstants.MISSING_MANDATORY, "client_secret is missing");
+            }
         } else {
             return new ErrorResponse(ErrorConstants.INVALID_GRANT_TYPE, "grant type is invalid");
         }
@@ -1,78 +1,192 @@
 package com.vincent.learning.token.config;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import lombok.Data;
+import java.util.function.Supplier;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
+/**
+ * Watch the certificate files of the IAM client and run the callback when their content changes.
+ *
+ * <p>Only the directories of the files are watched, not recursively. The watcher thread blocks on
+ * the watch service, a burst of events (e.g. the ..data symlink swap of a kubernetes secret
+ * mount) is debounced until the directory is quiet, then the files are digested until two
+ * digests a debounce apart agree, so a file still being written is not applied half way. The
+ * callback only runs when the material really changed, the watcher waits for it to complete
+ * before it looks at the next events, so the rotations are applied in order.
+ */
 @Service
-@Data
 @Slf4j
 public class CertificationMonitor {
 
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private int checkIntervalMillis = 1000;
-    private File monitorPath;
+    @Value("${iam.client.cert-monitor.debounce:500ms}")
+    private Duration debounce = Duration.ofMillis(500);
 
-    public void startMonitor(Runnable callback) {
-        if (!monitorPath.isFile()) {
+    @Setter private List<File> monitorFiles = List.of();
+
+    private final Timer rotationTimer;
+    private final Counter unchangedCounter;
+    private volatile boolean running;
+    private WatchService watcher;
+    private Thread watcherThread;
+
+    public CertificationMonitor(MeterRegistry meterRegistry) {
+        this.rotationTimer =
+                Timer.builder("iam.tls.rotation.latency")
+                        .description("time from the first file event to the swapped material")
+                        .register(meterRegistry);
+        this.unchangedCounter =
+                Counter.builder("iam.tls.rotation.unchanged")
+                        .description("file event bursts which did not change the material")
+                        .register(meterRegistry);
+    }
+
+    /** @param callback apply the changed material, it completes once the material is swapped */
+    public synchronized void startMonitor(Supplier<Mono<?>> callback) {
+        List<Path> files =
+                monitorFiles.stream().filter(File::isFile).map(File::toPath).toList();
+        if (files.isEmpty()) {
             log.info("As monitor path is not file, certification monitor will not start.");
             return;
         }
 
         try {
-            WatchService watcher = FileSystems.getDefault().newWatchService();
-            Path lcPath = monitorPath.getParentFile().toPath();
-            List<WatchKey> keys = new ArrayList<>();
-            registerRecursive(lcPath, watcher, keys);
-            this.scheduler.scheduleAtFixedRate(
-                    () -> {
-                        AtomicBoolean isChange = new AtomicBoolean(false);
-                        keys.forEach(
-                                key -> {
-                                    if (!key.pollEvents().isEmpty()) {
-                                        isChange.set(true);
-                                    }
-                                });
-                        if (isChange.get()) {
-                            log.info("Certification is changed");
-                            callback.run();
-                        }
-                    },
-                    this.checkIntervalMillis,
-                    this.checkIntervalMillis,
-                    TimeUnit.MILLISECONDS);
-
-            log.info("Certification monitor is start");
+            Map<Path, String> digests = digest(files);
+            if (digests == null) {
+                log.error("Cannot read certification, failed to start certification monitor.");
+                return;
+            }
+            watcher = FileSystems.getDefault().newWatchService();
+            Set<Path> directories = new HashSet<>();
+            for (Path file : files) {
+                Path directory = file.toAbsolutePath().getParent();
+                if (directories.add(directory)) {
+                    directory.register(
+                            watcher,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+
+            running = true;
+            watcherThread = new Thread(() -> watch(files, digests, callback));
+            watcherThread.setName("certification-monitor");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+            log.info("Certification monitor is start, watching {}", directories);
         } catch (IOException ex) {
             log.error("Cannot monitor target path, failed to start certification monitor.", ex);
         }
     }
 
-    private void registerRecursive(final Path root, WatchService watcher, List<WatchKey> keys)
-            throws IOException {
-        Files.walkFileTree(
-                root,
-                new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                            throws IOException {
-                        keys.add(
-                                dir.register(
-                                        watcher,
-                                        StandardWatchEventKinds.ENTRY_CREATE,
-                                        StandardWatchEventKinds.ENTRY_MODIFY));
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
+    @PreDestroy
+    public synchronized void stopMonitor() {
+        running = false;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.debug("fail to close the watch service", e);
+            }
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+    }
+
+    private void watch(
+            List<Path> files, Map<Path, String> digests, Supplier<Mono<?>> callback) {
+        try {
+            while (running) {
+                drain(watcher.take());
+                long firstEvent = System.nanoTime();
+
+                Map<Path, String> current = settledDigest(files);
+                if (current == null) {
+                    // in the middle of a rotation, the next event will bring the rest
+                    continue;
+                }
+                if (current.equals(digests)) {
+                    unchangedCounter.increment();
+                    log.debug("Certification files are touched, but the content is not changed");
+                    continue;
+                }
+
+                digests = current;
+                log.info("Certification is changed");
+                try {
+                    callback.get().block();
+                    rotationTimer.record(System.nanoTime() - firstEvent, TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    log.error("fail to apply the changed certification", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+        log.info("Certification monitor is stopped");
+    }
+
+    private static void drain(WatchKey key) {
+        key.pollEvents();
+        if (!key.reset()) {
+            log.warn("Certification directory {} is no longer watchable", key.watchable());
+        }
+    }
+
+    /**
+     * Wait until the directories are quiet for a debounce, then digest the files until two digests
+     * a debounce apart agree, a write in progress does not always raise another event in between.
+     *
+     * @return the settled digests, or null when one of the files cannot be read
+     */
+    private Map<Path, String> settledDigest(List<Path> files) throws InterruptedException {
+        Map<Path, String> previous = null;
+        while (true) {
+            WatchKey key;
+            while ((key = watcher.poll(debounce.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                drain(key);
+            }
+            Map<Path, String> current = digest(files);
+            if (current == null || current.equals(previous)) {
+                return current;
+            }
+            previous = current;
+        }
+    }
+
+    /** @return the sha-256 of every file, or null when one of them cannot be read. */
+    private static Map<Path, String> digest(List<Path> files) {
+        Map<Path, String> digests = new HashMap<>();
+        try {
+            for (Path file : files) {
+                byte[] content = Files.readAllBytes(file);
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+                digests.put(file, HexFormat.of().formatHex(hash));
+            }
+        } catch (IOException e) {
+            log.debug("fail to read certification: {}", e.getMessage());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return digests;
     }
 }
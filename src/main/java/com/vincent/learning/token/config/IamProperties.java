@@ -1,9 +1,12 @@
 package com.vincent.learning.token.config;
 
+import java.util.ArrayList;
+import java.util.List;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
 @Component
 @ConfigurationProperties(prefix = "iam")
@@ -13,8 +16,15 @@ public class IamProperties {
     private String tlsEnable;
     private String host;
     private int port;
+    /** host:port of every IAM node, the traffic is balanced among them. empty uses host/port. */
+    private List<String> endpoints = new ArrayList<>();
     private String clientId;
     private String clientCert;
     private String clientTrustCa;
     private String rootPath;
+
+    /** tls is on unless tls-enable is set to anything but enabled. */
+    public boolean isTlsEnabled() {
+        return !StringUtils.hasText(tlsEnable) || tlsEnable.equalsIgnoreCase("enabled");
+    }
 }
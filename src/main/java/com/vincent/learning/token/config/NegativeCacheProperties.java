@@ -0,0 +1,21 @@
+package com.vincent.learning.token.config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "iam.token.negative-cache")
+@Setter
+@Getter
+public class NegativeCacheProperties {
+    private boolean enabled = false;
+    private long maxEntries = 100_000;
+    /** how long an IAM error is replayed, by error code, the codes not listed are never cached. */
+    private Map<String, Duration> ttl =
+            new HashMap<>(Map.of("invalid_grant", Duration.ofSeconds(30)));
+}
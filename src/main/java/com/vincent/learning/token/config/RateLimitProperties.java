@@ -0,0 +1,40 @@
+package com.vincent.learning.token.config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "iam.rate-limit")
+@Setter
+@Getter
+public class RateLimitProperties {
+    private boolean enabled = false;
+    /** the keys tracked per grant type and dimension, the idle ones are evicted first. */
+    private long maxKeys = 100_000;
+    /** by lower case grant type, e.g. password, refresh_token, client_credentials. */
+    private Map<String, GrantLimits> grants = new HashMap<>();
+
+    @Setter
+    @Getter
+    public static class GrantLimits {
+        /** by username, or client_id for client_credentials. */
+        private Limit user;
+        /** by client ip. */
+        private Limit ip;
+    }
+
+    @Setter
+    @Getter
+    public static class Limit {
+        /** the sustained requests per period. */
+        private int limit;
+        private Duration period = Duration.ofMinutes(1);
+        /** the requests accepted at once, at least 1. */
+        private int burst = 1;
+    }
+}
@@ -5,4 +5,8 @@ public class ErrorConstants { // NOSONAR
     public static final String MISSING_MANDATORY = "missing_mandatory_field";
     public static final String PASSWORD_INVALID_FORMAT = "invalid_password";
     public static final String INTERNAL_ERROR = "internal_error";
+    public static final String DEADLINE_EXCEEDED = "deadline_exceeded";
+    public static final String INVALID_GRANT = "invalid_grant";
+    public static final String TOO_MANY_REQUESTS = "too_many_requests";
+    public static final String IAM_UNAVAILABLE = "iam_unavailable";
 }
@@ -2,6 +2,7 @@ package com.vincent.learning.token.exception;
 
 import static com.vincent.learning.token.exception.ErrorConstants.INTERNAL_ERROR;
 
+import com.vincent.learning.token.filter.AccessLogFilter;
 import com.vincent.learning.token.model.ErrorResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.*;
@@ -11,6 +12,7 @@ import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.server.ServerWebExchange;
 
 @Slf4j
 @RestControllerAdvice(basePackages = "com.vincent.learning.token")
@@ -26,21 +28,32 @@ public class GlobalExceptionHandler {
 
     @ResponseBody
     @ExceptionHandler(value = RestException.class)
-    public ResponseEntity<ErrorResponse> restExceptionHandler(RestException e) {
+    public ResponseEntity<ErrorResponse> restExceptionHandler(
+            RestException e, ServerWebExchange exchange) {
         log.debug(
                 "rest exception info is {}, {}, {}",
                 e.getError(),
                 e.getErrorMessage(),
                 e.getStackTrace());
+        exchange.getAttributes().put(AccessLogFilter.ERROR_ATTRIBUTE, e.getError());
         HttpStatusCode httpStatus = e.getStatus();
         ErrorResponse error = new ErrorResponse(e.getError(), e.getErrorMessage());
+        if (e.getRetryAfter() != null) {
+            HttpHeaders headers = new HttpHeaders(new LinkedMultiValueMap<>(PROBLEM_DETAIL_HEADER));
+            // Retry-After is in whole seconds, round up so the client never retries too early
+            long seconds = Math.max(1, (e.getRetryAfter().toMillis() + 999) / 1000);
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(seconds));
+            return new ResponseEntity<>(error, headers, httpStatus);
+        }
         return new ResponseEntity<>(error, PROBLEM_DETAIL_HEADER, httpStatus);
     }
 
     @ResponseBody
     @ExceptionHandler(value = Exception.class)
-    public ResponseEntity<ErrorResponse> internalExceptionHandler(Exception e) {
+    public ResponseEntity<ErrorResponse> internalExceptionHandler(
+            Exception e, ServerWebExchange exchange) {
         log.error("The exception detail:", e);
+        exchange.getAttributes().put(AccessLogFilter.ERROR_ATTRIBUTE, INTERNAL_ERROR);
         ErrorResponse error = new ErrorResponse(INTERNAL_ERROR, null);
         return new ResponseEntity<>(error, PROBLEM_DETAIL_HEADER, HttpStatus.INTERNAL_SERVER_ERROR);
     }
@@ -1,5 +1,6 @@
 package com.vincent.learning.token.exception;
 
+import java.time.Duration;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.http.HttpStatus;
@@ -11,12 +12,20 @@ public class RestException extends RuntimeException {
     private final String error;
     private final String errorMessage;
     private final HttpStatusCode status;
+    /** when the client may retry, it is sent as the Retry-After header. */
+    private final Duration retryAfter;
 
-    public RestException(String error, String errorMessage, HttpStatusCode status) {
+    public RestException(
+            String error, String errorMessage, HttpStatusCode status, Duration retryAfter) {
         super(error);
         this.error = error;
         this.errorMessage = errorMessage;
         this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public RestException(String error, String errorMessage, HttpStatusCode status) {
+        this(error, errorMessage, status, null);
     }
 
     public RestException(String error, String errorMessage) {
@@ -0,0 +1,119 @@
+package com.vincent.learning.token.filter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Log one structured record per exchange, written as a JSON line by the {@link AccessLogWriter}
+ * thread, to the standard output or to the file of api.access-log.async.file.
+ *
+ * <p>The handlers add what only they know as exchange attributes: the grant type, the time spent
+ * waiting for the IAM token and the error code of the response.
+ */
+@Component
+@ConditionalOnProperty(name = "api.access-log.async.enabled", havingValue = "true")
+@Slf4j
+public class AccessLogFilter implements WebFilter {
+
+    public static final String GRANT_TYPE_ATTRIBUTE =
+            AccessLogFilter.class.getName() + ".grantType";
+    public static final String UPSTREAM_NANOS_ATTRIBUTE =
+            AccessLogFilter.class.getName() + ".upstreamNanos";
+    public static final String ERROR_ATTRIBUTE = AccessLogFilter.class.getName() + ".error";
+
+    private final AccessLogWriter writer;
+
+    public AccessLogFilter(
+            @Value("${api.access-log.async.capacity:8192}") int capacity,
+            @Value("${api.access-log.async.batch-size:256}") int batchSize,
+            @Value("${api.access-log.async.when-full:drop}") String whenFull,
+            @Value("${api.access-log.async.file:}") String file,
+            MeterRegistry meterRegistry)
+            throws IOException {
+        OutputStream out;
+        if (StringUtils.hasText(file)) {
+            out =
+                    Files.newOutputStream(
+                            Path.of(file), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } else {
+            out = new FileOutputStream(FileDescriptor.out);
+        }
+        this.writer =
+                new AccessLogWriter(
+                        capacity,
+                        batchSize,
+                        AccessLogWriter.WhenFull.of(whenFull),
+                        out,
+                        StringUtils.hasText(file),
+                        meterRegistry);
+        writer.start();
+        log.info(
+                "access log is written to {}, {} records at most, {} when full",
+                StringUtils.hasText(file) ? file : "stdout",
+                capacity,
+                whenFull);
+    }
+
+    @PreDestroy
+    public void stop() {
+        writer.stop();
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        long start = System.nanoTime();
+        return chain.filter(exchange)
+                .doFinally(signalType -> append(exchange, System.nanoTime() - start, signalType));
+    }
+
+    private void append(ServerWebExchange exchange, long elapsed, SignalType signalType) {
+        long sequence = writer.claim();
+        if (sequence < 0) {
+            return;
+        }
+        AccessLogRecord record = writer.get(sequence);
+        try {
+            ServerHttpRequest request = exchange.getRequest();
+            ServerHttpResponse response = exchange.getResponse();
+            record.timestamp = System.currentTimeMillis();
+            record.method = request.getMethod().name();
+            record.path = request.getPath().value();
+            HttpStatusCode status = response.getStatusCode();
+            record.status = status == null ? 0 : status.value();
+            record.grantType = exchange.getAttribute(GRANT_TYPE_ATTRIBUTE);
+            record.durationNanos = elapsed;
+            Long upstreamNanos = exchange.getAttribute(UPSTREAM_NANOS_ATTRIBUTE);
+            if (upstreamNanos != null) {
+                record.upstreamNanos = upstreamNanos;
+            }
+            // -1 when there is no Content-Length, e.g. a chunked body
+            record.bytesIn = request.getHeaders().getContentLength();
+            record.bytesOut = response.getHeaders().getContentLength();
+            String error = exchange.getAttribute(ERROR_ATTRIBUTE);
+            record.error = error == null && signalType == SignalType.CANCEL ? "cancelled" : error;
+        } finally {
+            // a slot claimed is always published, else the writer stops at it
+            writer.publish(sequence);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.vincent.learning.token.filter;
+
+/**
+ * One exchange of the access log, a preallocated slot of the ring filled in place on the event
+ * loop. The strings are references to the ones the exchange already holds, nothing is formatted
+ * before the writer thread encodes it.
+ */
+final class AccessLogRecord {
+    static final long NONE = -1;
+
+    long timestamp;
+    String method;
+    String path;
+    int status;
+    String grantType;
+    long durationNanos;
+    long upstreamNanos = NONE;
+    long bytesIn = NONE;
+    long bytesOut = NONE;
+    String error;
+
+    /** drop the references once encoded, the slot must not keep the exchange strings alive. */
+    void clear() {
+        method = null;
+        path = null;
+        grantType = null;
+        error = null;
+        status = 0;
+        upstreamNanos = NONE;
+        bytesIn = NONE;
+        bytesOut = NONE;
+    }
+}
@@ -0,0 +1,271 @@
+package com.vincent.learning.token.filter;
+
+import com.vincent.learning.token.util.MpscRingBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write the access log records as JSON lines, one per exchange, from a thread of its own. The
+ * event loop only fills a preallocated slot of the ring, the writer thread encodes the published
+ * records into one buffer and writes a batch at a time.
+ *
+ * <p>When the ring is full a record is dropped, or with the block policy the producer waits for a
+ * free slot, which stalls the event loop as long as the writer lags; a lossless log is paid with
+ * latency. The dropped records are counted by api.access.log.dropped.
+ */
+@Slf4j
+final class AccessLogWriter {
+
+    enum WhenFull {
+        DROP,
+        BLOCK;
+
+        static WhenFull of(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final MpscRingBuffer<AccessLogRecord> ring;
+    private final int batchSize;
+    private final WhenFull whenFull;
+    private final OutputStream out;
+    private final boolean closeOut;
+    private final Counter writtenCounter;
+    private final Counter ringFullCounter;
+    private final Counter writeFailedCounter;
+    private final Consumer<AccessLogRecord> encoder = this::encode;
+    private final Thread thread;
+    private volatile boolean running;
+
+    // the writer thread only
+    private byte[] buffer = new byte[16 * 1024];
+    private int length;
+    private final byte[] digits = new byte[20];
+    private boolean failing;
+
+    /**
+     * @param capacity the slots of the ring, a power of two
+     * @param out the stream of the JSON lines
+     * @param closeOut whether the stream is closed by {@link #stop()}, not the standard output
+     */
+    AccessLogWriter(
+            int capacity,
+            int batchSize,
+            WhenFull whenFull,
+            OutputStream out,
+            boolean closeOut,
+            MeterRegistry meterRegistry) {
+        this.ring = new MpscRingBuffer<>(capacity, AccessLogRecord::new);
+        this.batchSize = batchSize;
+        this.whenFull = whenFull;
+        this.out = out;
+        this.closeOut = closeOut;
+        this.writtenCounter =
+                Counter.builder("api.access.log.written")
+                        .description("access log records written")
+                        .register(meterRegistry);
+        this.ringFullCounter =
+                Counter.builder("api.access.log.dropped")
+                        .description("access log records dropped")
+                        .tag("reason", "ring_full")
+                        .register(meterRegistry);
+        this.writeFailedCounter =
+                Counter.builder("api.access.log.dropped")
+                        .description("access log records dropped")
+                        .tag("reason", "write_failed")
+                        .register(meterRegistry);
+        Gauge.builder("api.access.log.pending", ring, MpscRingBuffer::size)
+                .description("access log records waiting for the writer")
+                .register(meterRegistry);
+        this.thread = new Thread(this::run, "access-log-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /** write what is left in the ring and stop the writer thread. */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeOut) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.debug("fail to close the access log", e);
+            }
+        }
+    }
+
+    /**
+     * Claim the slot of a record, the caller fills {@link #get(long)} and must publish it.
+     *
+     * @return the sequence of the slot, or -1 when the record is dropped
+     */
+    long claim() {
+        long sequence = ring.tryClaim();
+        while (sequence < 0 && whenFull == WhenFull.BLOCK && running) {
+            LockSupport.parkNanos(BLOCK_NANOS);
+            sequence = ring.tryClaim();
+        }
+        if (sequence < 0) {
+            ringFullCounter.increment();
+        }
+        return sequence;
+    }
+
+    AccessLogRecord get(long sequence) {
+        return ring.get(sequence);
+    }
+
+    void publish(long sequence) {
+        ring.publish(sequence);
+    }
+
+    private void run() {
+        while (running) {
+            if (writeBatch() == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        while (writeBatch() > 0) {
+            // the records published before the stop
+        }
+    }
+
+    private int writeBatch() {
+        int count = ring.drain(encoder, batchSize);
+        if (count == 0) {
+            return 0;
+        }
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+            writtenCounter.increment(count);
+            failing = false;
+        } catch (IOException e) {
+            writeFailedCounter.increment(count);
+            if (!failing) {
+                log.warn("fail to write the access log: {}", e.getMessage());
+                failing = true;
+            }
+        } finally {
+            length = 0;
+        }
+        return count;
+    }
+
+    private void encode(AccessLogRecord record) {
+        try {
+            ascii("{\"@timestamp\":\"");
+            ascii(Instant.ofEpochMilli(record.timestamp).toString());
+            ascii("\"");
+            string(",\"method\":", record.method);
+            string(",\"path\":", record.path);
+            if (record.status > 0) {
+                number(",\"status\":", record.status);
+            }
+            string(",\"grant_type\":", record.grantType);
+            number(",\"duration_us\":", TimeUnit.NANOSECONDS.toMicros(record.durationNanos));
+            if (record.upstreamNanos != AccessLogRecord.NONE) {
+                number(",\"upstream_us\":", TimeUnit.NANOSECONDS.toMicros(record.upstreamNanos));
+            }
+            if (record.bytesIn != AccessLogRecord.NONE) {
+                number(",\"bytes_in\":", record.bytesIn);
+            }
+            if (record.bytesOut != AccessLogRecord.NONE) {
+                number(",\"bytes_out\":", record.bytesOut);
+            }
+            string(",\"error\":", record.error);
+            ascii("}\n");
+        } finally {
+            record.clear();
+        }
+    }
+
+    private void string(String name, String value) {
+        if (value == null) {
+            return;
+        }
+        ascii(name);
+        write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+                write(c);
+            } else if (c < 0x20) {
+                ascii(String.format("\\u%04x", (int) c));
+            } else if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                write(0xf0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3f));
+                write(0x80 | ((codePoint >> 6) & 0x3f));
+                write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+        write('"');
+    }
+
+    private void number(String name, long value) {
+        ascii(name);
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (position < digits.length) {
+            write(digits[position++]);
+        }
+    }
+
+    private void ascii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            write(value.charAt(i));
+        }
+    }
+
+    private void write(int b) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = (byte) b;
+    }
+}
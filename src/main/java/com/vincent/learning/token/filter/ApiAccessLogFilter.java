@@ -1,29 +1,94 @@
 package com.vincent.learning.token.filter;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilter;
 import org.springframework.web.server.WebFilterChain;
 import reactor.core.publisher.Mono;
 
+/**
+ * Add the security headers, and log the requests and responses at debug level. The exchange is
+ * only decorated while the debug log of LoggingRequestDecorator or LoggingResponseDecorator is on,
+ * the level is checked per request so it can be changed at runtime.
+ *
+ * <p>With the tail sampling, the bodies of every exchange are captured and the ones selected by
+ * the {@link TailSampler} are logged at info level once the exchange is over, the others are
+ * released.
+ */
 @Component
+@Slf4j
 public class ApiAccessLogFilter implements WebFilter {
+
+    private final int maxBodySize;
+    private final SecretRedactor redactor;
+    private final TailSampler sampler;
+
+    public ApiAccessLogFilter(
+            @Value("${api.access-log.body.max-size:4KB}") DataSize maxBodySize,
+            @Value(
+                            "${api.access-log.body.redact:"
+                                    + "password,client_secret,access_token,refresh_token,token}")
+                    List<String> secrets,
+            @Value("${api.access-log.sampling.enabled:false}") boolean samplingEnabled,
+            @Value("${api.access-log.sampling.slow-threshold:1s}") Duration slowThreshold,
+            @Value("${api.access-log.sampling.min-error-status:500}") int minErrorStatus,
+            @Value("${api.access-log.sampling.rate:0}") double sampleRate) {
+        this.maxBodySize = (int) maxBodySize.toBytes();
+        this.redactor = new SecretRedactor(secrets);
+        this.sampler =
+                samplingEnabled ? new TailSampler(slowThreshold, minErrorStatus, sampleRate) : null;
+    }
+
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
-        LoggingWebExchange loggingWebExchange = new LoggingWebExchange(exchange);
-        HttpHeaders headers = loggingWebExchange.getResponse().getHeaders();
+        HttpHeaders headers = exchange.getResponse().getHeaders();
         headers.add("Cross-Origin-Resource-Policy", "same-origin");
         headers.add("Content-Security-Policy", "default-src 'self'");
         headers.add("X-Content-Type-Options", "nosniff");
         headers.add("X-XSS-Protection", "1");
         headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
         headers.add("Pragma", "no-cache");
+        if (sampler == null && !LoggingWebExchange.isEnabled()) {
+            return chain.filter(exchange);
+        }
+        LoggingWebExchange loggingWebExchange =
+                new LoggingWebExchange(exchange, maxBodySize, redactor, sampler != null);
+        if (sampler == null) {
+            return chain.filter(loggingWebExchange)
+                    .doFinally(signalType -> loggingWebExchange.log());
+        }
+
+        long start = System.nanoTime();
         return chain.filter(loggingWebExchange)
                 .doFinally(
                         signalType -> {
-                            loggingWebExchange.getRequest().logRequest();
-                            loggingWebExchange.getResponse().logResponse();
+                            long elapsed = System.nanoTime() - start;
+                            String reason =
+                                    sampler.select(
+                                            elapsed,
+                                            exchange.getResponse().getStatusCode(),
+                                            signalType);
+                            if (reason == null) {
+                                // still logged when debug is on, else only released
+                                loggingWebExchange.log();
+                                return;
+                            }
+                            try {
+                                log.info(
+                                        "sampled exchange, {} in {} ms{}",
+                                        reason,
+                                        TimeUnit.NANOSECONDS.toMillis(elapsed),
+                                        loggingWebExchange.describe());
+                            } finally {
+                                loggingWebExchange.release();
+                            }
                         });
     }
 }
@@ -0,0 +1,61 @@
+package com.vincent.learning.token.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+/**
+ * The first maxBytes of a body for the debug log. The buffers are not copied nor decoded, each one
+ * is retained with the window of it which is captured, until {@link #release()} at the end of the
+ * exchange. The bytes are only read when the message is formatted, through the redactor.
+ */
+final class BodyCapture {
+
+    private record Window(DataBuffer buffer, int offset, int length) {}
+
+    private final int maxBytes;
+    private final List<Window> windows = new ArrayList<>(1);
+    private int captured;
+    private long total;
+    private boolean released;
+
+    BodyCapture(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void capture(DataBuffer buffer) {
+        int readable = buffer.readableByteCount();
+        total += readable;
+        int length = Math.min(readable, maxBytes - captured);
+        if (released || length <= 0) {
+            return;
+        }
+        windows.add(new Window(DataBufferUtils.retain(buffer), buffer.readPosition(), length));
+        captured += length;
+    }
+
+    /** @return the redacted body, with the total size when it is longer than the budget */
+    synchronized String format(SecretRedactor redactor) {
+        SecretRedactor.Redaction redaction = redactor.start(captured);
+        for (Window window : windows) {
+            int end = window.offset() + window.length();
+            for (int i = window.offset(); i < end; i++) {
+                redaction.write(window.buffer().getByte(i));
+            }
+        }
+        String body = redaction.toString();
+        return total > captured ? body + "... (" + total + " bytes)" : body;
+    }
+
+    synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (Window window : windows) {
+            DataBufferUtils.release(window.buffer());
+        }
+        windows.clear();
+    }
+}
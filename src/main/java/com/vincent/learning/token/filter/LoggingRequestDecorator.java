@@ -1,49 +1,89 @@
 package com.vincent.learning.token.filter;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.util.MultiValueMap;
 import reactor.core.publisher.Flux;
 
 @Slf4j
 public class LoggingRequestDecorator extends ServerHttpRequestDecorator {
 
     private final ServerHttpRequest delegate;
-    private final StringBuilder body = new StringBuilder();
+    private final BodyCapture body;
+    private final SecretRedactor redactor;
+    private final int maxBodySize;
+    private volatile MultiValueMap<String, String> formData;
 
-    public LoggingRequestDecorator(ServerHttpRequest delegate) {
+    public LoggingRequestDecorator(
+            ServerHttpRequest delegate, int maxBodySize, SecretRedactor redactor) {
         super(delegate);
         this.delegate = delegate;
+        this.body = new BodyCapture(maxBodySize);
+        this.redactor = redactor;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /** whether every request is logged at debug level. */
+    public static boolean isEnabled() {
+        return log.isDebugEnabled();
     }
 
     /**
-     * it works for @ReqeustBody, not for form data
-     *
-     * @return
+     * it works for @RequestBody, the form data is read from the exchange, see {@link
+     * #captureForm(MultiValueMap)}
      */
     @Override
     public Flux<DataBuffer> getBody() {
-        return super.getBody().doOnNext(this::capture);
+        return super.getBody().doOnNext(body::capture);
     }
 
-    private void capture(DataBuffer buffer) {
-        this.body.append(buffer.toString(StandardCharsets.UTF_8));
+    void captureForm(MultiValueMap<String, String> formData) {
+        this.formData = formData;
     }
 
+    /** log the request once, and release what was captured. */
     public void logRequest() {
-        if (log.isDebugEnabled()) {
-            String method = Optional.ofNullable(delegate.getMethod()).orElse(HttpMethod.GET).name();
-            String headers = delegate.getHeaders().toString();
-            log.debug(
-                    "\n------Request------\n>> {} {}\n>> Headers: {}\n>> Body: {}\n-------------------",
-                    method,
-                    delegate.getURI(),
-                    headers,
-                    body);
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("\n------Request------\n{}\n-------------------", describe());
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /** the method, uri, headers and the redacted body, formatted for the log. */
+    String describe() {
+        String method = Optional.ofNullable(delegate.getMethod()).orElse(HttpMethod.GET).name();
+        MultiValueMap<String, String> form = formData;
+        return ">> "
+                + method
+                + " "
+                + delegate.getURI()
+                + "\n>> Headers: "
+                + headers(delegate.getHeaders())
+                + "\n>> Body: "
+                + (form != null && !form.isEmpty()
+                        ? redactor.redact(form, maxBodySize)
+                        : body.format(redactor));
+    }
+
+    void release() {
+        body.release();
+    }
+
+    private static HttpHeaders headers(HttpHeaders headers) {
+        if (!headers.containsKey(HttpHeaders.AUTHORIZATION)) {
+            return headers;
         }
+        HttpHeaders masked = new HttpHeaders();
+        masked.putAll(headers);
+        masked.set(HttpHeaders.AUTHORIZATION, SecretRedactor.MASK);
+        return masked;
     }
 }
@@ -1,6 +1,5 @@
 package com.vincent.learning.token.filter;
 
-import java.nio.charset.StandardCharsets;
 import lombok.extern.slf4j.Slf4j;
 import org.reactivestreams.Publisher;
 import org.springframework.core.io.buffer.DataBuffer;
@@ -12,30 +11,50 @@ import reactor.core.publisher.Mono;
 @Slf4j
 public class LoggingResponseDecorator extends ServerHttpResponseDecorator {
     private final ServerHttpResponse delegate;
-    private final StringBuilder body = new StringBuilder();
+    private final BodyCapture body;
+    private final SecretRedactor redactor;
 
-    public LoggingResponseDecorator(ServerHttpResponse delegate) {
+    public LoggingResponseDecorator(
+            ServerHttpResponse delegate, int maxBodySize, SecretRedactor redactor) {
         super(delegate);
         this.delegate = delegate;
+        this.body = new BodyCapture(maxBodySize);
+        this.redactor = redactor;
+    }
+
+    /** whether every response is logged at debug level. */
+    public static boolean isEnabled() {
+        return log.isDebugEnabled();
     }
 
     @Override
     public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
         Flux<DataBuffer> buffer = Flux.from(body);
-        return super.writeWith(buffer.doOnNext(this::capture));
-    }
-
-    private void capture(DataBuffer buffer) {
-        this.body.append(buffer.toString(StandardCharsets.UTF_8));
+        return super.writeWith(buffer.doOnNext(this.body::capture));
     }
 
+    /** log the response once, and release what was captured. */
     public void logResponse() {
-        if (log.isDebugEnabled() && delegate != null) {
-            log.debug(
-                    "\n------Response------\n>> {} \n>> Headers: {}\n>> Body: {}\n-------------------",
-                    delegate.getStatusCode(),
-                    delegate.getHeaders(),
-                    body);
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("\n------Response------\n{}\n-------------------", describe());
+            }
+        } finally {
+            release();
         }
     }
+
+    /** the status, headers and the redacted body, formatted for the log. */
+    String describe() {
+        return ">> "
+                + delegate.getStatusCode()
+                + " \n>> Headers: "
+                + delegate.getHeaders()
+                + "\n>> Body: "
+                + body.format(redactor);
+    }
+
+    void release() {
+        body.release();
+    }
 }
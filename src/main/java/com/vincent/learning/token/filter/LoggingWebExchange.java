@@ -1,25 +1,90 @@
 package com.vincent.learning.token.filter;
 
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.ServerWebExchangeDecorator;
+import reactor.core.publisher.Mono;
 
+/**
+ * Decorate the request and the response whose debug log is enabled, only them, or both when every
+ * exchange is captured for the tail sampling.
+ */
 public class LoggingWebExchange extends ServerWebExchangeDecorator {
     private final LoggingRequestDecorator requestDecorator;
     private final LoggingResponseDecorator responseDecorator;
 
-    protected LoggingWebExchange(ServerWebExchange delegate) {
+    protected LoggingWebExchange(
+            ServerWebExchange delegate,
+            int maxBodySize,
+            SecretRedactor redactor,
+            boolean captureAll) {
         super(delegate);
-        requestDecorator = new LoggingRequestDecorator(delegate.getRequest());
-        responseDecorator = new LoggingResponseDecorator(delegate.getResponse());
+        requestDecorator =
+                captureAll || LoggingRequestDecorator.isEnabled()
+                        ? new LoggingRequestDecorator(delegate.getRequest(), maxBodySize, redactor)
+                        : null;
+        responseDecorator =
+                captureAll || LoggingResponseDecorator.isEnabled()
+                        ? new LoggingResponseDecorator(
+                                delegate.getResponse(), maxBodySize, redactor)
+                        : null;
+    }
+
+    /** whether there is anything to log, else the exchange is not decorated at all. */
+    public static boolean isEnabled() {
+        return LoggingRequestDecorator.isEnabled() || LoggingResponseDecorator.isEnabled();
+    }
+
+    @Override
+    public ServerHttpRequest getRequest() {
+        return requestDecorator != null ? requestDecorator : super.getRequest();
     }
 
     @Override
-    public LoggingRequestDecorator getRequest() {
-        return requestDecorator;
+    public ServerHttpResponse getResponse() {
+        return responseDecorator != null ? responseDecorator : super.getResponse();
     }
 
+    /** the form is read from the original request, it is captured as decoded. */
     @Override
-    public LoggingResponseDecorator getResponse() {
-        return responseDecorator;
+    public Mono<MultiValueMap<String, String>> getFormData() {
+        if (requestDecorator == null) {
+            return super.getFormData();
+        }
+        return super.getFormData().doOnNext(requestDecorator::captureForm);
+    }
+
+    /** log the exchange at debug level and release the captured bodies. */
+    public void log() {
+        if (requestDecorator != null) {
+            requestDecorator.logRequest();
+        }
+        if (responseDecorator != null) {
+            responseDecorator.logResponse();
+        }
+    }
+
+    /** the request and the response in one message, the bodies are not released. */
+    public String describe() {
+        StringBuilder message = new StringBuilder();
+        if (requestDecorator != null) {
+            message.append("\n------Request------\n").append(requestDecorator.describe());
+        }
+        if (responseDecorator != null) {
+            message.append("\n------Response------\n").append(responseDecorator.describe());
+        }
+        return message.append("\n-------------------").toString();
+    }
+
+    /** release the captured bodies without logging them. */
+    public void release() {
+        if (requestDecorator != null) {
+            requestDecorator.release();
+        }
+        if (responseDecorator != null) {
+            responseDecorator.release();
+        }
     }
 }
@@ -0,0 +1,196 @@
+package com.vincent.learning.token.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Mask the values of the secret parameters in a body before it is logged, in a url encoded form
+ * (password=...) as well as in JSON ("access_token":"..."). The bytes are fed one by one as they
+ * were captured, a value split across buffers is masked all the same, and a value cut by the
+ * capture budget is masked from its first byte.
+ *
+ * <p>It is a scanner for logs, not a parser: a name is the run of name characters before an = or
+ * a :, quotes and whitespace around it are allowed.
+ */
+public final class SecretRedactor {
+    static final String MASK = "***";
+
+    private static final byte[] MASK_BYTES = MASK.getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_NAME_LENGTH = 32;
+
+    private final Set<String> names;
+    private final byte[][] nameBytes;
+
+    public SecretRedactor(Collection<String> names) {
+        this.names = Set.copyOf(names);
+        this.nameBytes =
+                names.stream()
+                        .map(name -> name.getBytes(StandardCharsets.US_ASCII))
+                        .toArray(byte[][]::new);
+    }
+
+    public boolean isSecret(String name) {
+        return names.contains(name);
+    }
+
+    /** start the redaction of one body, at most maxBytes are expected. */
+    public Redaction start(int maxBytes) {
+        return new Redaction(maxBytes);
+    }
+
+    /** format a decoded form as name=value pairs, the secret values masked. */
+    public String redact(MultiValueMap<String, String> form, int maxLength) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : form.entrySet()) {
+            boolean secret = isSecret(entry.getKey());
+            for (String value : entry.getValue()) {
+                if (builder.length() > 0) {
+                    builder.append('&');
+                }
+                builder.append(entry.getKey()).append('=').append(secret ? MASK : value);
+                if (builder.length() >= maxLength) {
+                    builder.setLength(maxLength);
+                    return builder.append("...").toString();
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private enum State {
+        TEXT,
+        BEFORE_VALUE,
+        MASKED_STRING,
+        MASKED_SCALAR
+    }
+
+    /** the state of one body. */
+    public final class Redaction {
+        private State state = State.TEXT;
+        private final byte[] name = new byte[MAX_NAME_LENGTH];
+        private int nameLength;
+        // a quote or a space ended the name, a name character starts a new one
+        private boolean nameEnded;
+        private boolean escaped;
+        private byte[] out;
+        private int length;
+
+        private Redaction(int maxBytes) {
+            this.out = new byte[Math.max(maxBytes, 16)];
+        }
+
+        public void write(byte b) {
+            switch (state) {
+                case TEXT:
+                    append(b);
+                    if (isNameChar(b)) {
+                        if (nameEnded) {
+                            nameLength = 0;
+                            nameEnded = false;
+                        }
+                        if (nameLength < MAX_NAME_LENGTH) {
+                            name[nameLength] = b;
+                        }
+                        nameLength++;
+                    } else if (b == '"' || isWhitespace(b)) {
+                        nameEnded = nameLength > 0;
+                    } else {
+                        if ((b == '=' || b == ':') && isSecretName()) {
+                            state = State.BEFORE_VALUE;
+                        }
+                        nameLength = 0;
+                        nameEnded = false;
+                    }
+                    break;
+                case BEFORE_VALUE:
+                    if (isWhitespace(b)) {
+                        append(b);
+                    } else if (b == '"') {
+                        append(b);
+                        appendMask();
+                        escaped = false;
+                        state = State.MASKED_STRING;
+                    } else {
+                        appendMask();
+                        state = State.MASKED_SCALAR;
+                        write(b);
+                    }
+                    break;
+                case MASKED_STRING:
+                    if (b == '"' && !escaped) {
+                        append(b);
+                        state = State.TEXT;
+                    } else {
+                        escaped = !escaped && b == '\\';
+                    }
+                    break;
+                case MASKED_SCALAR:
+                    if (b == '&' || b == ',' || b == '}' || isWhitespace(b)) {
+                        state = State.TEXT;
+                        write(b);
+                    }
+                    break;
+            }
+        }
+
+        public void write(byte[] bytes) {
+            for (byte b : bytes) {
+                write(b);
+            }
+        }
+
+        /** @return the redacted body, decoded as UTF-8 */
+        @Override
+        public String toString() {
+            if (state == State.BEFORE_VALUE) {
+                // the value is cut by the capture budget, nothing of it is logged anyway
+                appendMask();
+                state = State.MASKED_SCALAR;
+            }
+            return new String(out, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private boolean isSecretName() {
+            if (nameLength > MAX_NAME_LENGTH) {
+                return false;
+            }
+            for (byte[] secret : nameBytes) {
+                if (Arrays.equals(secret, 0, secret.length, name, 0, nameLength)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void appendMask() {
+            for (byte b : MASK_BYTES) {
+                append(b);
+            }
+        }
+
+        private void append(byte b) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            out[length++] = b;
+        }
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z')
+                || (b >= 'A' && b <= 'Z')
+                || (b >= '0' && b <= '9')
+                || b == '_'
+                || b == '-'
+                || b == '.';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
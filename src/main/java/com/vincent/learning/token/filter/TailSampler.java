@@ -0,0 +1,54 @@
+package com.vincent.learning.token.filter;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.http.HttpStatusCode;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Decide at the end of an exchange whether its captured bodies are logged: when it failed, was
+ * cancelled, answered an error status, was slow, or falls in the random sample. The decision is
+ * taken once the outcome is known, so the bodies of every exchange are captured, within the
+ * budget, and the others are released without being formatted.
+ */
+public class TailSampler {
+    static final String ERROR = "error";
+    static final String CANCELLED = "cancelled";
+    static final String SLOW = "slow";
+    static final String RANDOM = "random";
+
+    private final long slowNanos;
+    private final int minErrorStatus;
+    private final double rate;
+
+    /**
+     * @param slowThreshold an exchange which takes at least this long is logged
+     * @param minErrorStatus a status from this one is logged, e.g. 500 for the 5xx only
+     * @param rate the ratio of the other exchanges which is logged, from 0 to 1
+     */
+    public TailSampler(Duration slowThreshold, int minErrorStatus, double rate) {
+        this.slowNanos = slowThreshold.toNanos();
+        this.minErrorStatus = minErrorStatus;
+        this.rate = rate;
+    }
+
+    /** @return why the exchange is logged, or null when its bodies are dropped */
+    public String select(long elapsedNanos, HttpStatusCode status, SignalType signal) {
+        if (signal == SignalType.ON_ERROR) {
+            return ERROR;
+        }
+        if (signal == SignalType.CANCEL) {
+            return CANCELLED;
+        }
+        if (status != null && status.value() >= minErrorStatus) {
+            return "status " + status.value();
+        }
+        if (elapsedNanos >= slowNanos) {
+            return SLOW;
+        }
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            return RANDOM;
+        }
+        return null;
+    }
+}
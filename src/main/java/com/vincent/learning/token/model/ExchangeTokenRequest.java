@@ -2,14 +2,23 @@ package com.vincent.learning.token.model;
 
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 @Data
 @NoArgsConstructor
 public class ExchangeTokenRequest {
     private String grantType;
     private String username;
-    private String password;
-    private String refreshToken;
+
+    @ToString.Exclude private String password;
+
+    @ToString.Exclude private String refreshToken;
+
+    private String clientId;
+
+    @ToString.Exclude private String clientSecret;
+
+    private String scope;
 
     /**
      * use to convert the request grant_type to grantType
@@ -28,4 +37,22 @@ public class ExchangeTokenRequest {
     public void setRefresh_token(String refreshToken) { // NOSONAR
         setRefreshToken(refreshToken);
     }
+
+    /**
+     * use to convert the request client_id to clientId
+     *
+     * @param clientId
+     */
+    public void setClient_id(String clientId) { // NOSONAR
+        setClientId(clientId);
+    }
+
+    /**
+     * use to convert the request client_secret to clientSecret
+     *
+     * @param clientSecret
+     */
+    public void setClient_secret(String clientSecret) { // NOSONAR
+        setClientSecret(clientSecret);
+    }
 }
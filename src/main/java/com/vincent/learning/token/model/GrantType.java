@@ -2,5 +2,6 @@ package com.vincent.learning.token.model;
 
 public enum GrantType {
     PASSWORD,
-    REFRESH_TOKEN
+    REFRESH_TOKEN,
+    CLIENT_CREDENTIALS
 }
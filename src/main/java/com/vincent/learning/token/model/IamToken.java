@@ -1,11 +1,13 @@
 package com.vincent.learning.token.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 @Data
 @AllArgsConstructor
@@ -24,4 +26,7 @@ public class IamToken {
 
     @JsonProperty("refresh_token")
     private String refreshToken;
+
+    /** the filtered upstream body in pass-through mode, the other fields but expiresIn are null. */
+    @JsonIgnore @ToString.Exclude private byte[] passThroughBody;
 }
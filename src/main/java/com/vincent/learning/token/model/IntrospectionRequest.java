@@ -0,0 +1,20 @@
+package com.vincent.learning.token.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class IntrospectionRequest {
+    private String token;
+    private String tokenTypeHint;
+
+    /**
+     * use to convert the request token_type_hint to tokenTypeHint
+     *
+     * @param tokenTypeHint
+     */
+    public void setToken_type_hint(String tokenTypeHint) { // NOSONAR
+        setTokenTypeHint(tokenTypeHint);
+    }
+}
@@ -0,0 +1,38 @@
+package com.vincent.learning.token.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** RFC 7662 introspection response, an inactive token only has active=false. */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class IntrospectionResponse {
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private boolean active;
+
+    private String scope;
+
+    @JsonProperty("client_id")
+    private String clientId;
+
+    private String username;
+
+    @JsonProperty("token_type")
+    private String tokenType;
+
+    private Long exp;
+    private Long iat;
+    private Long nbf;
+    private String sub;
+    private List<String> aud;
+    private String iss;
+    private String jti;
+}
@@ -0,0 +1,45 @@
+package com.vincent.learning.token.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.HexFormat;
+
+/**
+ * One token exchange decoded from the {@link AuthEventJournal}.
+ *
+ * @param timestamp the end of the exchange, epoch millis
+ * @param latencyMicros the time from the request to the response
+ * @param upstreamMicros the time waiting for the IAM token, -1 when not known
+ * @param clientIp the 16 bytes of the client address, null when not known
+ * @param userHash the hashed username or client id, null for a refresh_token grant
+ */
+public record AuthEvent(
+        long timestamp,
+        String grantType,
+        int status,
+        int latencyMicros,
+        int upstreamMicros,
+        byte[] clientIp,
+        byte[] userHash) {
+
+    public Instant time() {
+        return Instant.ofEpochMilli(timestamp);
+    }
+
+    /** @return the client address, an IPv4-mapped one is an IPv4 address */
+    public InetAddress clientAddress() {
+        if (clientIp == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(clientIp);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String userHashHex() {
+        return userHash == null ? null : HexFormat.of().formatHex(userHash);
+    }
+}
@@ -0,0 +1,302 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.util.MpscRingBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * An append-only journal of the token exchange outcomes, for the security audit and the capacity
+ * analysis, in the binary segments of {@link AuthEventSegment}.
+ *
+ * <p>The event loops only fill a preallocated slot of a ring, the journal thread is the single
+ * writer of the memory-mapped segment, so a record is a few puts and no system call. A segment is
+ * rolled when it is full or older than the roll interval, the segments older than the retention
+ * or beyond the max size are deleted on roll. When the ring is full the event is dropped and
+ * counted by iam.token.journal.dropped, the exchange is never slowed down by the journal.
+ */
+@Service
+@Slf4j
+public class AuthEventJournal {
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final class Slot {
+        long timestamp;
+        byte grantType;
+        String user;
+        InetAddress clientAddress;
+        int status;
+        long latencyNanos;
+        long upstreamNanos;
+    }
+
+    @Getter private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final long rollIntervalMillis;
+    private final long retentionMillis;
+    private final int maxSegments;
+    private final byte[] hashKey;
+    private final MpscRingBuffer<Slot> ring;
+    private final Counter ringFullCounter;
+    private final Counter writeFailedCounter;
+    private final Consumer<Slot> appender = this::write;
+    private volatile boolean running;
+    private Thread thread;
+
+    // the journal thread only
+    private Function<String, byte[]> userHasher;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+    private long rollAt;
+    private long retryAt;
+    private long lastCreated;
+
+    public AuthEventJournal(
+            @Value("${iam.token.journal.enabled:false}") boolean enabled,
+            @Value("${iam.token.journal.directory:journal}") String directory,
+            @Value("${iam.token.journal.segment-size:64MB}") DataSize segmentSize,
+            @Value("${iam.token.journal.roll-interval:1h}") Duration rollInterval,
+            @Value("${iam.token.journal.retention.max-age:7d}") Duration retention,
+            @Value("${iam.token.journal.retention.max-size:10GB}") DataSize maxSize,
+            @Value("${iam.token.journal.capacity:8192}") int capacity,
+            @Value("${iam.token.journal.hash-key:}") String hashKey,
+            MeterRegistry meterRegistry) {
+        if (segmentSize.toBytes() < AuthEventSegment.HEADER_SIZE + AuthEventSegment.RECORD_SIZE
+                || segmentSize.toBytes() > DataSize.ofGigabytes(1).toBytes()) {
+            throw new IllegalArgumentException(
+                    "the segment size must be between 128B and 1GB: " + segmentSize);
+        }
+        if (enabled && hashKey.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "iam.token.journal.hash-key must be set when the journal is enabled");
+        }
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.segmentSize = (int) segmentSize.toBytes();
+        this.rollIntervalMillis = rollInterval.toMillis();
+        this.retentionMillis = retention.toMillis();
+        this.maxSegments = (int) Math.max(1, maxSize.toBytes() / segmentSize.toBytes());
+        this.hashKey = hashKey.getBytes(StandardCharsets.UTF_8);
+        this.ring = enabled ? new MpscRingBuffer<>(capacity, Slot::new) : null;
+        this.ringFullCounter =
+                Counter.builder("iam.token.journal.dropped")
+                        .description("auth events dropped")
+                        .tag("reason", "ring_full")
+                        .register(meterRegistry);
+        this.writeFailedCounter =
+                Counter.builder("iam.token.journal.dropped")
+                        .description("auth events dropped")
+                        .tag("reason", "write_failed")
+                        .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "auth-event-journal");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("auth event journal is written to {}", directory.toAbsolutePath());
+    }
+
+    /** write what is left in the ring and close the segment. */
+    @PreDestroy
+    public void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Journal the outcome of an exchange, on the calling thread it only fills a slot.
+     *
+     * @param user the username or client id, hashed by the journal thread
+     * @param upstreamNanos the time waiting for the IAM token, -1 when not known
+     */
+    public void append(
+            String grantType,
+            String user,
+            InetAddress clientAddress,
+            int status,
+            long latencyNanos,
+            long upstreamNanos) {
+        if (!enabled) {
+            return;
+        }
+        long sequence = ring.tryClaim();
+        if (sequence < 0) {
+            ringFullCounter.increment();
+            return;
+        }
+        Slot slot = ring.get(sequence);
+        try {
+            slot.timestamp = System.currentTimeMillis();
+            slot.grantType = AuthEventSegment.grantTypeCode(grantType);
+            slot.user = user;
+            slot.clientAddress = clientAddress;
+            slot.status = status;
+            slot.latencyNanos = latencyNanos;
+            slot.upstreamNanos = upstreamNanos;
+        } finally {
+            ring.publish(sequence);
+        }
+    }
+
+    private void run() {
+        userHasher = AuthEventSegment.userHasher(hashKey);
+        while (running) {
+            if (ring.drain(appender, BATCH_SIZE) == 0) {
+                if (segment != null && System.currentTimeMillis() >= rollAt) {
+                    // an idle journal does not keep an empty segment per roll interval
+                    closeSegment();
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        while (ring.drain(appender, BATCH_SIZE) > 0) {
+            // the events appended before the stop
+        }
+        closeSegment();
+    }
+
+    private void write(Slot slot) {
+        try {
+            if (segment == null
+                    || position + AuthEventSegment.RECORD_SIZE > segmentSize
+                    || slot.timestamp >= rollAt) {
+                closeSegment();
+                if (slot.timestamp < retryAt) {
+                    writeFailedCounter.increment();
+                    return;
+                }
+                openSegment(slot.timestamp);
+            }
+            int offset = position;
+            segment.putInt(offset + AuthEventSegment.LATENCY, micros(slot.latencyNanos));
+            segment.putInt(offset + AuthEventSegment.UPSTREAM, micros(slot.upstreamNanos));
+            segment.putShort(offset + AuthEventSegment.STATUS, (short) slot.status);
+            segment.put(offset + AuthEventSegment.GRANT_TYPE, slot.grantType);
+            if (slot.clientAddress != null) {
+                AuthEventSegment.writeAddress(
+                        segment, offset + AuthEventSegment.CLIENT_IP, slot.clientAddress);
+            }
+            if (slot.user != null) {
+                segment.put(offset + AuthEventSegment.USER_HASH, userHasher.apply(slot.user));
+            }
+            // the end of the segment until the timestamp is written
+            segment.putLong(offset + AuthEventSegment.TIMESTAMP, slot.timestamp);
+            position += AuthEventSegment.RECORD_SIZE;
+        } catch (IOException e) {
+            writeFailedCounter.increment();
+            retryAt = slot.timestamp + RETRY_MILLIS;
+            log.warn("fail to open an auth event segment in {}: {}", directory, e.getMessage());
+        } finally {
+            slot.user = null;
+            slot.clientAddress = null;
+        }
+    }
+
+    private void openSegment(long now) throws IOException {
+        Files.createDirectories(directory);
+        // the names sort in creation order, even when rolled twice in the same millisecond
+        long created = Math.max(now, lastCreated + 1);
+        while (channel == null) {
+            try {
+                channel =
+                        FileChannel.open(
+                                AuthEventSegment.file(directory, created),
+                                StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // a segment of a previous run
+                created++;
+            }
+        }
+        lastCreated = created;
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        AuthEventSegment.writeHeader(segment, created);
+        position = AuthEventSegment.HEADER_SIZE;
+        rollAt = created + rollIntervalMillis;
+        deleteExpiredSegments(now);
+    }
+
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            segment.force();
+            // the mapping stays until it is collected, only the file is cut to its records
+            channel.truncate(position);
+            channel.close();
+        } catch (IOException e) {
+            log.warn("fail to close the auth event segment: {}", e.getMessage());
+        } finally {
+            segment = null;
+            channel = null;
+        }
+    }
+
+    /** a segment expires once the next one is older than the retention, the last one never. */
+    private void deleteExpiredSegments(long now) {
+        try {
+            List<Path> segments = AuthEventSegment.list(directory);
+            for (int i = 0; i < segments.size() - 1; i++) {
+                long next = AuthEventSegment.createdMillis(segments.get(i + 1));
+                if (segments.size() - i > maxSegments || next + retentionMillis <= now) {
+                    Files.deleteIfExists(segments.get(i));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("fail to delete the expired auth event segments: {}", e.getMessage());
+        }
+    }
+
+    private static int micros(long nanos) {
+        return nanos < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+    }
+}
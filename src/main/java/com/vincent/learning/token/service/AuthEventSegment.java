@@ -0,0 +1,207 @@
+package com.vincent.learning.token.service;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The layout of a segment file of the {@link AuthEventJournal}, shared by the writer and the
+ * offline tools. A segment is a header followed by fixed size records, little endian:
+ *
+ * <pre>
+ * header, 64 bytes
+ *   0  int    magic "AEJ1"
+ *   4  short  version
+ *   6  short  record size
+ *   8  long   creation time, epoch millis
+ * record, 64 bytes
+ *   0  long   timestamp, epoch millis, written last, 0 is the end of the segment
+ *   8  int    latency of the exchange, micros
+ *   12 int    time waiting for the IAM token, micros, -1 when not known
+ *   16 short  status of the response
+ *   18 byte   grant type, see {@link #grantType(int)}
+ *   20 16     client ip, an IPv4 address is IPv4-mapped, zeros when not known
+ *   36 16     hashed username or client id, zeros when none
+ * </pre>
+ *
+ * The file is preallocated to the segment size, a segment which was not closed (e.g. a crash) ends
+ * at the first record without timestamp.
+ */
+public final class AuthEventSegment {
+    public static final int MAGIC = 0x41454a31;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 64;
+    public static final int USER_HASH_SIZE = 16;
+
+    static final int TIMESTAMP = 0;
+    static final int LATENCY = 8;
+    static final int UPSTREAM = 12;
+    static final int STATUS = 16;
+    static final int GRANT_TYPE = 18;
+    static final int CLIENT_IP = 20;
+    static final int USER_HASH = 36;
+
+    private static final String PREFIX = "auth-events-";
+    private static final String SUFFIX = ".journal";
+    private static final List<String> GRANT_TYPES =
+            List.of("unknown", "password", "refresh_token", "client_credentials");
+    private static final byte[] IPV4_MAPPED = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1};
+
+    private AuthEventSegment() {}
+
+    /** the file of a segment, named by its creation time so the names sort in time order. */
+    public static Path file(Path directory, long createdMillis) {
+        return directory.resolve(String.format("%s%013d%s", PREFIX, createdMillis, SUFFIX));
+    }
+
+    /** @return the creation time in the name of a segment file, or -1 when it is not one */
+    public static long createdMillis(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** the segment files of a directory, the oldest first. */
+    public static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> createdMillis(file) >= 0).sorted().toList();
+        }
+    }
+
+    /** @return the code of a grant type, 0 when not known */
+    public static byte grantTypeCode(String grantType) {
+        int code = GRANT_TYPES.indexOf(grantType);
+        return (byte) Math.max(0, code);
+    }
+
+    public static String grantType(int code) {
+        return code > 0 && code < GRANT_TYPES.size() ? GRANT_TYPES.get(code) : GRANT_TYPES.get(0);
+    }
+
+    /**
+     * The hash of the usernames, truncated to {@link #USER_HASH_SIZE} bytes, not thread safe. It is
+     * an HMAC, so the usernames cannot be guessed from the journal without the key, a plain hash
+     * of a username is found by a dictionary; the same key must be given to find the events of a
+     * user.
+     *
+     * @throws IllegalArgumentException when the key is empty
+     */
+    public static Function<String, byte[]> userHasher(byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("the key of the username hash is empty");
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return username ->
+                    Arrays.copyOf(
+                            mac.doFinal(username.getBytes(StandardCharsets.UTF_8)),
+                            USER_HASH_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("fail to init the username hash", e);
+        }
+    }
+
+    static void writeHeader(ByteBuffer buffer, long createdMillis) {
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putLong(8, createdMillis);
+    }
+
+    /** the 16 bytes of an address, IPv4-mapped for an IPv4 one. */
+    static void writeAddress(ByteBuffer buffer, int offset, InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            buffer.put(offset, IPV4_MAPPED);
+            buffer.put(offset + IPV4_MAPPED.length, bytes);
+        } else {
+            buffer.put(offset, bytes);
+        }
+    }
+
+    /**
+     * Read the events of a segment in order.
+     *
+     * @throws IOException when the file cannot be read or is not a segment
+     */
+    public static void read(Path file, Consumer<AuthEvent> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("not an auth event segment: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("not an auth event segment: " + file);
+            }
+            if (buffer.getShort(4) > VERSION) {
+                throw new IOException("unsupported version " + buffer.getShort(4) + ": " + file);
+            }
+            // a later version may append fields to the record
+            int recordSize = buffer.getShort(6);
+            if (recordSize < RECORD_SIZE) {
+                throw new IOException("invalid record size " + recordSize + ": " + file);
+            }
+            for (long offset = HEADER_SIZE; offset + recordSize <= size; offset += recordSize) {
+                AuthEvent event = decode(buffer, (int) offset);
+                if (event == null) {
+                    return;
+                }
+                consumer.accept(event);
+            }
+        }
+    }
+
+    private static AuthEvent decode(ByteBuffer buffer, int offset) {
+        long timestamp = buffer.getLong(offset + TIMESTAMP);
+        if (timestamp == 0) {
+            return null;
+        }
+        byte[] clientIp = new byte[16];
+        buffer.get(offset + CLIENT_IP, clientIp);
+        byte[] userHash = new byte[USER_HASH_SIZE];
+        buffer.get(offset + USER_HASH, userHash);
+        return new AuthEvent(
+                timestamp,
+                grantType(buffer.get(offset + GRANT_TYPE)),
+                Short.toUnsignedInt(buffer.getShort(offset + STATUS)),
+                buffer.getInt(offset + LATENCY),
+                buffer.getInt(offset + UPSTREAM),
+                isZero(clientIp) ? null : clientIp,
+                isZero(userHash) ? null : userHash);
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
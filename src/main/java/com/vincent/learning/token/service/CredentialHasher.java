@@ -0,0 +1,52 @@
+package com.vincent.learning.token.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.stereotype.Component;
+
+/**
+ * Derive an opaque key from credentials (password, refresh token...), so the raw secret never
+ * becomes a map key. The HMAC key is generated per instance and never leaves the process.
+ */
+@Component
+public class CredentialHasher {
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec secret;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    public CredentialHasher() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.secret = new SecretKeySpec(key, ALGORITHM);
+    }
+
+    /**
+     * hash the given parts, a separator is written after every part so ("ab", "c") and ("a", "bc")
+     * never collide.
+     */
+    public String hash(String... parts) {
+        Mac mac = macs.get();
+        for (String part : parts) {
+            if (part != null) {
+                mac.update(part.getBytes(StandardCharsets.UTF_8));
+            }
+            mac.update((byte) 0);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal());
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("fail to init " + ALGORITHM, e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.vincent.learning.token.service;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Resolve the time budget of an inbound token request. The budget is the configured request
+ * timeout, shortened by the caller's deadline when one is given:
+ *
+ * <ul>
+ *   <li>{@value #DEADLINE_HEADER}: the absolute deadline in epoch milliseconds
+ *   <li>{@value #GRPC_TIMEOUT_HEADER}: the relative timeout in gRPC format, e.g. 500m or 2S
+ * </ul>
+ *
+ * <p>The budget bounds what the caller waits for, not the IAM call: the call may be shared by
+ * callers with other budgets, so it only has the connect, handshake, write and read timeouts of
+ * the http client.
+ */
+@Component
+@Slf4j
+public class DeadlineResolver {
+    public static final String DEADLINE_HEADER = "X-Request-Deadline";
+    public static final String GRPC_TIMEOUT_HEADER = "grpc-timeout";
+
+    @Value("${iam.client.request.timeout:10s}")
+    private Duration requestTimeout = Duration.ofSeconds(10);
+
+    /**
+     * @return the remaining budget, zero or negative when the caller's deadline is already spent
+     */
+    public Duration resolve(HttpHeaders headers) {
+        Duration budget = requestTimeout;
+
+        String deadline = headers.getFirst(DEADLINE_HEADER);
+        if (StringUtils.hasText(deadline)) {
+            try {
+                budget =
+                        min(
+                                budget,
+                                Duration.ofMillis(
+                                        Long.parseLong(deadline.trim())
+                                                - System.currentTimeMillis()));
+            } catch (NumberFormatException e) {
+                log.debug("ignore the invalid {} header {}", DEADLINE_HEADER, deadline);
+            }
+        }
+
+        String grpcTimeout = headers.getFirst(GRPC_TIMEOUT_HEADER);
+        if (StringUtils.hasText(grpcTimeout)) {
+            Duration timeout = parseGrpcTimeout(grpcTimeout.trim());
+            if (timeout != null) {
+                budget = min(budget, timeout);
+            } else {
+                log.debug("ignore the invalid {} header {}", GRPC_TIMEOUT_HEADER, grpcTimeout);
+            }
+        }
+        return budget;
+    }
+
+    /** the gRPC timeout is at most 8 digits followed by one of the units H M S m u n. */
+    static Duration parseGrpcTimeout(String value) {
+        if (value.length() < 2 || value.length() > 9) {
+            return null;
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ChronoUnit unit =
+                switch (value.charAt(value.length() - 1)) {
+                    case 'H' -> ChronoUnit.HOURS;
+                    case 'M' -> ChronoUnit.MINUTES;
+                    case 'S' -> ChronoUnit.SECONDS;
+                    case 'm' -> ChronoUnit.MILLIS;
+                    case 'u' -> ChronoUnit.MICROS;
+                    case 'n' -> ChronoUnit.NANOS;
+                    default -> null;
+                };
+        return unit == null || amount < 0 ? null : Duration.of(amount, unit);
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+}
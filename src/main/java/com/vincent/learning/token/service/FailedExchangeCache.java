@@ -0,0 +1,111 @@
+package com.vincent.learning.token.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.vincent.learning.token.config.NegativeCacheProperties;
+import com.vincent.learning.token.exception.RestException;
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Replay the error IAM answered for the same credential (wrong saved password, revoked refresh
+ * token) for a short time, instead of another round trip and password hash in IAM.
+ *
+ * <p>The key is the hashed credential from {@link CredentialHasher}, so a corrected password is a
+ * different key. Only 4xx errors whose code has a ttl are cached, 408 and 429 are transient and
+ * never cached, neither are 5xx nor the errors raised by this service.
+ */
+@Component
+@Slf4j
+public class FailedExchangeCache {
+
+    private final boolean enabled;
+    private final Map<String, Duration> ttl;
+    private final Cache<String, Failure> cache;
+
+    public FailedExchangeCache(NegativeCacheProperties properties, MeterRegistry meterRegistry) {
+        this.enabled = properties.isEnabled();
+        this.ttl = Map.copyOf(properties.getTtl());
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumSize(properties.getMaxEntries())
+                        .expireAfter(new TtlExpiry())
+                        .recordStats()
+                        .build();
+        if (enabled) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "iam.token.failed");
+        }
+    }
+
+    /**
+     * Replay the cached failure of the key, or subscribe the upstream and cache its failure.
+     *
+     * @param key the hashed grant type and credential
+     * @param upstream supply the IAM call
+     */
+    public Mono<IamToken> getOrLoad(String key, Supplier<Mono<IamToken>> upstream) {
+        if (!enabled) {
+            return Mono.defer(upstream);
+        }
+        return Mono.defer(
+                () -> {
+                    Failure failure = cache.getIfPresent(key);
+                    if (failure != null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("replay the iam error {} of the same credential", failure);
+                        }
+                        return Mono.error(
+                                new RestException(
+                                        failure.error(), failure.message(), failure.status()));
+                    }
+                    return upstream.get()
+                            .doOnError(RestException.class, e -> remember(key, e));
+                });
+    }
+
+    private void remember(String key, RestException e) {
+        HttpStatusCode status = e.getStatus();
+        if (!status.is4xxClientError()
+                || status.value() == HttpStatus.REQUEST_TIMEOUT.value()
+                || status.value() == HttpStatus.TOO_MANY_REQUESTS.value()
+                || e.getError() == null) {
+            return;
+        }
+        Duration errorTtl = ttl.get(e.getError());
+        if (errorTtl != null && errorTtl.isPositive()) {
+            cache.put(key, new Failure(e.getError(), e.getErrorMessage(), status, errorTtl));
+        }
+    }
+
+    private record Failure(String error, String message, HttpStatusCode status, Duration ttl) {}
+
+    private static class TtlExpiry implements Expiry<String, Failure> {
+
+        @Override
+        public long expireAfterCreate(String key, Failure failure, long currentTime) {
+            return failure.ttl().toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(
+                String key, Failure failure, long currentTime, long currentDuration) {
+            return failure.ttl().toNanos();
+        }
+
+        @Override
+        public long expireAfterRead(
+                String key, Failure failure, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
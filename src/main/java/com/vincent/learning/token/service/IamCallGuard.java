@@ -0,0 +1,101 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.exception.RestException;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.reactor.bulkhead.operator.BulkheadOperator;
+import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Circuit breaker and bulkhead around the calls to IAM, both are the "iam" instance of the
+ * resilience4j registries and configured under resilience4j.* .
+ *
+ * <p>The bulkhead is the outer one, so a call rejected because of the concurrency limit is not
+ * recorded as a failure by the circuit breaker. A rejected call fails fast with 503 and
+ * Retry-After, without touching the connection pool.
+ */
+@Component
+@Slf4j
+public class IamCallGuard {
+    public static final String INSTANCE = "iam";
+
+    private final CircuitBreaker circuitBreaker;
+    private final Bulkhead bulkhead;
+    private final Counter circuitOpenCounter;
+    private final Counter bulkheadFullCounter;
+
+    @Value("${iam.client.bulkhead.retry-after:1s}")
+    private Duration bulkheadRetryAfter = Duration.ofSeconds(1);
+
+    public IamCallGuard(
+            CircuitBreakerRegistry circuitBreakerRegistry,
+            BulkheadRegistry bulkheadRegistry,
+            MeterRegistry meterRegistry) {
+        this.circuitBreaker = circuitBreakerRegistry.circuitBreaker(INSTANCE);
+        this.bulkhead = bulkheadRegistry.bulkhead(INSTANCE);
+        this.circuitOpenCounter =
+                Counter.builder("iam.call.rejected")
+                        .description("IAM calls rejected without being sent")
+                        .tag("reason", "circuit_open")
+                        .register(meterRegistry);
+        this.bulkheadFullCounter =
+                Counter.builder("iam.call.rejected")
+                        .description("IAM calls rejected without being sent")
+                        .tag("reason", "bulkhead_full")
+                        .register(meterRegistry);
+        circuitBreaker
+                .getEventPublisher()
+                .onStateTransition(
+                        event -> log.warn("IAM circuit breaker {}", event.getStateTransition()));
+    }
+
+    public <T> Mono<T> protect(Mono<T> call) {
+        return call.transformDeferred(CircuitBreakerOperator.of(circuitBreaker))
+                .transformDeferred(BulkheadOperator.of(bulkhead))
+                .onErrorMap(
+                        CallNotPermittedException.class,
+                        e -> {
+                            circuitOpenCounter.increment();
+                            return new RestException(
+                                    ErrorConstants.IAM_UNAVAILABLE,
+                                    "iam is unavailable, the circuit is open",
+                                    HttpStatus.SERVICE_UNAVAILABLE,
+                                    waitInOpenState());
+                        })
+                .onErrorMap(
+                        BulkheadFullException.class,
+                        e -> {
+                            bulkheadFullCounter.increment();
+                            return new RestException(
+                                    ErrorConstants.IAM_UNAVAILABLE,
+                                    "too many concurrent calls to iam",
+                                    HttpStatus.SERVICE_UNAVAILABLE,
+                                    bulkheadRetryAfter);
+                        });
+    }
+
+    public CircuitBreaker.State getState() {
+        return circuitBreaker.getState();
+    }
+
+    private Duration waitInOpenState() {
+        return Duration.ofMillis(
+                circuitBreaker
+                        .getCircuitBreakerConfig()
+                        .getWaitIntervalFunctionInOpenState()
+                        .apply(1));
+    }
+}
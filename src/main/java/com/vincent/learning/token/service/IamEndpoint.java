@@ -0,0 +1,80 @@
+package com.vincent.learning.token.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+/**
+ * One IAM node and what the balancer observed of it: the requests outstanding on it, the peak
+ * EWMA of its response latency, and the consecutive failures which get it ejected for a while.
+ */
+public class IamEndpoint {
+    @Getter private final String host;
+    @Getter private final int port;
+
+    @Getter private final AtomicInteger outstanding = new AtomicInteger();
+    @Getter private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private double latencyNanos;
+    private long lastSampleNanos;
+    private volatile long ejectedUntilNanos;
+    private int ejections;
+
+    public IamEndpoint(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** @param address host:port */
+    public static IamEndpoint parse(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0 || colon == address.length() - 1) {
+            throw new IllegalArgumentException("iam endpoint is not host:port: " + address);
+        }
+        return new IamEndpoint(
+                address.substring(0, colon).trim(),
+                Integer.parseInt(address.substring(colon + 1).trim()));
+    }
+
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    public synchronized double getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public boolean isEjected(long nowNanos) {
+        return ejectedUntilNanos - nowNanos > 0;
+    }
+
+    /**
+     * Record a successful response. Peak EWMA: a slower sample is taken as it is, so a degraded
+     * node is avoided at once, a faster one decays the average with the time since the previous
+     * sample.
+     */
+    synchronized void recordSuccess(long sampleNanos, long nowNanos, long decayNanos) {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        ejections = 0;
+        if (lastSampleNanos == 0 || sampleNanos > latencyNanos) {
+            latencyNanos = sampleNanos;
+        } else {
+            double weight = Math.exp(-(double) (nowNanos - lastSampleNanos) / decayNanos);
+            latencyNanos = latencyNanos * weight + sampleNanos * (1 - weight);
+        }
+        lastSampleNanos = nowNanos;
+    }
+
+    /**
+     * Eject the endpoint, every ejection in a row lasts one base time longer.
+     *
+     * @return how long the endpoint is ejected
+     */
+    synchronized long eject(long nowNanos, long baseNanos, long maxNanos) {
+        ejections++;
+        long durationNanos = Math.min(baseNanos * ejections, maxNanos);
+        ejectedUntilNanos = nowNanos + durationNanos;
+        consecutiveFailures.set(0);
+        return durationNanos;
+    }
+}
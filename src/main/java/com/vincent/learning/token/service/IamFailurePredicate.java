@@ -0,0 +1,21 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.exception.RestException;
+import java.util.function.Predicate;
+
+/**
+ * Decide which errors of an IAM call count as failures of the circuit breaker. A 4xx answer
+ * (e.g. invalid_grant) means IAM is healthy and the caller is wrong, except 429 which is IAM
+ * shedding load.
+ */
+public class IamFailurePredicate implements Predicate<Throwable> {
+
+    @Override
+    public boolean test(Throwable e) {
+        if (e instanceof RestException restException) {
+            return !restException.getStatus().is4xxClientError()
+                    || restException.getStatus().value() == 429;
+        }
+        return true;
+    }
+}
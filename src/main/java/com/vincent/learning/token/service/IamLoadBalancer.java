@@ -0,0 +1,209 @@
+package com.vincent.learning.token.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+/**
+ * Client side balancing of the IAM calls among the configured endpoints, installed as a filter of
+ * the IAM web client which rewrites the host and port of every request.
+ *
+ * <p>Power of two choices: two random endpoints which are not ejected are compared and the one
+ * with the lower peak EWMA latency weighted by its outstanding requests wins. An endpoint is
+ * ejected after consecutive failures (5xx or no response), every ejection in a row lasts longer,
+ * and no more than the max ejection percent of the endpoints are ejected at the same time.
+ */
+@Component
+@Slf4j
+public class IamLoadBalancer implements ExchangeFilterFunction {
+    /** the latency of an endpoint before its first response, so a new one gets some traffic. */
+    private static final long INITIAL_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Value("${iam.client.balancer.decay:10s}")
+    private Duration decay = Duration.ofSeconds(10);
+
+    @Value("${iam.client.balancer.ejection.consecutive-failures:5}")
+    private int ejectionConsecutiveFailures = 5;
+
+    @Value("${iam.client.balancer.ejection.base-time:30s}")
+    private Duration ejectionBaseTime = Duration.ofSeconds(30);
+
+    @Value("${iam.client.balancer.ejection.max-time:5m}")
+    private Duration ejectionMaxTime = Duration.ofMinutes(5);
+
+    @Value("${iam.client.balancer.ejection.max-percent:50}")
+    private int ejectionMaxPercent = 50;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<IamEndpoint, Timer> responseTimers = new ConcurrentHashMap<>();
+    private volatile List<IamEndpoint> endpoints = List.of();
+
+    public IamLoadBalancer(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /** set the endpoints and register their meters, tagged by endpoint=host:port. */
+    public void setEndpoints(List<IamEndpoint> endpoints) {
+        for (IamEndpoint endpoint : endpoints) {
+            String name = endpoint.getName();
+            Gauge.builder("iam.endpoint.outstanding", endpoint, e -> e.getOutstanding().get())
+                    .description("requests in flight to the IAM endpoint")
+                    .tag("endpoint", name)
+                    .register(meterRegistry);
+            Gauge.builder(
+                            "iam.endpoint.latency.ewma",
+                            endpoint,
+                            e -> e.getLatencyNanos() / TimeUnit.MILLISECONDS.toNanos(1))
+                    .description("peak EWMA of the response latency in milliseconds")
+                    .tag("endpoint", name)
+                    .register(meterRegistry);
+            Gauge.builder(
+                            "iam.endpoint.ejected",
+                            endpoint,
+                            e -> e.isEjected(System.nanoTime()) ? 1 : 0)
+                    .description("1 when the IAM endpoint is ejected")
+                    .tag("endpoint", name)
+                    .register(meterRegistry);
+            responseTimers.put(
+                    endpoint,
+                    Timer.builder("iam.endpoint.response")
+                            .description("time to the response headers of the IAM endpoint")
+                            .tag("endpoint", name)
+                            .register(meterRegistry));
+        }
+        this.endpoints = List.copyOf(endpoints);
+        log.info(
+                "balance iam calls among {}",
+                endpoints.stream().map(IamEndpoint::getName).toList());
+    }
+
+    public List<IamEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        return Mono.defer(
+                () -> {
+                    IamEndpoint endpoint = select();
+                    ClientRequest routed =
+                            ClientRequest.from(request)
+                                    .url(
+                                            UriComponentsBuilder.fromUri(request.url())
+                                                    .host(endpoint.getHost())
+                                                    .port(endpoint.getPort())
+                                                    .build(true)
+                                                    .toUri())
+                                    .build();
+                    long start = System.nanoTime();
+                    endpoint.getOutstanding().incrementAndGet();
+                    return next.exchange(routed)
+                            .doOnNext(
+                                    response -> {
+                                        if (response.statusCode().is5xxServerError()) {
+                                            onFailure(endpoint);
+                                        } else {
+                                            onSuccess(endpoint, start);
+                                        }
+                                    })
+                            .doOnError(e -> onFailure(endpoint))
+                            .doFinally(signal -> endpoint.getOutstanding().decrementAndGet());
+                });
+    }
+
+    /** power of two choices among the endpoints which are not ejected. */
+    IamEndpoint select() {
+        List<IamEndpoint> all = endpoints;
+        if (all.size() == 1) {
+            return all.get(0);
+        }
+        long now = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        IamEndpoint first = null;
+        IamEndpoint second = null;
+        int available = 0;
+        // reservoir sampling of two endpoints, no list is allocated per request
+        for (IamEndpoint endpoint : all) {
+            if (endpoint.isEjected(now)) {
+                continue;
+            }
+            available++;
+            if (first == null) {
+                first = endpoint;
+            } else if (second == null) {
+                second = endpoint;
+            } else if (random.nextInt(available) < 2) {
+                if (random.nextBoolean()) {
+                    first = endpoint;
+                } else {
+                    second = endpoint;
+                }
+            }
+        }
+        if (first == null) {
+            // every endpoint is ejected, any of them is better than failing
+            return all.get(random.nextInt(all.size()));
+        }
+        if (second == null) {
+            return first;
+        }
+        double firstScore = score(first);
+        double secondScore = score(second);
+        if (firstScore == secondScore) {
+            return random.nextBoolean() ? first : second;
+        }
+        return firstScore < secondScore ? first : second;
+    }
+
+    private static double score(IamEndpoint endpoint) {
+        double latency = Math.max(endpoint.getLatencyNanos(), INITIAL_LATENCY_NANOS);
+        return latency * (endpoint.getOutstanding().get() + 1);
+    }
+
+    private void onSuccess(IamEndpoint endpoint, long start) {
+        long now = System.nanoTime();
+        endpoint.recordSuccess(now - start, now, decay.toNanos());
+        Timer timer = responseTimers.get(endpoint);
+        if (timer != null) {
+            timer.record(now - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void onFailure(IamEndpoint endpoint) {
+        if (endpoint.getConsecutiveFailures().incrementAndGet() < ejectionConsecutiveFailures) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<IamEndpoint> all = endpoints;
+        long ejected = all.stream().filter(e -> e.isEjected(now)).count();
+        if ((ejected + 1) * 100 > (long) all.size() * ejectionMaxPercent) {
+            log.warn(
+                    "iam endpoint {} keeps failing, but {} of {} endpoints are ejected already",
+                    endpoint.getName(),
+                    ejected,
+                    all.size());
+            return;
+        }
+        long duration = endpoint.eject(now, ejectionBaseTime.toNanos(), ejectionMaxTime.toNanos());
+        log.warn(
+                "iam endpoint {} is ejected for {}s after {} consecutive failures",
+                endpoint.getName(),
+                TimeUnit.NANOSECONDS.toSeconds(duration),
+                ejectionConsecutiveFailures);
+    }
+}
@@ -0,0 +1,80 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Coalesce identical token exchanges which are in flight at the same time. The first caller of a
+ * key subscribes the upstream call, the callers arriving before it terminates join the same
+ * result instead of sending another request to IAM.
+ */
+@Component
+@Slf4j
+public class InFlightExchangeRegistry {
+    private final ConcurrentMap<String, Mono<IamToken>> inFlight = new ConcurrentHashMap<>();
+    private final Counter leaderCounter;
+    private final Counter joinCounter;
+
+    @Value("${iam.token.single-flight.enabled:true}")
+    private boolean enabled = true;
+
+    public InFlightExchangeRegistry(MeterRegistry meterRegistry) {
+        this.leaderCounter =
+                Counter.builder("iam.token.single.flight")
+                        .description("token exchanges sent to IAM")
+                        .tag("role", "leader")
+                        .register(meterRegistry);
+        this.joinCounter =
+                Counter.builder("iam.token.single.flight")
+                        .description("token exchanges joined to an in-flight IAM call")
+                        .tag("role", "joined")
+                        .register(meterRegistry);
+        Gauge.builder("iam.token.single.flight.pending", inFlight, Map::size)
+                .description("distinct token exchanges in flight")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Run the upstream call for the key, or join the one already in flight.
+     *
+     * @param key the hashed grant type and credential, see {@link CredentialHasher}
+     * @param upstream supply the IAM call, it is only invoked by the leader
+     * @return the shared result, cancelling it does not cancel the other callers
+     */
+    public Mono<IamToken> execute(String key, Supplier<Mono<IamToken>> upstream) {
+        if (!enabled) {
+            return Mono.defer(upstream);
+        }
+        return Mono.defer(
+                () -> {
+                    AtomicReference<Mono<IamToken>> self = new AtomicReference<>();
+                    Mono<IamToken> shared =
+                            Mono.defer(upstream)
+                                    .doFinally(signal -> inFlight.remove(key, self.get()))
+                                    .share();
+                    self.set(shared);
+
+                    Mono<IamToken> existing = inFlight.putIfAbsent(key, shared);
+                    if (existing != null) {
+                        joinCounter.increment();
+                        if (log.isDebugEnabled()) {
+                            log.debug("join the in-flight token exchange");
+                        }
+                        return existing;
+                    }
+                    leaderCounter.increment();
+                    return shared;
+                });
+    }
+}
@@ -0,0 +1,147 @@
+package com.vincent.learning.token.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+
+/**
+ * Keep the token issued for a refresh token for a short grace window, so a replayed refresh token
+ * (reconnect loop, parallel frontends) is answered without another IAM round trip.
+ *
+ * <p>The key is the hashed refresh token from {@link CredentialHasher}. An entry lives for the
+ * grace window but never longer than the issued access token, a replay counts expires_in down
+ * by the time spent in the cache, in the pass-through body too. The cache is bounded by the
+ * approximate size of the token strings (W-TinyLFU eviction), the strings are kept as they come
+ * from the decoder, JWTs are ASCII so the JDK already stores them with one byte per char.
+ */
+@Component
+@Slf4j
+public class IssuedTokenCache {
+    /** rough per entry overhead of the cache node, the key and the token object. */
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final boolean enabled;
+    private final Cache<String, Entry> cache;
+
+    public IssuedTokenCache(
+            @Value("${iam.token.cache.enabled:false}") boolean enabled,
+            @Value("${iam.token.cache.grace-period:5s}") Duration gracePeriod,
+            @Value("${iam.token.cache.max-size:16MB}") DataSize maxSize,
+            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumWeight(maxSize.toBytes())
+                        .weigher((String key, Entry entry) -> weight(key, entry.token()))
+                        .expireAfter(new GraceExpiry(gracePeriod.toNanos()))
+                        .recordStats()
+                        .build();
+        if (enabled) {
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, "iam.token.issued");
+        }
+    }
+
+    /**
+     * Return the cached token of the key, or subscribe the upstream and cache its result.
+     *
+     * @param key the hashed refresh token
+     * @param upstream supply the IAM call
+     */
+    public Mono<IamToken> getOrLoad(String key, Supplier<Mono<IamToken>> upstream) {
+        if (!enabled) {
+            return Mono.defer(upstream);
+        }
+        return Mono.defer(
+                () -> {
+                    Entry cached = cache.getIfPresent(key);
+                    if (cached != null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("replay the token issued for the same refresh token");
+                        }
+                        return Mono.just(cached.remaining(System.nanoTime()));
+                    }
+                    return upstream.get()
+                            .doOnNext(
+                                    token -> {
+                                        if (token.getExpiresIn() > 0) {
+                                            cache.asMap()
+                                                    .putIfAbsent(
+                                                            key,
+                                                            new Entry(token, System.nanoTime()));
+                                        }
+                                    });
+                });
+    }
+
+    private static int weight(String key, IamToken token) {
+        return ENTRY_OVERHEAD
+                + key.length()
+                + length(token.getAccessToken())
+                + length(token.getRefreshToken())
+                + length(token.getTokenType())
+                + (token.getPassThroughBody() == null ? 0 : token.getPassThroughBody().length);
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /** a cached token and the {@link System#nanoTime()} it was issued at. */
+    record Entry(IamToken token, long issuedAt) {
+
+        /** @return the token with the seconds left of its expires_in at the time */
+        IamToken remaining(long now) {
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(now - issuedAt);
+            if (elapsed == 0) {
+                return token;
+            }
+            int expiresIn = (int) Math.max(0, token.getExpiresIn() - elapsed);
+            if (token.getPassThroughBody() != null) {
+                return IamToken.builder()
+                        .expiresIn(expiresIn)
+                        .passThroughBody(
+                                TokenJsonFilter.withExpiresIn(
+                                        token.getPassThroughBody(), expiresIn))
+                        .build();
+            }
+            return IamToken.builder()
+                    .accessToken(token.getAccessToken())
+                    .tokenType(token.getTokenType())
+                    .expiresIn(expiresIn)
+                    .refreshToken(token.getRefreshToken())
+                    .build();
+        }
+    }
+
+    private record GraceExpiry(long graceNanos) implements Expiry<String, Entry> {
+
+        @Override
+        public long expireAfterCreate(String key, Entry entry, long currentTime) {
+            return Math.min(
+                    graceNanos, Duration.ofSeconds(entry.token().getExpiresIn()).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(
+                String key, Entry entry, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, entry, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(
+                String key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
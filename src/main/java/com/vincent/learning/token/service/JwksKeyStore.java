@@ -0,0 +1,146 @@
+package com.vincent.learning.token.service;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import jakarta.annotation.PreDestroy;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The signing keys of the realm, fetched from {root-path}/certs and kept as ready to use
+ * verifiers by kid.
+ *
+ * <p>The key set is fetched by the first introspection, then refreshed in the background, so a
+ * rotated key is usually known before the first token signed with it arrives. A service which
+ * never introspects never polls IAM. A kid which is still unknown triggers an extra refresh, but
+ * at most one per min refresh interval, so tokens with made up kids cannot flood IAM.
+ */
+@Component
+@Slf4j
+public class JwksKeyStore {
+
+    @Value("${iam.introspection.jwks.refresh-interval:5m}")
+    private Duration refreshInterval = Duration.ofMinutes(5);
+
+    @Value("${iam.introspection.jwks.min-refresh-interval:10s}")
+    private Duration minRefreshInterval = Duration.ofSeconds(10);
+
+    @Autowired private WebClientFactory webClientFactory;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile Map<String, JWSVerifier> verifiers = Map.of();
+    private volatile long lastRefreshNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+    private Mono<Map<String, JWSVerifier>> pending;
+    private volatile Disposable scheduled;
+
+    @PreDestroy
+    public void stop() {
+        if (scheduled != null) {
+            scheduled.dispose();
+        }
+    }
+
+    /** @return the verifier of the kid, or empty when the realm has no such signing key. */
+    public Mono<JWSVerifier> verifier(String kid) {
+        if (kid == null) {
+            return Mono.empty();
+        }
+        start();
+        JWSVerifier verifier = verifiers.get(kid);
+        if (verifier != null) {
+            return Mono.just(verifier);
+        }
+        if (System.nanoTime() - lastRefreshNanos < minRefreshInterval.toNanos()) {
+            return Mono.empty();
+        }
+        log.info("unknown kid {}, refresh jwks", kid);
+        return refresh().mapNotNull(keys -> keys.get(kid)).onErrorResume(e -> Mono.empty());
+    }
+
+    /** start the background refresh, the first fetch is left to the caller. */
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true)) {
+            return;
+        }
+        scheduled =
+                Flux.interval(refreshInterval, refreshInterval)
+                        .onBackpressureDrop()
+                        .concatMap(
+                                i ->
+                                        refresh()
+                                                .onErrorResume(
+                                                        e -> {
+                                                            log.warn(
+                                                                    "fail to refresh jwks: {}",
+                                                                    e.getMessage());
+                                                            return Mono.empty();
+                                                        }))
+                        .subscribe();
+    }
+
+    /** fetch the key set, the callers arriving while it is in flight share the same fetch. */
+    synchronized Mono<Map<String, JWSVerifier>> refresh() {
+        if (pending == null) {
+            lastRefreshNanos = System.nanoTime();
+            pending =
+                    webClientFactory
+                            .getWebClient()
+                            .get()
+                            .uri("/certs")
+                            .retrieve()
+                            .bodyToMono(String.class)
+                            .flatMap(jwks -> Mono.fromCallable(() -> parse(jwks)))
+                            .doOnNext(this::publish)
+                            .doFinally(signal -> clearPending())
+                            .share();
+        }
+        return pending;
+    }
+
+    private synchronized void clearPending() {
+        pending = null;
+    }
+
+    private void publish(Map<String, JWSVerifier> keys) {
+        if (!keys.keySet().equals(verifiers.keySet())) {
+            log.info("jwks is refreshed, signing keys {}", keys.keySet());
+        }
+        verifiers = keys;
+    }
+
+    static Map<String, JWSVerifier> parse(String jwks) throws ParseException, JOSEException {
+        Map<String, JWSVerifier> keys = new HashMap<>();
+        for (JWK key : JWKSet.parse(jwks).getKeys()) {
+            if (key.getKeyID() == null
+                    || (key.getKeyUse() != null && !KeyUse.SIGNATURE.equals(key.getKeyUse()))) {
+                continue;
+            }
+            if (key instanceof RSAKey rsaKey) {
+                keys.put(key.getKeyID(), new RSASSAVerifier(rsaKey));
+            } else if (key instanceof ECKey ecKey) {
+                keys.put(key.getKeyID(), new ECDSAVerifier(ecKey));
+            } else {
+                log.debug("skip the {} key {}", key.getKeyType(), key.getKeyID());
+            }
+        }
+        return Map.copyOf(keys);
+    }
+}
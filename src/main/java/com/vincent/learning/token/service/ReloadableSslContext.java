@@ -0,0 +1,98 @@
+package com.vincent.learning.token.service;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolNegotiator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * A client {@link SslContext} whose material can be swapped at runtime. Every new connection
+ * creates its engine from the current context, the connections already open keep the engine they
+ * were created with, so the pool is not thrown away when a certificate is rotated.
+ *
+ * <p>The context and its version are published together in one immutable snapshot, a reader
+ * either sees the previous snapshot or the new one, never a context which is still being built.
+ */
+public class ReloadableSslContext extends SslContext {
+    /** far longer than a reader needs from taking the snapshot to creating its engine. */
+    private static final Duration RELEASE_DELAY = Duration.ofSeconds(30);
+
+    public record Snapshot(long version, SslContext context) {}
+
+    private final Duration releaseDelay;
+    private volatile Snapshot current;
+
+    public ReloadableSslContext(SslContext initial) {
+        this(initial, RELEASE_DELAY);
+    }
+
+    ReloadableSslContext(SslContext initial, Duration releaseDelay) {
+        this.current = new Snapshot(0, initial);
+        this.releaseDelay = releaseDelay;
+    }
+
+    /**
+     * Publish a fully built context, the new connections use it from now on.
+     *
+     * <p>A reference counted (OpenSSL) context is released a grace period after it is replaced,
+     * however many swaps follow, so a reader which took the snapshot just before the swap can
+     * still create its engine. The engines already created hold their own reference.
+     *
+     * @return the version of the new context
+     */
+    public synchronized long swap(SslContext context) {
+        Snapshot retired = current;
+        current = new Snapshot(retired.version() + 1, context);
+        Schedulers.parallel()
+                .schedule(
+                        () -> ReferenceCountUtil.release(retired.context()),
+                        releaseDelay.toMillis(),
+                        TimeUnit.MILLISECONDS);
+        return current.version();
+    }
+
+    public Snapshot current() {
+        return current;
+    }
+
+    public long version() {
+        return current.version();
+    }
+
+    @Override
+    public boolean isClient() {
+        return current.context().isClient();
+    }
+
+    @Override
+    public List<String> cipherSuites() {
+        return current.context().cipherSuites();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ApplicationProtocolNegotiator applicationProtocolNegotiator() {
+        return current.context().applicationProtocolNegotiator();
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator alloc) {
+        return current.context().newEngine(alloc);
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator alloc, String peerHost, int peerPort) {
+        return current.context().newEngine(alloc, peerHost, peerPort);
+    }
+
+    @Override
+    public SSLSessionContext sessionContext() {
+        return current.context().sessionContext();
+    }
+}
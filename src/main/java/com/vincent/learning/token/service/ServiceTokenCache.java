@@ -0,0 +1,179 @@
+package com.vincent.learning.token.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Share the client_credentials tokens of a client among all its callers until they expire.
+ *
+ * <p>Once the refresh-ahead fraction of the lifetime has passed, the next caller still gets the
+ * cached token and triggers one background refresh of the key. No caller waits for the refresh,
+ * it is bounded by the request timeout of its own. When the refresh fails or brings no usable
+ * token the cached token keeps being served until it expires, and the refresh is retried after
+ * the retry interval, so an IAM outage does not turn into a retry storm. The key is the hashed
+ * client id, scope and secret, a wrong secret never matches a cached token.
+ */
+@Component
+@Slf4j
+public class ServiceTokenCache {
+
+    private final double refreshAhead;
+    private final long retryIntervalNanos;
+    private final Duration refreshTimeout;
+    private final Cache<String, Entry> cache;
+    private final Counter refreshedCounter;
+    private final Counter refreshFailedCounter;
+
+    public ServiceTokenCache(
+            @Value("${iam.token.client-credentials.refresh-ahead:0.8}") double refreshAhead,
+            @Value("${iam.token.client-credentials.retry-interval:5s}") Duration retryInterval,
+            @Value("${iam.client.request.timeout:10s}") Duration refreshTimeout,
+            @Value("${iam.token.client-credentials.max-entries:10000}") long maxEntries,
+            MeterRegistry meterRegistry) {
+        if (refreshAhead <= 0 || refreshAhead > 1) {
+            throw new IllegalArgumentException(
+                    "iam.token.client-credentials.refresh-ahead must be in (0, 1]");
+        }
+        this.refreshAhead = refreshAhead;
+        this.retryIntervalNanos = retryInterval.toNanos();
+        this.refreshTimeout = refreshTimeout;
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumSize(maxEntries)
+                        .expireAfter(new UntilExpiry())
+                        .recordStats()
+                        .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "iam.token.client.credentials");
+        this.refreshedCounter =
+                Counter.builder("iam.token.client.credentials.refresh")
+                        .tag("result", "success")
+                        .register(meterRegistry);
+        this.refreshFailedCounter =
+                Counter.builder("iam.token.client.credentials.refresh")
+                        .tag("result", "failure")
+                        .register(meterRegistry);
+    }
+
+    /**
+     * Return the cached token of the key, with expires_in counted down, or subscribe the upstream
+     * and cache its result.
+     *
+     * @param key the hashed client id, scope and secret
+     * @param upstream supply the IAM call, it is also used for the background refresh
+     */
+    public Mono<IamToken> getOrLoad(String key, Supplier<Mono<IamToken>> upstream) {
+        return Mono.defer(
+                () -> {
+                    Entry entry = cache.getIfPresent(key);
+                    long now = System.nanoTime();
+                    if (entry == null || now - entry.expiresAt >= 0) {
+                        return upstream.get().doOnNext(token -> store(key, token));
+                    }
+                    if (now - entry.refreshAt >= 0) {
+                        refreshInBackground(key, entry, upstream, now);
+                    }
+                    return Mono.just(entry.remaining(now));
+                });
+    }
+
+    private void refreshInBackground(
+            String key, Entry entry, Supplier<Mono<IamToken>> upstream, long now) {
+        if (now - entry.nextAttempt < 0 || !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("refresh the client credentials token ahead of expiry");
+        }
+        Mono.defer(upstream)
+                .timeout(refreshTimeout)
+                .doFinally(
+                        signal -> {
+                            // a stored token replaced the entry, otherwise it is retried later
+                            entry.nextAttempt = System.nanoTime() + retryIntervalNanos;
+                            entry.refreshing.set(false);
+                        })
+                .subscribe(
+                        token -> {
+                            refreshedCounter.increment();
+                            store(key, token);
+                        },
+                        e -> {
+                            refreshFailedCounter.increment();
+                            log.warn(
+                                    "fail to refresh the client credentials token, serve the"
+                                            + " cached one until it expires: {}",
+                                    e.getMessage());
+                        });
+    }
+
+    private void store(String key, IamToken token) {
+        if (token.getExpiresIn() <= 0) {
+            return;
+        }
+        cache.put(key, new Entry(token, System.nanoTime(), refreshAhead));
+    }
+
+    private static final class Entry {
+        private final IamToken token;
+        private final long issuedAt;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long nextAttempt;
+
+        private Entry(IamToken token, long issuedAt, double refreshAhead) {
+            long lifetime = TimeUnit.SECONDS.toNanos(token.getExpiresIn());
+            this.token = token;
+            this.issuedAt = issuedAt;
+            this.refreshAt = issuedAt + (long) (lifetime * refreshAhead);
+            this.expiresAt = issuedAt + lifetime;
+            this.nextAttempt = issuedAt;
+        }
+
+        private IamToken remaining(long now) {
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(now - issuedAt);
+            if (elapsed == 0) {
+                return token;
+            }
+            return IamToken.builder()
+                    .accessToken(token.getAccessToken())
+                    .tokenType(token.getTokenType())
+                    .expiresIn((int) (token.getExpiresIn() - elapsed))
+                    .refreshToken(token.getRefreshToken())
+                    .build();
+        }
+    }
+
+    private static class UntilExpiry implements Expiry<String, Entry> {
+
+        @Override
+        public long expireAfterCreate(String key, Entry entry, long currentTime) {
+            return Math.max(0, entry.expiresAt - currentTime);
+        }
+
+        @Override
+        public long expireAfterUpdate(
+                String key, Entry entry, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, entry, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(
+                String key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
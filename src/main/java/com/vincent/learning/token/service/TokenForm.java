@@ -0,0 +1,328 @@
+package com.vincent.learning.token.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Mono;
+
+/**
+ * The form of a token request to IAM, url encoded straight into one buffer of the connection, a
+ * pooled direct buffer with reactor netty. It replaces a MultiValueMap written by the generic form
+ * writer, which copies every value through strings, builders and byte arrays.
+ *
+ * <p>The encoding is the one of {@link java.net.URLEncoder} in UTF-8, as the form writer does.
+ * The segments which do not change per request, the grant type and the client id of the service,
+ * are encoded once and cached.
+ *
+ * <p>A secret parameter is kept as bytes and cleared once no IAM call can write it anymore: when
+ * the call sending the form terminates, see {@link #send(Supplier)}, or when the exchange ends
+ * without sending it, see {@link #release()}. Until then the form can be written again, reactor
+ * netty runs the inserter again when it resends a request. Only the copy of the form is cleared,
+ * the bound request still holds the base64 password as a string and the written buffers hold the
+ * encoded one, until they are collected or reused.
+ */
+public final class TokenForm implements BodyInserter<TokenForm, ClientHttpRequest> {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final String MASK = "***";
+    /** the parameters masked by the debug log, whether they are kept as bytes or not. */
+    private static final Set<String> SECRET_NAMES =
+            Set.of("password", "client_secret", "refresh_token");
+    private static final int MAX_PARAMETERS = 6;
+    private static final Map<String, Map<String, byte[]>> SEGMENTS = new ConcurrentHashMap<>();
+
+    private final String grantType;
+    private final byte[] grantTypeSegment;
+    private final String[] names = new String[MAX_PARAMETERS];
+    private final Object[] values = new Object[MAX_PARAMETERS];
+    private final boolean[] cached = new boolean[MAX_PARAMETERS];
+    private int size;
+    private boolean hasSecret;
+    private volatile boolean sending;
+    private volatile boolean cleared;
+
+    private TokenForm(String grantType) {
+        this.grantType = grantType;
+        this.grantTypeSegment = segment("grant_type", grantType);
+    }
+
+    public static TokenForm grant(String grantType) {
+        return new TokenForm(grantType);
+    }
+
+    public TokenForm param(String name, String value) {
+        return add(name, value, false);
+    }
+
+    /**
+     * A parameter of the service itself, e.g. its client_id, whose encoded segment is cached. Not
+     * for values coming from the request, the cache would grow without bound.
+     */
+    public TokenForm constant(String name, String value) {
+        return add(name, value, true);
+    }
+
+    /** the bytes are cleared when the form is done with, the caller must not keep using them. */
+    public TokenForm secret(String name, byte[] value) {
+        hasSecret = true;
+        return add(name, value, false);
+    }
+
+    public String getGrantType() {
+        return grantType;
+    }
+
+    /** @return the value of a string parameter, a secret one is masked, null when absent */
+    public String get(String name) {
+        if ("grant_type".equals(name)) {
+            return grantType;
+        }
+        for (int i = 0; i < size; i++) {
+            if (names[i].equals(name)) {
+                return masked(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Mono<Void> insert(ClientHttpRequest outputMessage, Context context) {
+        return Mono.defer(
+                () -> {
+                    DataBuffer body = encode(outputMessage.bufferFactory());
+                    if (outputMessage.getHeaders().getContentType() == null) {
+                        outputMessage
+                                .getHeaders()
+                                .setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+                    }
+                    outputMessage.getHeaders().setContentLength(body.readableByteCount());
+                    return outputMessage.writeWith(Mono.just(body));
+                });
+    }
+
+    /**
+     * Encode the form into one buffer of the exact size.
+     *
+     * @throws IllegalStateException when the secrets were already cleared
+     */
+    public DataBuffer encode(DataBufferFactory bufferFactory) {
+        if (hasSecret && cleared) {
+            throw new IllegalStateException("the secrets of the form are already cleared");
+        }
+        int length = grantTypeSegment.length;
+        for (int i = 0; i < size; i++) {
+            length += 1 + (cached[i] ? segment(i).length : segmentLength(i));
+        }
+
+        DataBuffer buffer = bufferFactory.allocateBuffer(length);
+        try {
+            buffer.write(grantTypeSegment);
+            for (int i = 0; i < size; i++) {
+                buffer.write((byte) '&');
+                if (cached[i]) {
+                    buffer.write(segment(i));
+                } else {
+                    encode(buffer, names[i]);
+                    buffer.write((byte) '=');
+                    if (values[i] instanceof byte[] bytes) {
+                        encode(buffer, bytes);
+                    } else {
+                        encode(buffer, (String) values[i]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            DataBufferUtils.release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Run the IAM call writing this form. The call may be shared by other exchanges and outlive
+     * the one which built the form, so the secrets are cleared when the call terminates or is
+     * cancelled, not when a caller gives up.
+     */
+    public <T> Mono<T> send(Supplier<Mono<T>> call) {
+        return Mono.defer(
+                        () -> {
+                            sending = true;
+                            return call.get();
+                        })
+                .doFinally(signal -> clear());
+    }
+
+    /** the exchange is done with the form, clear the secrets unless a call is still sending it. */
+    public void release() {
+        if (!sending) {
+            clear();
+        }
+    }
+
+    /** fill the secret bytes with zeros, the form cannot be written anymore. */
+    public void clear() {
+        if (!hasSecret || cleared) {
+            return;
+        }
+        cleared = true;
+        for (int i = 0; i < size; i++) {
+            if (values[i] instanceof byte[] bytes) {
+                Arrays.fill(bytes, (byte) 0);
+            }
+        }
+    }
+
+    /** the form with the secrets masked, for the debug log. */
+    @Override
+    public String toString() {
+        StringBuilder form = new StringBuilder("grant_type=").append(grantType);
+        for (int i = 0; i < size; i++) {
+            form.append('&').append(names[i]).append('=');
+            form.append(masked(i));
+        }
+        return form.toString();
+    }
+
+    private String masked(int index) {
+        return values[index] instanceof String value && !SECRET_NAMES.contains(names[index])
+                ? value
+                : MASK;
+    }
+
+    private TokenForm add(String name, Object value, boolean cache) {
+        if (value == null) {
+            return this;
+        }
+        if (size == MAX_PARAMETERS) {
+            throw new IllegalStateException("too many parameters in the token form");
+        }
+        names[size] = name;
+        values[size] = value;
+        cached[size] = cache;
+        size++;
+        return this;
+    }
+
+    private byte[] segment(int index) {
+        return segment(names[index], (String) values[index]);
+    }
+
+    private int segmentLength(int index) {
+        int length = encodedLength(names[index]) + 1;
+        if (values[index] instanceof byte[] bytes) {
+            return length + encodedLength(bytes);
+        }
+        return length + encodedLength((String) values[index]);
+    }
+
+    /** name=value encoded, computed once per pair, a hit allocates nothing. */
+    private static byte[] segment(String name, String value) {
+        return SEGMENTS.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(
+                        value,
+                        key -> {
+                            byte[] encodedName = encoded(name.getBytes(StandardCharsets.UTF_8));
+                            byte[] encodedValue = encoded(value.getBytes(StandardCharsets.UTF_8));
+                            byte[] segment = Arrays.copyOf(encodedName, encodedName.length + 1);
+                            segment[encodedName.length] = '=';
+                            return concat(segment, encodedValue);
+                        });
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] encoded(byte[] bytes) {
+        byte[] encoded = new byte[encodedLength(bytes)];
+        int position = 0;
+        for (byte b : bytes) {
+            if (isUnreserved(b)) {
+                encoded[position++] = b == ' ' ? (byte) '+' : b;
+            } else {
+                encoded[position++] = '%';
+                encoded[position++] = HEX[(b >> 4) & 0xF];
+                encoded[position++] = HEX[b & 0xF];
+            }
+        }
+        return encoded;
+    }
+
+    private static int encodedLength(byte[] bytes) {
+        int length = 0;
+        for (byte b : bytes) {
+            length += isUnreserved(b) ? 1 : 3;
+        }
+        return length;
+    }
+
+    private static int encodedLength(String value) {
+        if (!isAscii(value)) {
+            return encodedLength(value.getBytes(StandardCharsets.UTF_8));
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            length += isUnreserved((byte) value.charAt(i)) ? 1 : 3;
+        }
+        return length;
+    }
+
+    private static void encode(DataBuffer buffer, byte[] bytes) {
+        for (byte b : bytes) {
+            encode(buffer, b);
+        }
+    }
+
+    /** the ascii strings, nearly all of them, are encoded without a byte array copy. */
+    private static void encode(DataBuffer buffer, String value) {
+        if (!isAscii(value)) {
+            encode(buffer, value.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            encode(buffer, (byte) value.charAt(i));
+        }
+    }
+
+    private static void encode(DataBuffer buffer, byte b) {
+        if (isUnreserved(b)) {
+            buffer.write(b == ' ' ? (byte) '+' : b);
+        } else {
+            buffer.write((byte) '%');
+            buffer.write(HEX[(b >> 4) & 0xF]);
+            buffer.write(HEX[b & 0xF]);
+        }
+    }
+
+    /** the bytes URLEncoder leaves as they are, and the space which becomes a '+'. */
+    private static boolean isUnreserved(byte b) {
+        return (b >= 'a' && b <= 'z')
+                || (b >= 'A' && b <= 'Z')
+                || (b >= '0' && b <= '9')
+                || b == '.'
+                || b == '-'
+                || b == '*'
+                || b == '_'
+                || b == ' ';
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
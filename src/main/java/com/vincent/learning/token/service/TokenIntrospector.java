@@ -0,0 +1,248 @@
+package com.vincent.learning.token.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.vincent.learning.token.config.IamProperties;
+import com.vincent.learning.token.model.IntrospectionResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+
+/**
+ * Validate access tokens locally: the signature by the realm keys of {@link JwksKeyStore}, then
+ * exp, nbf, iss, aud and typ. An active result is cached until the token expires, so a token seen
+ * before is answered by one cache lookup and never reaches IAM. The cache is keyed by the token
+ * hashed with {@link CredentialHasher}, a heap dump holds no usable bearer token.
+ *
+ * <p>The issuers default to the realm of the root path on every IAM endpoint. The audiences have
+ * no default, without them every token is inactive, a token of any client of the realm would
+ * pass otherwise.
+ */
+@Component
+@Slf4j
+public class TokenIntrospector {
+    /** rough per entry overhead of the cache node and the response object. */
+    private static final int ENTRY_OVERHEAD = 320;
+
+    private static final String ACCESS_TOKEN_TYPE = "Bearer";
+    private static final String PROTOCOL_PATH = "/protocol/openid-connect";
+
+    private final Duration clockSkew;
+    private final List<String> issuers;
+    private final List<String> audiences;
+    private final JwksKeyStore jwksKeyStore;
+    private final CredentialHasher credentialHasher;
+    private final Cache<String, IntrospectionResponse> cache;
+    private final Counter activeCounter;
+    private final Counter inactiveCounter;
+
+    public TokenIntrospector(
+            @Value("${iam.introspection.clock-skew:30s}") Duration clockSkew,
+            @Value("${iam.introspection.issuers:}") List<String> issuers,
+            @Value("${iam.introspection.audiences:}") List<String> audiences,
+            @Value("${iam.introspection.cache.max-size:64MB}") DataSize maxSize,
+            IamProperties iamProperties,
+            JwksKeyStore jwksKeyStore,
+            CredentialHasher credentialHasher,
+            MeterRegistry meterRegistry) {
+        this.clockSkew = clockSkew;
+        this.issuers = issuers.isEmpty() ? realmIssuers(iamProperties) : issuers;
+        this.audiences = audiences;
+        this.jwksKeyStore = jwksKeyStore;
+        this.credentialHasher = credentialHasher;
+        this.cache =
+                Caffeine.newBuilder()
+                        .maximumWeight(maxSize.toBytes())
+                        .weigher((String key, IntrospectionResponse result) -> weight(key))
+                        .expireAfter(new UntilExpiry(clockSkew))
+                        .recordStats()
+                        .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "iam.introspection");
+        this.activeCounter =
+                Counter.builder("iam.introspection.result")
+                        .tag("active", "true")
+                        .register(meterRegistry);
+        this.inactiveCounter =
+                Counter.builder("iam.introspection.result")
+                        .tag("active", "false")
+                        .register(meterRegistry);
+        if (issuers.isEmpty()) {
+            log.info("iam.introspection.issuers is not set, accept the issuers {}", this.issuers);
+        }
+        if (audiences.isEmpty()) {
+            log.warn("iam.introspection.audiences is not set, every token is inactive");
+        }
+    }
+
+    /**
+     * The realm of the root path on every endpoint, as keycloak issues it to the clients calling
+     * that endpoint: the default port of the scheme is left out.
+     */
+    static List<String> realmIssuers(IamProperties iamProperties) {
+        String rootPath = iamProperties.getRootPath() == null ? "" : iamProperties.getRootPath();
+        String realmPath =
+                rootPath.endsWith(PROTOCOL_PATH)
+                        ? rootPath.substring(0, rootPath.length() - PROTOCOL_PATH.length())
+                        : rootPath;
+        boolean tls = iamProperties.isTlsEnabled();
+        int defaultPort = tls ? 443 : 80;
+        List<String> addresses = iamProperties.getEndpoints();
+        if (addresses == null || addresses.isEmpty()) {
+            addresses = List.of(iamProperties.getHost() + ":" + iamProperties.getPort());
+        }
+        return addresses.stream()
+                .filter(StringUtils::hasText)
+                .map(IamEndpoint::parse)
+                .map(
+                        endpoint ->
+                                (tls ? "https://" : "http://")
+                                        + (endpoint.getPort() == defaultPort
+                                                ? endpoint.getHost()
+                                                : endpoint.getName())
+                                        + realmPath)
+                .toList();
+    }
+
+    public Mono<IntrospectionResponse> introspect(String token) {
+        if (audiences.isEmpty()) {
+            return Mono.just(inactive("no audience is configured"));
+        }
+        String key = credentialHasher.hash(token);
+        IntrospectionResponse cached = cache.getIfPresent(key);
+        if (cached != null && !isExpired(cached.getExp(), System.currentTimeMillis())) {
+            activeCounter.increment();
+            return Mono.just(cached);
+        }
+
+        SignedJWT jwt;
+        try {
+            jwt = SignedJWT.parse(token);
+        } catch (ParseException e) {
+            return Mono.just(inactive("not a signed jwt"));
+        }
+        return jwksKeyStore
+                .verifier(jwt.getHeader().getKeyID())
+                .map(verifier -> validate(jwt, verifier))
+                .switchIfEmpty(Mono.fromSupplier(() -> inactive("unknown signing key")))
+                .doOnNext(
+                        result -> {
+                            if (result.isActive()) {
+                                activeCounter.increment();
+                                cache.put(key, result);
+                            }
+                        });
+    }
+
+    private IntrospectionResponse validate(SignedJWT jwt, JWSVerifier verifier) {
+        JWTClaimsSet claims;
+        try {
+            if (!jwt.verify(verifier)) {
+                return inactive("invalid signature");
+            }
+            claims = jwt.getJWTClaimsSet();
+        } catch (JOSEException | ParseException e) {
+            return inactive(e.getMessage());
+        }
+
+        long now = System.currentTimeMillis();
+        Date exp = claims.getExpirationTime();
+        if (exp == null || isExpired(exp.getTime() / 1000, now)) {
+            return inactive("expired");
+        }
+        Date nbf = claims.getNotBeforeTime();
+        if (nbf != null && nbf.getTime() - clockSkew.toMillis() > now) {
+            return inactive("not yet valid");
+        }
+        if (!issuers.contains(claims.getIssuer())) {
+            return inactive("unexpected issuer");
+        }
+        if (Collections.disjoint(audiences, claims.getAudience())
+                && !audiences.contains(stringClaim(claims, "azp"))) {
+            return inactive("unexpected audience");
+        }
+        String type = stringClaim(claims, "typ");
+        if (type != null && !ACCESS_TOKEN_TYPE.equalsIgnoreCase(type)) {
+            return inactive("not an access token");
+        }
+
+        return IntrospectionResponse.builder()
+                .active(true)
+                .scope(stringClaim(claims, "scope"))
+                .clientId(stringClaim(claims, "azp"))
+                .username(stringClaim(claims, "preferred_username"))
+                .tokenType(ACCESS_TOKEN_TYPE)
+                .exp(exp.getTime() / 1000)
+                .iat(epochSecond(claims.getIssueTime()))
+                .nbf(epochSecond(nbf))
+                .sub(claims.getSubject())
+                .aud(claims.getAudience().isEmpty() ? null : claims.getAudience())
+                .iss(claims.getIssuer())
+                .jti(claims.getJWTID())
+                .build();
+    }
+
+    private boolean isExpired(Long expSeconds, long nowMillis) {
+        return expSeconds == null || expSeconds * 1000 + clockSkew.toMillis() <= nowMillis;
+    }
+
+    private IntrospectionResponse inactive(String reason) {
+        inactiveCounter.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("token is inactive: {}", reason);
+        }
+        return IntrospectionResponse.builder().active(false).build();
+    }
+
+    private static String stringClaim(JWTClaimsSet claims, String name) {
+        Object value = claims.getClaim(name);
+        return value instanceof String string ? string : null;
+    }
+
+    private static Long epochSecond(Date date) {
+        return date == null ? null : date.getTime() / 1000;
+    }
+
+    private static int weight(String key) {
+        return ENTRY_OVERHEAD + key.length();
+    }
+
+    /** an entry lives until the token expires, with the clock skew. */
+    private record UntilExpiry(Duration clockSkew)
+            implements Expiry<String, IntrospectionResponse> {
+
+        @Override
+        public long expireAfterCreate(String key, IntrospectionResponse result, long currentTime) {
+            long millis =
+                    result.getExp() * 1000 + clockSkew.toMillis() - System.currentTimeMillis();
+            return Duration.ofMillis(Math.max(0, millis)).toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(
+                String key, IntrospectionResponse result, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, result, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(
+                String key, IntrospectionResponse result, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.model.IamToken;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Pass the token response of IAM through to the client without decoding it into an {@link
+ * IamToken} and encoding a TokenResponse again. The upstream buffers are scanned as they arrive,
+ * the members of the top level object whose name is allowed are copied byte for byte into the
+ * body of the response, every buffer is released once scanned.
+ *
+ * <p>The scanner is a small state machine over the bytes, it knows strings and escapes and skips
+ * nested values by depth, it does not validate more than it needs. The values are copied as they
+ * are, escapes included, so the output stays valid JSON. Only expires_in is parsed, the caches
+ * need it.
+ */
+@Component
+public class TokenJsonFilter {
+
+    private static final String EXPIRES_IN = "expires_in";
+    private static final int MAX_NAME_LENGTH = 64;
+
+    @Getter private final boolean enabled;
+    private final byte[][] prefixes;
+    private final int expiresInIndex;
+
+    public TokenJsonFilter(
+            @Value("${iam.token.pass-through.enabled:false}") boolean enabled,
+            @Value(
+                            "${iam.token.pass-through.fields:"
+                                    + "access_token,token_type,expires_in,refresh_token}")
+                    List<String> fields) {
+        this.enabled = enabled;
+        this.prefixes = new byte[fields.size()][];
+        for (int i = 0; i < prefixes.length; i++) {
+            // "name":
+            prefixes[i] = ("\"" + fields.get(i) + "\":").getBytes(StandardCharsets.UTF_8);
+        }
+        this.expiresInIndex = fields.indexOf(EXPIRES_IN);
+    }
+
+    /**
+     * Filter the body of a successful token response.
+     *
+     * @return a token holding the filtered body and expires_in, or a {@link DecodingException}
+     *     when the body is not a complete JSON object
+     */
+    public Mono<IamToken> filter(Flux<DataBuffer> body) {
+        return Mono.defer(
+                () -> {
+                    Scanner scanner = new Scanner();
+                    return body.doOnNext(
+                                    buffer -> {
+                                        try {
+                                            scanner.feed(buffer);
+                                        } finally {
+                                            DataBufferUtils.release(buffer);
+                                        }
+                                    })
+                            .then(Mono.fromCallable(scanner::finish));
+                });
+    }
+
+    /**
+     * Rewrite expires_in in a filtered body, for a cached token served later. The body is the
+     * compact output of the filter, the member is looked for at the top level only.
+     *
+     * @return a copy of the body with the given expires_in, or the body when it has none
+     */
+    static byte[] withExpiresIn(byte[] body, int expiresIn) {
+        byte[] prefix = ("\"" + EXPIRES_IN + "\":").getBytes(StandardCharsets.UTF_8);
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            if (inString) {
+                if (b == '"' && !escaped) {
+                    inString = false;
+                } else {
+                    escaped = !escaped && b == '\\';
+                }
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            } else if (b == '"') {
+                if (depth == 1
+                        && (body[i - 1] == '{' || body[i - 1] == ',')
+                        && Arrays.equals(
+                                body, i, Math.min(i + prefix.length, body.length), prefix, 0,
+                                prefix.length)) {
+                    return replaceValue(body, i + prefix.length, expiresIn);
+                }
+                inString = true;
+                escaped = false;
+            }
+        }
+        return body;
+    }
+
+    private static byte[] replaceValue(byte[] body, int start, int value) {
+        int end = start;
+        while (end < body.length && body[end] != ',' && body[end] != '}') {
+            end++;
+        }
+        byte[] digits = String.valueOf(value).getBytes(StandardCharsets.US_ASCII);
+        byte[] copy = new byte[body.length - (end - start) + digits.length];
+        System.arraycopy(body, 0, copy, 0, start);
+        System.arraycopy(digits, 0, copy, start, digits.length);
+        System.arraycopy(body, end, copy, start + digits.length, body.length - end);
+        return copy;
+    }
+
+    private enum State {
+        BEFORE_OBJECT,
+        BEFORE_NAME,
+        NAME,
+        AFTER_NAME,
+        BEFORE_VALUE,
+        STRING,
+        NESTED,
+        SCALAR,
+        AFTER_VALUE,
+        DONE
+    }
+
+    /** the state of one response, fed by one subscriber at a time. */
+    private final class Scanner {
+        private State state = State.BEFORE_OBJECT;
+        private final byte[] name = new byte[MAX_NAME_LENGTH];
+        private int nameLength;
+        private boolean escaped;
+        private boolean afterComma;
+        // the current value, whether any member was copied
+        private boolean copy;
+        private boolean copied;
+        private boolean parseExpiresIn;
+        // of a nested value only
+        private int depth;
+        private boolean inString;
+        private byte[] out;
+        private int length;
+        private int expiresIn;
+
+        void feed(DataBuffer buffer) {
+            int start = buffer.readPosition();
+            int end = start + buffer.readableByteCount();
+            if (out == null) {
+                // the first buffer usually holds the whole response, the filtered body is smaller
+                out = new byte[Math.max(end - start, 256)];
+            }
+            for (int i = start; i < end; i++) {
+                scan(buffer.getByte(i));
+            }
+        }
+
+        private void scan(byte b) {
+            switch (state) {
+                case BEFORE_OBJECT:
+                    if (b == '{') {
+                        write((byte) '{');
+                        state = State.BEFORE_NAME;
+                    } else if (!isWhitespace(b)) {
+                        throw unexpected(b);
+                    }
+                    break;
+                case BEFORE_NAME:
+                    if (b == '"') {
+                        nameLength = 0;
+                        escaped = false;
+                        state = State.NAME;
+                    } else if (b == '}' && !afterComma) {
+                        end();
+                    } else if (!isWhitespace(b)) {
+                        throw unexpected(b);
+                    }
+                    break;
+                case NAME:
+                    if (b == '"' && !escaped) {
+                        state = State.AFTER_NAME;
+                    } else {
+                        escaped = !escaped && b == '\\';
+                        if (nameLength < MAX_NAME_LENGTH) {
+                            name[nameLength] = b;
+                        }
+                        nameLength++;
+                    }
+                    break;
+                case AFTER_NAME:
+                    if (b == ':') {
+                        state = State.BEFORE_VALUE;
+                    } else if (!isWhitespace(b)) {
+                        throw unexpected(b);
+                    }
+                    break;
+                case BEFORE_VALUE:
+                    if (!isWhitespace(b)) {
+                        startValue(b);
+                    }
+                    break;
+                case STRING:
+                    copy(b);
+                    if (b == '"' && !escaped) {
+                        state = State.AFTER_VALUE;
+                    } else {
+                        escaped = !escaped && b == '\\';
+                    }
+                    break;
+                case NESTED:
+                    copy(b);
+                    if (inString) {
+                        if (b == '"' && !escaped) {
+                            inString = false;
+                        } else {
+                            escaped = !escaped && b == '\\';
+                        }
+                    } else if (b == '"') {
+                        inString = true;
+                        escaped = false;
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if ((b == '}' || b == ']') && --depth == 0) {
+                        state = State.AFTER_VALUE;
+                    }
+                    break;
+                case SCALAR:
+                    if (b == ',' || b == '}' || isWhitespace(b)) {
+                        state = State.AFTER_VALUE;
+                        scan(b);
+                    } else {
+                        copy(b);
+                        if (parseExpiresIn && b >= '0' && b <= '9') {
+                            expiresIn = expiresIn * 10 + (b - '0');
+                        }
+                    }
+                    break;
+                case AFTER_VALUE:
+                    if (b == ',') {
+                        state = State.BEFORE_NAME;
+                        afterComma = true;
+                    } else if (b == '}') {
+                        end();
+                    } else if (!isWhitespace(b)) {
+                        throw unexpected(b);
+                    }
+                    break;
+                case DONE:
+                    if (!isWhitespace(b)) {
+                        throw unexpected(b);
+                    }
+                    break;
+            }
+        }
+
+        private void startValue(byte b) {
+            int field = allowed();
+            copy = field >= 0;
+            parseExpiresIn = field >= 0 && field == expiresInIndex;
+            if (copy) {
+                if (copied) {
+                    write((byte) ',');
+                }
+                copied = true;
+                for (byte prefix : prefixes[field]) {
+                    write(prefix);
+                }
+            }
+            copy(b);
+            escaped = false;
+            if (b == '"') {
+                state = State.STRING;
+            } else if (b == '{' || b == '[') {
+                depth = 1;
+                inString = false;
+                state = State.NESTED;
+            } else {
+                state = State.SCALAR;
+                if (parseExpiresIn) {
+                    expiresIn = b >= '0' && b <= '9' ? b - '0' : 0;
+                }
+            }
+        }
+
+        /** @return the index of the current name in the allow-list, or -1 */
+        private int allowed() {
+            if (nameLength > MAX_NAME_LENGTH) {
+                return -1;
+            }
+            for (int i = 0; i < prefixes.length; i++) {
+                byte[] prefix = prefixes[i];
+                // the prefix is the name between a quote and a quote colon
+                if (prefix.length - 3 == nameLength
+                        && Arrays.equals(prefix, 1, prefix.length - 2, name, 0, nameLength)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void end() {
+            write((byte) '}');
+            state = State.DONE;
+        }
+
+        private void copy(byte b) {
+            if (copy) {
+                write(b);
+            }
+        }
+
+        private void write(byte b) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            out[length++] = b;
+        }
+
+        IamToken finish() {
+            if (state != State.DONE) {
+                throw new DecodingException("the token response is not a complete JSON object");
+            }
+            return IamToken.builder()
+                    .expiresIn(expiresIn)
+                    .passThroughBody(length == out.length ? out : Arrays.copyOf(out, length))
+                    .build();
+        }
+
+        private DecodingException unexpected(byte b) {
+            return new DecodingException(
+                    "unexpected character '" + (char) b + "' in the token response");
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
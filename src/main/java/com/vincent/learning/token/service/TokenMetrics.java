@@ -0,0 +1,156 @@
+package com.vincent.learning.token.service;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.exception.RestException;
+import com.vincent.learning.token.model.GrantType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.publisher.Mono;
+
+/**
+ * Timers of the token exchange: iam.token.exchange for the whole request and iam.token.upstream
+ * for every IAM call. Every tag value comes from a closed set, a grant type or an error code
+ * which is not known is tagged "other", no username or raw message ever becomes a tag. The
+ * percentile histograms are enabled by management.metrics.distribution.*.
+ */
+@Component
+public class TokenMetrics {
+    static final String OTHER = "other";
+    static final String NONE = "none";
+
+    /** our own codes and the OAuth 2.0 ones IAM answers. */
+    private static final Set<String> KNOWN_ERRORS =
+            Set.of(
+                    ErrorConstants.MISSING_MANDATORY,
+                    ErrorConstants.INVALID_GRANT_TYPE,
+                    ErrorConstants.PASSWORD_INVALID_FORMAT,
+                    ErrorConstants.INTERNAL_ERROR,
+                    ErrorConstants.DEADLINE_EXCEEDED,
+                    ErrorConstants.INVALID_GRANT,
+                    ErrorConstants.TOO_MANY_REQUESTS,
+                    ErrorConstants.IAM_UNAVAILABLE,
+                    "invalid_request",
+                    "invalid_client",
+                    "unauthorized_client",
+                    "unsupported_grant_type",
+                    "invalid_scope",
+                    "unknown_error");
+
+    private static final Set<String> GRANT_TYPES =
+            Arrays.stream(GrantType.values())
+                    .map(grantType -> grantType.name().toLowerCase(Locale.ROOT))
+                    .collect(Collectors.toUnmodifiableSet());
+
+    private final MeterRegistry meterRegistry;
+    private final Map<ExchangeTags, Timer> exchangeTimers = new ConcurrentHashMap<>();
+    private final Map<UpstreamTags, Timer> upstreamTimers = new ConcurrentHashMap<>();
+
+    public TokenMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    private record ExchangeTags(String grantType, String outcome, String error) {}
+
+    private record UpstreamTags(String grantType, String status) {}
+
+    /** time the whole exchange from its subscription, tagged by outcome and error code. */
+    public <T> Mono<T> timeExchange(String grantType, Mono<T> exchange) {
+        String grant = grantType(grantType);
+        return Mono.defer(
+                () -> {
+                    long start = System.nanoTime();
+                    return exchange.doOnSuccess(
+                                    result -> recordExchange(grant, "success", NONE, start))
+                            .doOnError(e -> recordExchange(grant, outcome(e), error(e), start))
+                            .doOnCancel(() -> recordExchange(grant, "cancelled", NONE, start));
+                });
+    }
+
+    /** time one IAM call, tagged by the response status, or timeout / io_error without one. */
+    public <T> Mono<T> timeUpstream(String grantType, Mono<T> call) {
+        String grant = grantType(grantType);
+        return Mono.defer(
+                () -> {
+                    long start = System.nanoTime();
+                    return call.doOnSuccess(result -> recordUpstream(grant, "200", start))
+                            .doOnError(e -> recordUpstream(grant, upstreamStatus(e), start));
+                });
+    }
+
+    private void recordExchange(String grantType, String outcome, String error, long start) {
+        exchangeTimers
+                .computeIfAbsent(
+                        new ExchangeTags(grantType, outcome, error),
+                        tags ->
+                                Timer.builder("iam.token.exchange")
+                                        .description("token requests, from receipt to response")
+                                        .tag("grant_type", tags.grantType())
+                                        .tag("outcome", tags.outcome())
+                                        .tag("error", tags.error())
+                                        .register(meterRegistry))
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void recordUpstream(String grantType, String status, long start) {
+        upstreamTimers
+                .computeIfAbsent(
+                        new UpstreamTags(grantType, status),
+                        tags ->
+                                Timer.builder("iam.token.upstream")
+                                        .description("token calls to IAM")
+                                        .tag("grant_type", tags.grantType())
+                                        .tag("status", tags.status())
+                                        .register(meterRegistry))
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    static String grantType(String grantType) {
+        if (grantType == null) {
+            return NONE;
+        }
+        String grant = grantType.toLowerCase(Locale.ROOT);
+        return GRANT_TYPES.contains(grant) ? grant : OTHER;
+    }
+
+    static String error(Throwable e) {
+        if (e instanceof RestException restException) {
+            return KNOWN_ERRORS.contains(restException.getError())
+                    ? restException.getError()
+                    : OTHER;
+        }
+        return ErrorConstants.INTERNAL_ERROR;
+    }
+
+    private static String outcome(Throwable e) {
+        if (e instanceof RestException restException
+                && restException.getStatus().is4xxClientError()) {
+            return "client_error";
+        }
+        return "server_error";
+    }
+
+    private static String upstreamStatus(Throwable e) {
+        if (e instanceof RestException restException) {
+            int status = restException.getStatus().value();
+            return status >= 100 && status < 600 ? String.valueOf(status) : OTHER;
+        }
+        if (e instanceof TimeoutException
+                || e.getCause() instanceof io.netty.handler.timeout.TimeoutException) {
+            return "timeout";
+        }
+        if (e instanceof WebClientRequestException) {
+            return "io_error";
+        }
+        return OTHER;
+    }
+}
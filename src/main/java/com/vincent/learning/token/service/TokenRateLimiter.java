@@ -0,0 +1,151 @@
+package com.vincent.learning.token.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.vincent.learning.token.config.RateLimitProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rate limit the token requests by user and by client ip, per grant type, on their way to IAM.
+ * A token served by the service token cache or the issued token cache costs no quota.
+ *
+ * <p>GCRA: the state of a key is one theoretical arrival time in an {@link AtomicLong}, updated by
+ * CAS, a request only allocates when its key is seen for the first time. Every grant type and
+ * dimension has its own table, bounded by the max keys and expiring a key once it is idle for
+ * longer than its burst window, when its state is the same as a fresh one anyway.
+ */
+@Component
+@Slf4j
+public class TokenRateLimiter {
+
+    private final boolean enabled;
+    private final Map<String, Limiter> userLimiters = new HashMap<>();
+    private final Map<String, Limiter> ipLimiters = new HashMap<>();
+
+    public TokenRateLimiter(RateLimitProperties properties, MeterRegistry meterRegistry) {
+        this.enabled = properties.isEnabled();
+        properties
+                .getGrants()
+                .forEach(
+                        (grantType, limits) -> {
+                            String grant = grantType.toLowerCase(Locale.ROOT);
+                            if (limits.getUser() != null) {
+                                userLimiters.put(
+                                        grant,
+                                        new Limiter(
+                                                limits.getUser(),
+                                                properties.getMaxKeys(),
+                                                counter(meterRegistry, grant, "user")));
+                            }
+                            if (limits.getIp() != null) {
+                                ipLimiters.put(
+                                        grant,
+                                        new Limiter(
+                                                limits.getIp(),
+                                                properties.getMaxKeys(),
+                                                counter(meterRegistry, grant, "ip")));
+                            }
+                        });
+        if (enabled) {
+            log.info(
+                    "rate limit token requests by user {} and by ip {}",
+                    userLimiters.keySet(),
+                    ipLimiters.keySet());
+        }
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String grantType, String key) {
+        return Counter.builder("iam.token.rate.limited")
+                .description("token requests rejected by the rate limit")
+                .tag("grant_type", grantType)
+                .tag("key", key)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param grantType the lower case grant type
+     * @param user the username or client id, null when the grant has none
+     * @param ip the client ip, null when unknown
+     * @return null when the request is accepted, or how long the client has to wait
+     */
+    public Duration acquire(String grantType, String user, String ip) {
+        if (!enabled) {
+            return null;
+        }
+        long now = System.nanoTime();
+        Limiter ipLimiter = ip == null ? null : ipLimiters.get(grantType);
+        if (ipLimiter != null) {
+            Duration wait = ipLimiter.acquire(ip, now);
+            if (wait != null) {
+                return wait;
+            }
+        }
+        Limiter userLimiter = user == null ? null : userLimiters.get(grantType);
+        if (userLimiter != null) {
+            // usernames are case insensitive in keycloak
+            Duration wait = userLimiter.acquire(user.toLowerCase(Locale.ROOT), now);
+            if (wait != null) {
+                // a request rejected for its user does not use up the quota of its ip
+                if (ipLimiter != null) {
+                    ipLimiter.refund(ip);
+                }
+                return wait;
+            }
+        }
+        return null;
+    }
+
+    static final class Limiter {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final Cache<String, AtomicLong> arrivals;
+        private final Counter rejectedCounter;
+
+        Limiter(RateLimitProperties.Limit limit, long maxKeys, Counter rejectedCounter) {
+            if (limit.getLimit() <= 0) {
+                throw new IllegalArgumentException("rate limit must be positive");
+            }
+            this.intervalNanos = limit.getPeriod().toNanos() / limit.getLimit();
+            this.toleranceNanos = intervalNanos * (Math.max(1, limit.getBurst()) - 1);
+            this.arrivals =
+                    Caffeine.newBuilder()
+                            .maximumSize(maxKeys)
+                            .expireAfterAccess(Duration.ofNanos(toleranceNanos + intervalNanos))
+                            .build();
+            this.rejectedCounter = rejectedCounter;
+        }
+
+        /** @return null when accepted, or how long until the key is accepted again */
+        Duration acquire(String key, long now) {
+            AtomicLong arrival = arrivals.get(key, k -> new AtomicLong(now));
+            while (true) {
+                long theoretical = arrival.get();
+                long base = theoretical - now > 0 ? theoretical : now;
+                long ahead = base - now;
+                if (ahead > toleranceNanos) {
+                    rejectedCounter.increment();
+                    return Duration.ofNanos(ahead - toleranceNanos);
+                }
+                if (arrival.compareAndSet(theoretical, base + intervalNanos)) {
+                    return null;
+                }
+            }
+        }
+
+        /** give back the emission of an accepted request which is rejected after all. */
+        void refund(String key) {
+            AtomicLong arrival = arrivals.getIfPresent(key);
+            if (arrival != null) {
+                arrival.addAndGet(-intervalNanos);
+            }
+        }
+    }
+}
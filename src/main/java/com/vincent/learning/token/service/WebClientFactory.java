@@ -2,13 +2,25 @@ package com.vincent.learning.token.service;
 
 import com.vincent.learning.token.config.CertificationMonitor;
 import com.vincent.learning.token.config.IamProperties;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.AttributeKey;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLException;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -19,11 +31,22 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.Connection;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.Http2AllocationStrategy;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 @Service
 @Slf4j
 public class WebClientFactory {
+    private static final AttributeKey<Long> SSL_CONTEXT_VERSION =
+            AttributeKey.valueOf("iamSslContextVersion");
+
     @Value("${iam.client.connection.timeout.ms:5000}")
     private int iamClientConnectionTimeout;
 
@@ -33,93 +56,268 @@ public class WebClientFactory {
     @Value("${iam.client.write.timeout.ms:5000}")
     private int iamClientWriteTimeout;
 
+    @Value("${iam.client.handshake.timeout.ms:5000}")
+    private int iamClientHandshakeTimeout;
+
+    /** JDK, OPENSSL or OPENSSL_REFCNT, the OpenSSL ones fall back to JDK without netty-tcnative. */
+    @Value("${iam.client.tls.provider:JDK}")
+    private SslProvider tlsProvider;
+
+    /** the enabled protocols, empty for the provider default. */
+    @Value("${iam.client.tls.protocols:}")
+    private List<String> tlsProtocols;
+
+    /** the enabled cipher suites, empty for the provider default. */
+    @Value("${iam.client.tls.ciphers:}")
+    private List<String> tlsCiphers;
+
+    /** the protocols offered by ALPN, e.g. h2,http/1.1, empty disables ALPN. */
+    @Value("${iam.client.tls.alpn:}")
+    private List<String> tlsAlpn;
+
+    /** the cached client sessions, 0 for the provider default. */
+    @Value("${iam.client.tls.session-cache-size:0}")
+    private long tlsSessionCacheSize;
+
+    /** how long a cached session can be resumed, 0 for the provider default. */
+    @Value("${iam.client.tls.session-timeout:0s}")
+    private Duration tlsSessionTimeout;
+
     @Value("${pm.codec.max-in-memory-size:1MB}")
     private DataSize maxInMemorySize;
 
+    @Value("${iam.client.pool.name:iam}")
+    private String poolName;
+
+    @Value("${iam.client.pool.max-connections:500}")
+    private int poolMaxConnections;
+
+    /** -1 means no limit, -2 means twice of the max connections. */
+    @Value("${iam.client.pool.pending-acquire-max-count:-2}")
+    private int poolPendingAcquireMaxCount;
+
+    @Value("${iam.client.pool.pending-acquire-timeout:5s}")
+    private Duration poolPendingAcquireTimeout;
+
+    @Value("${iam.client.pool.max-idle-time:30s}")
+    private Duration poolMaxIdleTime;
+
+    @Value("${iam.client.pool.max-life-time:10m}")
+    private Duration poolMaxLifeTime;
+
+    /** zero disables the background eviction, the idle connections are then checked on lease. */
+    @Value("${iam.client.pool.evict-in-background:30s}")
+    private Duration poolEvictInBackground;
+
+    /** fifo or lifo, lifo keeps the recently used connections hot and lets the others idle out. */
+    @Value("${iam.client.pool.lease-strategy:fifo}")
+    private String poolLeaseStrategy;
+
+    /**
+     * the connections kept open, so the requests do not pay the TLS handshake. They are re-warmed
+     * at the background eviction interval, at least twice per max idle time, and after the ssl
+     * context is refreshed.
+     */
+    @Value("${iam.client.pool.min-warm-connections:0}")
+    private int poolMinWarmConnections;
+
+    /** negotiate HTTP/2, h2 by ALPN over tls or h2c upgrade without tls, HTTP/1.1 as fallback. */
+    @Value("${iam.client.http2.enabled:false}")
+    private boolean http2Enabled;
+
+    @Value("${iam.client.http2.max-concurrent-streams:100}")
+    private long http2MaxConcurrentStreams;
+
+    /** the multiplexed connections, each carries up to max concurrent streams. */
+    @Value("${iam.client.http2.max-connections:4}")
+    private long http2MaxConnections;
+
+    @Value("${iam.client.http2.min-connections:1}")
+    private long http2MinConnections;
+
     @Autowired private IamProperties iamProperties;
 
     @Autowired private CertificationMonitor certificationMonitor;
 
+    @Autowired private IamLoadBalancer iamLoadBalancer;
+
     private boolean isClientAu = false;
-    private String clientPrivateKeyPath;
+    private List<File> clientCertFiles;
 
+    private ReloadableSslContext sslContext;
+    private ConnectionProvider connectionProvider;
     private WebClient webClient;
-    @Getter private boolean isRefreshTrigger;
+    private Disposable warming;
 
     @PostConstruct
     public void init() throws SSLException {
-        webClient = iamClient();
+        sslContext = new ReloadableSslContext(buildSslContext());
+        connectionProvider = connectionProvider();
+        List<IamEndpoint> endpoints = endpoints();
+        iamLoadBalancer.setEndpoints(endpoints);
+        webClient = getWebClient(sslContext, iamUrl(endpoints.get(0)), maxInMemorySize);
+        keepWarm();
         if (isClientAu) {
-            certificationMonitor.setMonitorPath(new File(clientPrivateKeyPath));
+            certificationMonitor.setMonitorFiles(clientCertFiles);
             certificationMonitor.startMonitor(this::refresh);
         }
     }
 
+    @PreDestroy
+    public void destroy() {
+        if (warming != null) {
+            warming.dispose();
+        }
+        if (connectionProvider != null) {
+            connectionProvider.dispose();
+        }
+    }
+
     public WebClient getWebClient() {
         return webClient;
     }
 
-    public void refresh() {
-        try {
-            webClient = iamClient();
-            isRefreshTrigger = true;
-        } catch (Exception e) {
-            log.error("fail to refresh webclient", e);
+    /**
+     * Rebuild the ssl context from the current certificate files and swap it in. The new
+     * connections pick it up, the pooled connections built with the previous one are evicted when
+     * they are acquired or released next, so the in-flight requests are not interrupted.
+     *
+     * @return the version of the swapped context, once it is swapped
+     */
+    public Mono<Long> refresh() {
+        return Mono.fromCallable(this::buildSslContext)
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(sslContext::swap)
+                .doOnNext(version -> log.info("ssl context is refreshed to version {}", version))
+                // the stale connections are evicted, warm the floor up with the new context
+                .doOnNext(version -> warmUp().subscribe());
+    }
+
+    /** the version of the ssl context, it is increased by every successful refresh. */
+    public long getSslContextVersion() {
+        return sslContext.version();
+    }
+
+    /** the configured endpoints, or the single host and port. */
+    private List<IamEndpoint> endpoints() {
+        List<String> addresses = iamProperties.getEndpoints();
+        if (addresses == null || addresses.isEmpty()) {
+            return List.of(new IamEndpoint(iamProperties.getHost(), iamProperties.getPort()));
         }
+        return addresses.stream().filter(StringUtils::hasText).map(IamEndpoint::parse).toList();
+    }
+
+    /** the base url, the balancer replaces its host and port by the selected endpoint. */
+    private String iamUrl(IamEndpoint endpoint) {
+        String protocol = iamProperties.isTlsEnabled() ? "https://" : "http://";
+        return protocol + endpoint.getName() + iamProperties.getRootPath();
     }
 
-    public WebClient iamClient() throws SSLException {
-        String iamUrl = iamProperties.getHost() + ":" + iamProperties.getPort();
-        String protocol = "http://";
-        String tlsEnable = iamProperties.getTlsEnable();
-        if (!StringUtils.hasText(tlsEnable) || tlsEnable.equalsIgnoreCase("enabled")) {
-            protocol = "https://";
+    /**
+     * The client builder with the configured provider, protocols, ciphers, ALPN and session cache.
+     * The sessions are cached per peer host and port, so a new connection to the same IAM node
+     * resumes the session instead of a full handshake.
+     */
+    private SslContextBuilder clientSslContextBuilder() {
+        SslContextBuilder builder =
+                SslContextBuilder.forClient()
+                        .sslProvider(sslProvider())
+                        .sessionCacheSize(tlsSessionCacheSize)
+                        .sessionTimeout(tlsSessionTimeout.toSeconds());
+        if (!tlsProtocols.isEmpty()) {
+            builder.protocols(tlsProtocols);
+        }
+        if (!tlsCiphers.isEmpty()) {
+            builder.ciphers(tlsCiphers);
+        } else if (http2Enabled) {
+            // RFC 7540 9.2.2 rejects the weak ciphers for h2
+            builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+        }
+        List<String> alpn = tlsAlpn;
+        if (alpn.isEmpty() && http2Enabled) {
+            alpn = List.of(ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
+        }
+        if (!alpn.isEmpty()) {
+            builder.applicationProtocolConfig(
+                    new ApplicationProtocolConfig(
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            alpn));
         }
-        iamUrl = protocol + iamUrl + iamProperties.getRootPath();
+        return builder;
+    }
+
+    private SslProvider sslProvider() {
+        if (tlsProvider != SslProvider.JDK && !OpenSsl.isAvailable()) {
+            log.warn(
+                    "{} tls provider is not available, fall back to JDK: {}",
+                    tlsProvider,
+                    OpenSsl.unavailabilityCause().toString());
+            return SslProvider.JDK;
+        }
+        return tlsProvider;
+    }
 
-        if (protocol.equals("https://")) {
+    /** it reads the certificate files, so never call it on the event loop. */
+    private SslContext buildSslContext() throws SSLException {
+        if (iamProperties.isTlsEnabled()) {
             String clientTrustCA = iamProperties.getClientTrustCa();
             String clientCert = iamProperties.getClientCert();
             if (StringUtils.hasText(clientTrustCA)) {
                 if (StringUtils.hasText(clientCert) && clientCert.split(",").length > 1) {
                     String[] clientCertArray = clientCert.split(",");
-                    SslContext sslContext =
-                            SslContextBuilder.forClient()
-                                    .keyManager(
-                                            new File(clientCertArray[0]),
-                                            new File(clientCertArray[1]))
-                                    .trustManager(new File(clientTrustCA))
-                                    .build();
                     isClientAu = true;
-                    clientPrivateKeyPath = clientCertArray[1];
-                    return getWebClient(sslContext, iamUrl, maxInMemorySize);
+                    clientCertFiles =
+                            List.of(
+                                    new File(clientCertArray[0]),
+                                    new File(clientCertArray[1]),
+                                    new File(clientTrustCA));
+                    return clientSslContextBuilder()
+                            .keyManager(new File(clientCertArray[0]), new File(clientCertArray[1]))
+                            .trustManager(new File(clientTrustCA))
+                            .build();
                 } else {
-                    SslContext sslContext =
-                            SslContextBuilder.forClient()
-                                    .trustManager(new File(clientTrustCA))
-                                    .build();
-                    return getWebClient(sslContext, iamUrl, maxInMemorySize);
+                    return clientSslContextBuilder()
+                            .trustManager(new File(clientTrustCA))
+                            .build();
                 }
             }
         }
 
-        return getWebClient(iamUrl, maxInMemorySize);
-    }
-
-    private WebClient getWebClient(String url, DataSize maxInMemorySize) throws SSLException {
-        SslContext sslContext =
-                SslContextBuilder.forClient()
-                        .trustManager(InsecureTrustManagerFactory.INSTANCE)
-                        .build();
-        return getWebClient(sslContext, url, maxInMemorySize);
+        return clientSslContextBuilder()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
     }
 
     private WebClient getWebClient(SslContext sslContext, String url, DataSize maxInMemorySize) {
 
         HttpClient httpClient =
-                HttpClient.create()
+                HttpClient.create(connectionProvider)
+                        .protocol(httpProtocols())
                         .wiretap(true)
-                        .secure(sslProviderBuilder -> sslProviderBuilder.sslContext(sslContext));
+                        // reactor.netty.http.client.* timers, the uri tag is the path only
+                        .metrics(true, WebClientFactory::uriTag)
+                        .doOnChannelInit(
+                                (observer, channel, remoteAddress) ->
+                                        channel.attr(SSL_CONTEXT_VERSION)
+                                                .set(this.sslContext.version()))
+                        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, iamClientConnectionTimeout)
+                        .responseTimeout(Duration.ofMillis(iamClientReadTimeout))
+                        .doOnRequest(
+                                (request, connection) ->
+                                        // removed again when the connection goes back to pool
+                                        connection.addHandlerLast(
+                                                new WriteTimeoutHandler(
+                                                        iamClientWriteTimeout,
+                                                        TimeUnit.MILLISECONDS)))
+                        .secure(
+                                sslProviderBuilder ->
+                                        sslProviderBuilder
+                                                .sslContext(sslContext)
+                                                .handshakeTimeout(
+                                                        Duration.ofMillis(
+                                                                iamClientHandshakeTimeout)));
         return WebClient.builder()
                 .clientConnector(new ReactorClientHttpConnector(httpClient))
                 .defaultHeaders(
@@ -129,6 +327,7 @@ public class WebClientFactory {
                             httpHeaders.add(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE);
                         })
                 .baseUrl(url)
+                .filter(iamLoadBalancer)
                 .codecs(
                         configurer ->
                                 configurer
@@ -137,4 +336,113 @@ public class WebClientFactory {
                                                 Math.toIntExact(maxInMemorySize.toBytes())))
                 .build();
     }
+
+    private static String uriTag(String uri) {
+        int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    private HttpProtocol[] httpProtocols() {
+        if (!http2Enabled) {
+            return new HttpProtocol[] {HttpProtocol.HTTP11};
+        }
+        return iamProperties.isTlsEnabled()
+                ? new HttpProtocol[] {HttpProtocol.H2, HttpProtocol.HTTP11}
+                : new HttpProtocol[] {HttpProtocol.H2C, HttpProtocol.HTTP11};
+    }
+
+    /**
+     * The dedicated pool of the IAM traffic. It keeps one pool per remote address, so every IAM
+     * endpoint has its own connections up to the max connections. Its gauges (active, idle,
+     * pending connections) and the acquire latency timer are published under
+     * reactor.netty.connection.provider with the tags name=iam.client.pool.name and
+     * remote.address, with HTTP/2 also the active and pending streams.
+     */
+    private ConnectionProvider connectionProvider() {
+        ConnectionProvider.Builder builder =
+                ConnectionProvider.builder(poolName)
+                        .maxConnections(poolMaxConnections)
+                        .pendingAcquireMaxCount(poolPendingAcquireMaxCount)
+                        .pendingAcquireTimeout(poolPendingAcquireTimeout)
+                        // the HTTP/2 pool applies them, the HTTP/1.1 one the predicate below
+                        .maxIdleTime(poolMaxIdleTime)
+                        .maxLifeTime(poolMaxLifeTime)
+                        .evictionPredicate(
+                                (connection, metadata) ->
+                                        isBuiltWithStaleSslContext(connection)
+                                                || metadata.idleTime() >= poolMaxIdleTime.toMillis()
+                                                || metadata.lifeTime()
+                                                        >= poolMaxLifeTime.toMillis())
+                        .metrics(true);
+        if (!poolEvictInBackground.isZero()) {
+            builder.evictInBackground(poolEvictInBackground);
+        }
+        if ("lifo".equalsIgnoreCase(poolLeaseStrategy)) {
+            builder.lifo();
+        } else {
+            builder.fifo();
+        }
+        if (http2Enabled) {
+            // the HTTP/2 connections are multiplexed, they are not retired by the ssl context
+            // version but at the max life time
+            builder.allocationStrategy(
+                    Http2AllocationStrategy.builder()
+                            .maxConcurrentStreams(http2MaxConcurrentStreams)
+                            .maxConnections(http2MaxConnections)
+                            .minConnections(http2MinConnections)
+                            .build());
+        }
+        return builder.build();
+    }
+
+    private boolean isBuiltWithStaleSslContext(Connection connection) {
+        Long version = connection.channel().attr(SSL_CONTEXT_VERSION).get();
+        return version != null && version != sslContext.version();
+    }
+
+    /**
+     * Keep the min warm connections open. The HTTP/1.1 pool has no minimum size, so the floor is
+     * held by sending the min warm connections requests concurrently, each of them needs its own
+     * connection. The idle ones are reused and their idle time starts over, the missing ones are
+     * opened.
+     */
+    private void keepWarm() {
+        if (poolMinWarmConnections <= 0) {
+            return;
+        }
+        Duration interval = poolMaxIdleTime.dividedBy(2);
+        if (!poolEvictInBackground.isZero() && poolEvictInBackground.compareTo(interval) < 0) {
+            interval = poolEvictInBackground;
+        }
+        warming =
+                Flux.interval(Duration.ZERO, interval)
+                        .onBackpressureDrop()
+                        .concatMap(i -> warmUp())
+                        .subscribe();
+        log.info("keep {} warm connections to iam, every {}", poolMinWarmConnections, interval);
+    }
+
+    /** the realm keys, a cheap request which every IAM node answers. */
+    private Mono<Void> warmUp() {
+        if (poolMinWarmConnections <= 0) {
+            return Mono.empty();
+        }
+        return Flux.range(0, poolMinWarmConnections)
+                .flatMap(
+                        i ->
+                                webClient
+                                        .get()
+                                        .uri("/certs")
+                                        .retrieve()
+                                        .toBodilessEntity()
+                                        .onErrorResume(
+                                                e -> {
+                                                    log.debug(
+                                                            "fail to warm up connection to iam: {}",
+                                                            e.getMessage());
+                                                    return Mono.empty();
+                                                }),
+                        poolMinWarmConnections)
+                .then();
+    }
 }
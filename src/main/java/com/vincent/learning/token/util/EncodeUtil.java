@@ -24,4 +24,9 @@ public class EncodeUtil {
     public static String decodeBase64(String base64Encoder) {
         return new String(Base64.getDecoder().decode(base64Encoder), StandardCharsets.UTF_8);
     }
+
+    /** Decode from base64 to the plaintext bytes, without an intermediate string. */
+    public static byte[] decodeBase64Bytes(String base64Encoder) {
+        return Base64.getDecoder().decode(base64Encoder);
+    }
 }
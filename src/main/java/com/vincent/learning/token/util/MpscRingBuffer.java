@@ -0,0 +1,97 @@
+package com.vincent.learning.token.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded ring of preallocated entries for many producers and one consumer, without lock. A
+ * producer claims a sequence with a CAS, fills the entry of the sequence in place and publishes
+ * it; the consumer handles the published entries in sequence order and frees their slots in one
+ * write per batch. Nothing is allocated once the ring is built.
+ *
+ * <p>A producer must publish every sequence it claimed, the consumer stops at the first one which
+ * is not published. An entry must not be touched after it is published, nor kept by the consumer
+ * after its handler returns.
+ */
+public final class MpscRingBuffer<E> {
+    private final Object[] entries;
+    private final int mask;
+    /** the last sequence published in every slot, the consumer waits for its own sequence. */
+    private final AtomicLongArray published;
+    /** the next sequence to claim. */
+    private final AtomicLong claimed = new AtomicLong();
+    /** the next sequence to consume, the slots before it are free. */
+    private volatile long consumed;
+
+    public MpscRingBuffer(int capacity, Supplier<E> factory) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("the capacity must be a power of two: " + capacity);
+        }
+        this.entries = new Object[capacity];
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = factory.get();
+            // a sequence of the lap before the first one, never equal to a sequence to consume
+            published.set(i, i - capacity);
+        }
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /** @return the claimed sequence, or -1 when the ring is full */
+    public long tryClaim() {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= entries.length) {
+                return -1;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        return sequence;
+    }
+
+    /** the entry of a claimed sequence, to be filled before it is published. */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /** hand the entry over to the consumer, the writes to it happen before its handling. */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, sequence);
+    }
+
+    /**
+     * Handle the published entries in order, by the consumer thread only.
+     *
+     * @return the number of entries handled, at most the limit
+     */
+    public int drain(Consumer<E> handler, int limit) {
+        long next = consumed;
+        int count = 0;
+        try {
+            while (count < limit && published.get((int) next & mask) == next) {
+                E entry = get(next);
+                // an entry whose handler throws is dropped, not handled again
+                next++;
+                count++;
+                handler.accept(entry);
+            }
+        } finally {
+            if (count > 0) {
+                consumed = next;
+            }
+        }
+        return count;
+    }
+
+    /** @return the entries claimed and not consumed yet, a snapshot */
+    public int size() {
+        return (int) Math.max(0, claimed.get() - consumed);
+    }
+}
@@ -137,8 +137,10 @@ class TokenIntegrationClientAuthHttpsTest {
                                 .returnResult()
                                 .getResponseBody()));
 
+        long sslContextVersion = webClientFactory.getSslContextVersion();
         copyFile();
-        await().atMost(4, TimeUnit.SECONDS).until(() -> webClientFactory.isRefreshTrigger());
+        await().atMost(4, TimeUnit.SECONDS)
+                .until(() -> webClientFactory.getSslContextVersion() > sslContextVersion);
         webClient
                 .post()
                 .uri("/iam/openid-connect/v1/token")
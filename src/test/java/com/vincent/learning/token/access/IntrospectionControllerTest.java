@@ -0,0 +1,77 @@
+package com.vincent.learning.token.access;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.model.IntrospectionResponse;
+import com.vincent.learning.token.service.TokenIntrospector;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.publisher.Mono;
+
+@WebFluxTest(controllers = IntrospectionController.class)
+class IntrospectionControllerTest {
+    @Autowired private WebTestClient webClient;
+
+    @MockBean private TokenIntrospector tokenIntrospector;
+
+    @Test
+    void testIntrospect() {
+        when(tokenIntrospector.introspect("token1"))
+                .thenReturn(
+                        Mono.just(
+                                IntrospectionResponse.builder()
+                                        .active(true)
+                                        .username("user1")
+                                        .exp(1700000000L)
+                                        .build()));
+        when(tokenIntrospector.introspect("token2"))
+                .thenReturn(Mono.just(IntrospectionResponse.builder().active(false).build()));
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/introspect")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData("token", "token1"))
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .json("{\"active\":true,\"username\":\"user1\",\"exp\":1700000000}");
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/introspect")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData("token", "token2"))
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .json("{\"active\":false}", true);
+    }
+
+    @Test
+    void testMissingToken() {
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/introspect")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData("token_type_hint", "access_token"))
+                .exchange()
+                .expectStatus()
+                .isBadRequest()
+                .expectBody()
+                .jsonPath("$.error")
+                .isEqualTo(ErrorConstants.MISSING_MANDATORY);
+        verify(tokenIntrospector, never()).introspect(any());
+    }
+}
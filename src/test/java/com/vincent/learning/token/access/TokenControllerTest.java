@@ -6,44 +6,97 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
 import com.vincent.learning.token.config.IamProperties;
+import com.vincent.learning.token.config.NegativeCacheProperties;
+import com.vincent.learning.token.config.RateLimitProperties;
 import com.vincent.learning.token.exception.ErrorConstants;
 import com.vincent.learning.token.exception.RestException;
 import com.vincent.learning.token.model.ErrorResponse;
 import com.vincent.learning.token.model.GrantType;
 import com.vincent.learning.token.model.IamToken;
 import com.vincent.learning.token.model.TokenResponse;
+import com.vincent.learning.token.service.AuthEventJournal;
+import com.vincent.learning.token.service.CredentialHasher;
+import com.vincent.learning.token.service.DeadlineResolver;
+import com.vincent.learning.token.service.FailedExchangeCache;
+import com.vincent.learning.token.service.IamCallGuard;
+import com.vincent.learning.token.service.InFlightExchangeRegistry;
+import com.vincent.learning.token.service.IssuedTokenCache;
+import com.vincent.learning.token.service.RefreshTokenPrecheck;
+import com.vincent.learning.token.service.ServiceTokenCache;
+import com.vincent.learning.token.service.TokenForm;
+import com.vincent.learning.token.service.TokenJsonFilter;
+import com.vincent.learning.token.service.TokenMetrics;
+import com.vincent.learning.token.service.TokenRateLimiter;
 import com.vincent.learning.token.service.WebClientFactory;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
-import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.mock.http.client.reactive.MockClientHttpRequest;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @WebFluxTest(controllers = TokenController.class)
+@Import({
+    InFlightExchangeRegistry.class,
+    IssuedTokenCache.class,
+    CredentialHasher.class,
+    DeadlineResolver.class,
+    IamCallGuard.class,
+    RefreshTokenPrecheck.class,
+    ServiceTokenCache.class,
+    TokenRateLimiter.class,
+    RateLimitProperties.class,
+    FailedExchangeCache.class,
+    NegativeCacheProperties.class,
+    TokenMetrics.class,
+    TokenJsonFilter.class,
+    AuthEventJournal.class,
+    TokenControllerTest.ResilienceConfig.class,
+    SimpleMeterRegistry.class
+})
 class TokenControllerTest {
     @Autowired private WebTestClient webClient;
 
+    @Autowired private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    @Autowired private MeterRegistry meterRegistry;
+
     @MockBean private IamProperties iamProperties;
 
     @MockBean private WebClientFactory webClientFactory;
+
+    @SpyBean private TokenJsonFilter tokenJsonFilter;
     @Mock private WebClient iamWebClient;
 
     @Mock private WebClient.RequestBodyUriSpec requestBodyUriMock;
@@ -51,10 +104,26 @@ class TokenControllerTest {
     @Mock private WebClient.RequestBodySpec requestBodyMock;
     @Mock private WebClient.RequestHeadersSpec requestHeadersMock;
 
+    private final List<String> sentForms = new ArrayList<>();
+
+    @TestConfiguration
+    static class ResilienceConfig {
+        @Bean
+        CircuitBreakerRegistry circuitBreakerRegistry() {
+            return CircuitBreakerRegistry.ofDefaults();
+        }
+
+        @Bean
+        BulkheadRegistry bulkheadRegistry() {
+            return BulkheadRegistry.ofDefaults();
+        }
+    }
+
     @BeforeEach
     public void init() {
         when(iamProperties.getClientId()).thenReturn("clientId");
         when(webClientFactory.getWebClient()).thenReturn(iamWebClient);
+        circuitBreakerRegistry.circuitBreaker(IamCallGuard.INSTANCE).reset();
     }
 
     @Test
@@ -91,24 +160,10 @@ class TokenControllerTest {
                                 .returnResult()
                                 .getResponseBody()));
 
-        ArgumentCaptor<BodyInserters.FormInserter<String>> bodyAc =
-                ArgumentCaptor.forClass(BodyInserters.FormInserter.class);
-        verify(requestBodyMock, times(1)).body(bodyAc.capture());
-        Object requestBody = ReflectionTestUtils.getField(bodyAc.getValue(), "data");
-        if (requestBody instanceof LinkedMultiValueMap) {
-            assertEquals(
-                    "password",
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("grant_type").get(0));
-            assertEquals(
-                    username,
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("username").get(0));
-            assertEquals(
-                    password,
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("password").get(0));
-            assertEquals(
-                    iamProperties.getClientId(),
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("client_id").get(0));
-        }
+        verify(requestBodyMock, times(1)).body(any());
+        assertEquals(
+                "grant_type=password&username=user1&password=passwd&client_id=clientId",
+                sentForms.get(0));
     }
 
     private static String encode(String password) {
@@ -147,23 +202,81 @@ class TokenControllerTest {
                                 .returnResult()
                                 .getResponseBody()));
 
-        ArgumentCaptor<BodyInserters.FormInserter<String>> bodyAc =
-                ArgumentCaptor.forClass(BodyInserters.FormInserter.class);
-        verify(requestBodyMock, times(1)).body(bodyAc.capture());
-        Object requestBody = ReflectionTestUtils.getField(bodyAc.getValue(), "data");
-        if (requestBody instanceof LinkedMultiValueMap) {
-            assertEquals(
-                    "refresh_token",
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("grant_type").get(0));
-            assertEquals(
-                    refreshToken,
-                    ((LinkedMultiValueMap<String, String>) requestBody)
-                            .get("refresh_token")
-                            .get(0));
-            assertEquals(
-                    iamProperties.getClientId(),
-                    ((LinkedMultiValueMap<String, String>) requestBody).get("client_id").get(0));
+        verify(requestBodyMock, times(1)).body(any());
+        assertEquals(
+                "grant_type=refresh_token&refresh_token=" + refreshToken + "&client_id=clientId",
+                sentForms.get(0));
+    }
+
+    @Test
+    void testPassThroughTokenResponse() {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("refresh_token", "refresh1");
+        formData.add("grant_type", GrantType.REFRESH_TOKEN.name());
+
+        doReturn(true).when(tokenJsonFilter).isEnabled();
+        mockNormalResponse();
+        // keycloak answers more members than the client gets, in two chunks
+        String iamBody =
+                "{\"access_token\":\"accessToken\",\"expires_in\":10,"
+                        + "\"refresh_expires_in\":1800,\"refresh_token\":\"refreshToken\","
+                        + "\"token_type\":\"Bearer\",\"session_state\":\"abc\"}";
+        when(responseMock.bodyToFlux(DataBuffer.class))
+                .thenReturn(
+                        Flux.just(iamBody.substring(0, 40), iamBody.substring(40))
+                                .map(
+                                        chunk ->
+                                                DefaultDataBufferFactory.sharedInstance.wrap(
+                                                        chunk.getBytes(StandardCharsets.UTF_8))));
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(formData))
+                .exchange()
+                .expectStatus()
+                .is2xxSuccessful()
+                .expectHeader()
+                .contentType(MediaType.APPLICATION_JSON)
+                .expectBody(String.class)
+                .isEqualTo(
+                        "{\"access_token\":\"accessToken\",\"expires_in\":10,"
+                                + "\"refresh_token\":\"refreshToken\",\"token_type\":\"Bearer\"}");
+
+        verify(responseMock, never()).bodyToMono(IamToken.class);
+    }
+
+    @Test
+    void testClientCredentialsGrant() {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("client_id", "service1");
+        formData.add("client_secret", "secret1");
+        formData.add("scope", "openid");
+        formData.add("grant_type", GrantType.CLIENT_CREDENTIALS.name());
+
+        mockNormalResponse();
+
+        for (int i = 0; i < 3; i++) {
+            webClient
+                    .post()
+                    .uri("/iam/openid-connect/v1/token")
+                    .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                    .body(BodyInserters.fromFormData(formData))
+                    .exchange()
+                    .expectStatus()
+                    .is2xxSuccessful()
+                    .expectBody()
+                    .jsonPath("$.access_token")
+                    .isEqualTo("accessToken");
         }
+
+        // served from the cache after the first call
+        verify(requestBodyMock, times(1)).body(any());
+        assertEquals(
+                "grant_type=client_credentials&client_id=service1&client_secret=secret1"
+                        + "&scope=openid",
+                sentForms.get(0));
     }
 
     @Test
@@ -197,6 +310,32 @@ class TokenControllerTest {
                                 .expectBody()
                                 .returnResult()
                                 .getResponseBody()));
+
+        // the exchange and the upstream call are timed with bounded tags
+        assertEquals(
+                1,
+                meterRegistry
+                        .get("iam.token.exchange")
+                        .tag("grant_type", "password")
+                        .tag("outcome", "client_error")
+                        .tag("error", ErrorConstants.INVALID_GRANT_TYPE)
+                        .timer()
+                        .count());
+        assertEquals(
+                1,
+                meterRegistry
+                        .get("iam.token.upstream")
+                        .tag("grant_type", "password")
+                        .tag("status", "401")
+                        .timer()
+                        .count());
+    }
+
+    /** the body written by the form, as the IAM call writes it. */
+    private static String formBody(TokenForm tokenForm) {
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.POST, "/token");
+        tokenForm.insert(request, null).block();
+        return request.getBodyAsString().block();
     }
 
     private void mockNormalResponse() {
@@ -210,7 +349,12 @@ class TokenControllerTest {
 
         when(iamWebClient.post()).thenReturn(requestBodyUriMock);
         when(requestBodyUriMock.uri("/token")).thenReturn(requestBodyMock);
-        when(requestBodyMock.body(any())).thenReturn(requestHeadersMock);
+        when(requestBodyMock.body(any()))
+                .thenAnswer(
+                        invocation -> {
+                            sentForms.add(formBody(invocation.getArgument(0)));
+                            return requestHeadersMock;
+                        });
         when(requestHeadersMock.header(any(), any())).thenReturn(requestHeadersMock);
         when(requestHeadersMock.retrieve()).thenReturn(responseMock);
         when(responseMock.onStatus(any(), any())).thenReturn(responseMock);
@@ -265,6 +409,17 @@ class TokenControllerTest {
 
         verifyBadRequest(formData, errorResponse);
 
+        formData = new LinkedMultiValueMap<>();
+        formData.add("grant_type", GrantType.CLIENT_CREDENTIALS.name());
+        formData.add("client_id", "service1");
+        errorResponse =
+                ErrorResponse.builder()
+                        .error(ErrorConstants.MISSING_MANDATORY)
+                        .message("client_secret is missing")
+                        .build();
+
+        verifyBadRequest(formData, errorResponse);
+
         formData = new LinkedMultiValueMap<>();
         formData.add("username", "user");
         errorResponse =
@@ -276,6 +431,60 @@ class TokenControllerTest {
         verifyBadRequest(formData, errorResponse);
     }
 
+    @Test
+    void testDeadlineExceeded() {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("refresh_token", "refresh1");
+        formData.add("grant_type", GrantType.REFRESH_TOKEN.name());
+
+        ErrorResponse errorResponse =
+                ErrorResponse.builder()
+                        .error(ErrorConstants.DEADLINE_EXCEEDED)
+                        .message("request deadline is already exceeded")
+                        .build();
+
+        assertEquals(
+                toJson(errorResponse),
+                new String(
+                        webClient
+                                .post()
+                                .uri("/iam/openid-connect/v1/token")
+                                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                                .header(DeadlineResolver.DEADLINE_HEADER, "1")
+                                .body(BodyInserters.fromFormData(formData))
+                                .exchange()
+                                .expectStatus()
+                                .isEqualTo(HttpStatus.GATEWAY_TIMEOUT)
+                                .expectBody()
+                                .returnResult()
+                                .getResponseBody()));
+        verify(iamWebClient, never()).post();
+    }
+
+    @Test
+    void testCircuitOpen() {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("refresh_token", "refresh1");
+        formData.add("grant_type", GrantType.REFRESH_TOKEN.name());
+        circuitBreakerRegistry.circuitBreaker(IamCallGuard.INSTANCE).transitionToOpenState();
+        mockNormalResponse();
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(formData))
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                .expectHeader()
+                .valueEquals(HttpHeaders.RETRY_AFTER, "60")
+                .expectBody()
+                .jsonPath("$.error")
+                .isEqualTo(ErrorConstants.IAM_UNAVAILABLE);
+        verify(responseMock, never()).bodyToMono(IamToken.class);
+    }
+
     @Test
     void testInvalidFormatOfPassword() {
         MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
@@ -0,0 +1,74 @@
+package com.vincent.learning.token.config;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+
+class CertificationMonitorTest {
+
+    @TempDir Path certDir;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CertificationMonitor monitor = new CertificationMonitor(meterRegistry);
+
+    @AfterEach
+    public void tearDown() {
+        monitor.stopMonitor();
+    }
+
+    @Test
+    void testCallbackOnlyWhenContentChanged() throws IOException {
+        Path cert = Files.writeString(certDir.resolve("client.crt"), "cert1");
+        Path key = Files.writeString(certDir.resolve("client.key"), "key1");
+        AtomicInteger refreshes = new AtomicInteger();
+        monitor.setMonitorFiles(List.of(cert.toFile(), key.toFile()));
+        monitor.startMonitor(() -> Mono.fromRunnable(refreshes::incrementAndGet));
+
+        // the same content, e.g. a re-mounted secret
+        Files.writeString(cert, "cert1");
+        await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> meterRegistry.get("iam.tls.rotation.unchanged").counter().count() > 0);
+        assertEquals(0, refreshes.get());
+
+        // a rotation touches both files, it is debounced into one refresh
+        Files.writeString(cert, "cert2");
+        Files.writeString(key, "key2");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> refreshes.get() > 0);
+        assertEquals(1, refreshes.get());
+        assertEquals(1, meterRegistry.get("iam.tls.rotation.latency").timer().count());
+    }
+
+    @Test
+    void testNoLatencyWhenNotApplied() throws IOException {
+        Path cert = Files.writeString(certDir.resolve("client.crt"), "cert1");
+        AtomicInteger refreshes = new AtomicInteger();
+        monitor.setMonitorFiles(List.of(cert.toFile()));
+        monitor.startMonitor(
+                () ->
+                        Mono.fromRunnable(refreshes::incrementAndGet)
+                                .then(Mono.error(new IllegalStateException("bad material"))));
+
+        Files.writeString(cert, "cert2");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> refreshes.get() > 0);
+        assertEquals(0, meterRegistry.get("iam.tls.rotation.latency").timer().count());
+    }
+
+    @Test
+    void testNotStartWithoutFile() {
+        AtomicInteger refreshes = new AtomicInteger();
+        monitor.setMonitorFiles(List.of(certDir.resolve("missing.crt").toFile()));
+        monitor.startMonitor(() -> Mono.fromRunnable(refreshes::incrementAndGet));
+        assertEquals(0, refreshes.get());
+    }
+}
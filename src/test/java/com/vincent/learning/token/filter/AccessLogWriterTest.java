@@ -0,0 +1,66 @@
+package com.vincent.learning.token.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AccessLogWriterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private long append(AccessLogWriter writer, String path, int status, String error) {
+        long sequence = writer.claim();
+        if (sequence >= 0) {
+            AccessLogRecord record = writer.get(sequence);
+            record.timestamp = 0;
+            record.method = "POST";
+            record.path = path;
+            record.status = status;
+            record.grantType = "password";
+            record.durationNanos = TimeUnit.MILLISECONDS.toNanos(12);
+            record.bytesIn = 42;
+            record.error = error;
+            writer.publish(sequence);
+        }
+        return sequence;
+    }
+
+    @Test
+    void testWriteJsonLines() {
+        AccessLogWriter writer =
+                new AccessLogWriter(8, 4, AccessLogWriter.WhenFull.DROP, out, true, meterRegistry);
+        writer.start();
+        append(writer, "/iam/openid-connect/v1/token", 200, null);
+        append(writer, "/a\"b\\é", 400, "invalid_request");
+        writer.stop();
+
+        assertEquals(
+                "{\"@timestamp\":\"1970-01-01T00:00:00Z\",\"method\":\"POST\","
+                        + "\"path\":\"/iam/openid-connect/v1/token\",\"status\":200,"
+                        + "\"grant_type\":\"password\",\"duration_us\":12000,\"bytes_in\":42}\n"
+                        + "{\"@timestamp\":\"1970-01-01T00:00:00Z\",\"method\":\"POST\","
+                        + "\"path\":\"/a\\\"b\\\\é\",\"status\":400,"
+                        + "\"grant_type\":\"password\",\"duration_us\":12000,\"bytes_in\":42,"
+                        + "\"error\":\"invalid_request\"}\n",
+                out.toString(StandardCharsets.UTF_8));
+        assertEquals(2, meterRegistry.counter("api.access.log.written").count());
+    }
+
+    @Test
+    void testDropWhenFull() {
+        // not started, nothing is drained
+        AccessLogWriter writer =
+                new AccessLogWriter(2, 4, AccessLogWriter.WhenFull.DROP, out, true, meterRegistry);
+        assertEquals(0, append(writer, "/", 200, null));
+        assertEquals(1, append(writer, "/", 200, null));
+        assertEquals(-1, append(writer, "/", 200, null));
+        assertEquals(
+                1, meterRegistry.counter("api.access.log.dropped", "reason", "ring_full").count());
+        assertEquals(2, meterRegistry.get("api.access.log.pending").gauge().value());
+    }
+}
@@ -0,0 +1,75 @@
+package com.vincent.learning.token.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+class BodyCaptureTest {
+
+    private final NettyDataBufferFactory bufferFactory =
+            new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+    private final SecretRedactor redactor = new SecretRedactor(List.of("password"));
+
+    @Test
+    void testCaptureUpToTheBudget() {
+        BodyCapture capture = new BodyCapture(24);
+        NettyDataBuffer first = buffer("grant_type=password&");
+        NettyDataBuffer second = buffer("username=user1&password=cGFzcw%3D%3D");
+
+        capture.capture(first);
+        capture.capture(second);
+        // the buffers are consumed and released by the application meanwhile
+        first.readPosition(first.writePosition());
+        DataBufferUtils.release(first);
+        DataBufferUtils.release(second);
+
+        assertEquals("grant_type=password&user... (56 bytes)", capture.format(redactor));
+        // the second buffer is retained although only 4 bytes of it are captured
+        assertEquals(1, second.getNativeBuffer().refCnt());
+        capture.release();
+        assertEquals(0, first.getNativeBuffer().refCnt());
+        assertEquals(0, second.getNativeBuffer().refCnt());
+    }
+
+    @Test
+    void testRedactAcrossBuffers() {
+        BodyCapture capture = new BodyCapture(4096);
+        NettyDataBuffer first = buffer("username=user1&pass");
+        NettyDataBuffer second = buffer("word=cGFzcw%3D%3D");
+
+        capture.capture(first);
+        capture.capture(second);
+
+        assertEquals("username=user1&password=***", capture.format(redactor));
+        capture.release();
+        DataBufferUtils.release(first);
+        DataBufferUtils.release(second);
+    }
+
+    @Test
+    void testNoCaptureAfterRelease() {
+        BodyCapture capture = new BodyCapture(4096);
+        capture.release();
+        NettyDataBuffer late = buffer("password=abc");
+
+        capture.capture(late);
+
+        assertEquals(1, late.getNativeBuffer().refCnt());
+        DataBufferUtils.release(late);
+        capture.release();
+        assertEquals(0, late.getNativeBuffer().refCnt());
+    }
+
+    private NettyDataBuffer buffer(String content) {
+        ByteBuf byteBuf = Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+        return bufferFactory.wrap(byteBuf);
+    }
+}
@@ -0,0 +1,69 @@
+package com.vincent.learning.token.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+class SecretRedactorTest {
+
+    private final SecretRedactor redactor =
+            new SecretRedactor(
+                    List.of("password", "client_secret", "access_token", "refresh_token", "token"));
+
+    @Test
+    void testRedactUrlEncodedBody() {
+        assertEquals(
+                "grant_type=password&username=user1&password=***&client_id=portal",
+                redact(
+                        "grant_type=password&username=user1&password=cGFzcw%3D%3D"
+                                + "&client_id=portal"));
+        assertEquals("token=***", redact("token=eyJhbGciOiJSUzI1NiJ9.e30.c2ln"));
+    }
+
+    @Test
+    void testRedactJson() {
+        assertEquals(
+                "{\"access_token\":\"***\",\"token_type\":\"Bearer\",\"expires_in\":300,"
+                        + "\"refresh_token\" : \"***\"}",
+                redact(
+                        "{\"access_token\":\"a.b\\\"c\",\"token_type\":\"Bearer\","
+                                + "\"expires_in\":300,\"refresh_token\" : \"r.s.t\"}"));
+        assertEquals("{\"password\":***,\"x\":1}", redact("{\"password\":1234,\"x\":1}"));
+    }
+
+    @Test
+    void testNameIsMatchedExactly() {
+        assertEquals(
+                "{\"token_type\":\"Bearer\",\"my_password\":\"visible\"}",
+                redact("{\"token_type\":\"Bearer\",\"my_password\":\"visible\"}"));
+    }
+
+    @Test
+    void testValueCutByTheBudget() {
+        // nothing of a value is logged once its name is seen
+        assertEquals("username=u&password=***", redact("username=u&password="));
+        assertEquals("{\"access_token\":\"***", redact("{\"access_token\":\"eyJhbGci"));
+    }
+
+    @Test
+    void testRedactDecodedForm() {
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("grant_type", "password");
+        form.add("username", "user1");
+        form.add("password", "cGFzcw==");
+
+        assertEquals(
+                "grant_type=password&username=user1&password=***", redactor.redact(form, 1024));
+        assertEquals("grant_type=pa...", redactor.redact(form, 13));
+    }
+
+    private String redact(String body) {
+        SecretRedactor.Redaction redaction = redactor.start(body.length());
+        redaction.write(body.getBytes(StandardCharsets.UTF_8));
+        return redaction.toString();
+    }
+}
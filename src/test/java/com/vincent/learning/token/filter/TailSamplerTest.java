@@ -0,0 +1,58 @@
+package com.vincent.learning.token.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.SignalType;
+
+class TailSamplerTest {
+
+    private static final long FAST = Duration.ofMillis(20).toNanos();
+
+    private final TailSampler sampler = new TailSampler(Duration.ofSeconds(1), 500, 0);
+
+    @Test
+    void testDropFastSuccess() {
+        assertNull(sampler.select(FAST, HttpStatus.OK, SignalType.ON_COMPLETE));
+        assertNull(sampler.select(FAST, HttpStatus.BAD_REQUEST, SignalType.ON_COMPLETE));
+    }
+
+    @Test
+    void testSelectTheTail() {
+        assertEquals(
+                TailSampler.SLOW,
+                sampler.select(
+                        Duration.ofMillis(1500).toNanos(), HttpStatus.OK, SignalType.ON_COMPLETE));
+        assertEquals(
+                "status 502", sampler.select(FAST, HttpStatus.BAD_GATEWAY, SignalType.ON_COMPLETE));
+        assertEquals(TailSampler.ERROR, sampler.select(FAST, null, SignalType.ON_ERROR));
+        assertEquals(TailSampler.CANCELLED, sampler.select(FAST, null, SignalType.CANCEL));
+    }
+
+    @Test
+    void testMinErrorStatus() {
+        TailSampler withClientErrors = new TailSampler(Duration.ofSeconds(1), 400, 0);
+        assertEquals(
+                "status 400",
+                withClientErrors.select(FAST, HttpStatus.BAD_REQUEST, SignalType.ON_COMPLETE));
+    }
+
+    @Test
+    void testRandomSample() {
+        TailSampler always = new TailSampler(Duration.ofSeconds(1), 500, 1);
+        assertEquals(
+                TailSampler.RANDOM, always.select(FAST, HttpStatus.OK, SignalType.ON_COMPLETE));
+
+        TailSampler half = new TailSampler(Duration.ofSeconds(1), 500, 0.5);
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (half.select(FAST, HttpStatus.OK, SignalType.ON_COMPLETE) != null) {
+                sampled++;
+            }
+        }
+        assertEquals(5_000, sampled, 500);
+    }
+}
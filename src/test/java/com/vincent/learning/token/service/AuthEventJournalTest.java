@@ -0,0 +1,160 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class AuthEventJournalTest {
+    /** the header and 10 records. */
+    private static final DataSize SEGMENT_SIZE =
+            DataSize.ofBytes(AuthEventSegment.HEADER_SIZE + 10 * AuthEventSegment.RECORD_SIZE);
+
+    @TempDir Path directory;
+
+    private AuthEventJournal journal(DataSize maxSize) {
+        return new AuthEventJournal(
+                true,
+                directory.toString(),
+                SEGMENT_SIZE,
+                Duration.ofHours(1),
+                Duration.ofDays(7),
+                maxSize,
+                64,
+                "key",
+                new SimpleMeterRegistry());
+    }
+
+    private List<AuthEvent> readAll() throws IOException {
+        List<AuthEvent> events = new ArrayList<>();
+        for (Path segment : AuthEventSegment.list(directory)) {
+            AuthEventSegment.read(segment, events::add);
+        }
+        return events;
+    }
+
+    @Test
+    void testWriteAndRead() throws IOException {
+        AuthEventJournal journal = journal(DataSize.ofGigabytes(1));
+        journal.start();
+        InetAddress clientAddress = InetAddress.getByName("10.0.0.1");
+        journal.append("password", "user1", clientAddress, 200, 12_345_000, 10_000_000);
+        journal.append("refresh_token", null, InetAddress.getByName("::1"), 400, 2_000_000, -1);
+        journal.append("authorization_code", null, null, 400, 1_000_000, -1);
+        journal.stop();
+
+        List<AuthEvent> events = readAll();
+        assertEquals(3, events.size());
+
+        AuthEvent password = events.get(0);
+        assertEquals("password", password.grantType());
+        assertEquals(200, password.status());
+        assertEquals(12_345, password.latencyMicros());
+        assertEquals(10_000, password.upstreamMicros());
+        assertEquals(clientAddress, password.clientAddress());
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(AuthEventSegment.userHasher(key).apply("user1"), password.userHash());
+
+        AuthEvent refresh = events.get(1);
+        assertEquals("refresh_token", refresh.grantType());
+        assertEquals(-1, refresh.upstreamMicros());
+        assertEquals(InetAddress.getByName("::1"), refresh.clientAddress());
+        assertNull(refresh.userHash());
+
+        AuthEvent unknown = events.get(2);
+        assertEquals("unknown", unknown.grantType());
+        assertNull(unknown.clientAddress());
+
+        // closed, the segment is cut to its records
+        Path segment = AuthEventSegment.list(directory).get(0);
+        assertEquals(
+                AuthEventSegment.HEADER_SIZE + 3 * AuthEventSegment.RECORD_SIZE,
+                Files.size(segment));
+    }
+
+    @Test
+    void testRollAndRetention() throws IOException {
+        // at most 3 full segments
+        AuthEventJournal journal = journal(DataSize.ofBytes(3 * SEGMENT_SIZE.toBytes()));
+        journal.start();
+        for (int i = 0; i < 45; i++) {
+            journal.append("password", "user" + i, null, 200, i * 1000L, -1);
+        }
+        journal.stop();
+
+        List<Path> segments = AuthEventSegment.list(directory);
+        assertEquals(3, segments.size());
+        List<AuthEvent> events = readAll();
+        assertEquals(25, events.size());
+        assertEquals(20, events.get(0).latencyMicros());
+        assertEquals(44, events.get(24).latencyMicros());
+    }
+
+    @Test
+    void testReadUnclosedSegment() throws IOException {
+        // a segment left at its full size, e.g. after a crash
+        AuthEventJournal journal = journal(DataSize.ofGigabytes(1));
+        journal.start();
+        journal.append("password", "user1", null, 200, 1000, -1);
+        journal.stop();
+        Path segment = AuthEventSegment.list(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(1), SEGMENT_SIZE.toBytes() - 1);
+        }
+
+        assertEquals(1, readAll().size());
+    }
+
+    @Test
+    void testHashKeyRequired() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new AuthEventJournal(
+                                true,
+                                directory.toString(),
+                                SEGMENT_SIZE,
+                                Duration.ofHours(1),
+                                Duration.ofDays(7),
+                                DataSize.ofGigabytes(1),
+                                64,
+                                "",
+                                new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void testDisabled() throws IOException {
+        AuthEventJournal journal =
+                new AuthEventJournal(
+                        false,
+                        directory.toString(),
+                        SEGMENT_SIZE,
+                        Duration.ofHours(1),
+                        Duration.ofDays(7),
+                        DataSize.ofGigabytes(1),
+                        64,
+                        "",
+                        new SimpleMeterRegistry());
+        journal.start();
+        journal.append("password", "user1", null, 200, 1000, -1);
+        journal.stop();
+
+        assertEquals(List.of(), AuthEventSegment.list(directory));
+    }
+}
@@ -0,0 +1,52 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+
+class DeadlineResolverTest {
+
+    private final DeadlineResolver resolver = new DeadlineResolver();
+
+    @Test
+    void testDefaultBudget() {
+        assertEquals(Duration.ofSeconds(10), resolver.resolve(new HttpHeaders()));
+    }
+
+    @Test
+    void testGrpcTimeout() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(DeadlineResolver.GRPC_TIMEOUT_HEADER, "500m");
+        assertEquals(Duration.ofMillis(500), resolver.resolve(headers));
+
+        // never longer than the configured request timeout
+        headers.set(DeadlineResolver.GRPC_TIMEOUT_HEADER, "1H");
+        assertEquals(Duration.ofSeconds(10), resolver.resolve(headers));
+
+        assertEquals(Duration.ofNanos(3), DeadlineResolver.parseGrpcTimeout("3n"));
+        assertNull(DeadlineResolver.parseGrpcTimeout("500"));
+        assertNull(DeadlineResolver.parseGrpcTimeout("123456789S"));
+        assertNull(DeadlineResolver.parseGrpcTimeout("5x"));
+    }
+
+    @Test
+    void testAbsoluteDeadline() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(DeadlineResolver.DEADLINE_HEADER, "1");
+        assertTrue(resolver.resolve(headers).isNegative());
+
+        headers.set(
+                DeadlineResolver.DEADLINE_HEADER,
+                String.valueOf(System.currentTimeMillis() + 2000));
+        Duration budget = resolver.resolve(headers);
+        assertTrue(budget.compareTo(Duration.ofSeconds(2)) <= 0);
+        assertTrue(budget.compareTo(Duration.ZERO) > 0);
+
+        headers.set(DeadlineResolver.DEADLINE_HEADER, "tomorrow");
+        assertEquals(Duration.ofSeconds(10), resolver.resolve(headers));
+    }
+}
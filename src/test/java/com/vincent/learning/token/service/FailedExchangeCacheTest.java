@@ -0,0 +1,63 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.vincent.learning.token.config.NegativeCacheProperties;
+import com.vincent.learning.token.exception.RestException;
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+
+class FailedExchangeCacheTest {
+
+    private FailedExchangeCache cache;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @BeforeEach
+    public void init() {
+        NegativeCacheProperties properties = new NegativeCacheProperties();
+        properties.setEnabled(true);
+        cache = new FailedExchangeCache(properties, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void testReplayInvalidGrant() {
+        for (int i = 0; i < 5; i++) {
+            Mono<IamToken> exchange =
+                    cache.getOrLoad("key", () -> failure("invalid_grant", HttpStatus.UNAUTHORIZED));
+            RestException e = assertThrows(RestException.class, exchange::block);
+            assertEquals("invalid_grant", e.getError());
+            assertEquals("Invalid user credentials", e.getErrorMessage());
+            assertEquals(HttpStatus.UNAUTHORIZED, e.getStatus());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testNotCacheTransientError() {
+        assertNotCached("invalid_grant", HttpStatus.TOO_MANY_REQUESTS);
+        assertNotCached("invalid_grant", HttpStatus.REQUEST_TIMEOUT);
+        assertNotCached("invalid_grant", HttpStatus.SERVICE_UNAVAILABLE);
+        // no ttl for the code
+        assertNotCached("invalid_scope", HttpStatus.BAD_REQUEST);
+    }
+
+    private void assertNotCached(String error, HttpStatus status) {
+        calls.set(0);
+        for (int i = 0; i < 2; i++) {
+            Mono<IamToken> exchange = cache.getOrLoad(error + status, () -> failure(error, status));
+            assertThrows(RestException.class, exchange::block);
+        }
+        assertEquals(2, calls.get());
+    }
+
+    private Mono<IamToken> failure(String error, HttpStatus status) {
+        calls.incrementAndGet();
+        return Mono.error(new RestException(error, "Invalid user credentials", status));
+    }
+}
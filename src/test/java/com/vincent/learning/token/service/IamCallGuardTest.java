@@ -0,0 +1,96 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.exception.RestException;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class IamCallGuardTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private IamCallGuard guard;
+
+    @BeforeEach
+    public void init() {
+        CircuitBreakerConfig circuitBreakerConfig =
+                CircuitBreakerConfig.custom()
+                        .slidingWindowSize(4)
+                        .minimumNumberOfCalls(4)
+                        .waitDurationInOpenState(Duration.ofSeconds(30))
+                        .recordException(new IamFailurePredicate())
+                        .build();
+        BulkheadConfig bulkheadConfig =
+                BulkheadConfig.custom()
+                        .maxConcurrentCalls(1)
+                        .maxWaitDuration(Duration.ZERO)
+                        .build();
+        meterRegistry = new SimpleMeterRegistry();
+        guard =
+                new IamCallGuard(
+                        CircuitBreakerRegistry.of(circuitBreakerConfig),
+                        BulkheadRegistry.of(bulkheadConfig),
+                        meterRegistry);
+    }
+
+    @Test
+    void testOpenAfterFailuresAndFailFast() {
+        for (int i = 0; i < 4; i++) {
+            Mono<String> failure =
+                    guard.protect(Mono.error(new IllegalStateException("connection reset")));
+            assertThrows(IllegalStateException.class, failure::block);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, guard.getState());
+
+        RestException e =
+                assertThrows(RestException.class, () -> guard.protect(Mono.just("ok")).block());
+        assertEquals(ErrorConstants.IAM_UNAVAILABLE, e.getError());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        assertEquals(Duration.ofSeconds(30), e.getRetryAfter());
+        assertEquals(1.0, count("circuit_open"));
+    }
+
+    @Test
+    void testClientErrorIsNotFailure() {
+        for (int i = 0; i < 4; i++) {
+            Mono<String> rejected =
+                    guard.protect(
+                            Mono.error(
+                                    new RestException(
+                                            "invalid_grant", "invalid", HttpStatus.UNAUTHORIZED)));
+            assertThrows(RestException.class, rejected::block);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, guard.getState());
+    }
+
+    @Test
+    void testBulkheadFull() {
+        Sinks.One<String> pending = Sinks.one();
+        guard.protect(pending.asMono()).subscribe();
+
+        RestException e =
+                assertThrows(RestException.class, () -> guard.protect(Mono.just("ok")).block());
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        assertEquals(Duration.ofSeconds(1), e.getRetryAfter());
+        assertEquals(1.0, count("bulkhead_full"));
+
+        pending.tryEmitValue("ok");
+        assertEquals("ok", guard.protect(Mono.just("ok")).block());
+    }
+
+    private double count(String reason) {
+        return meterRegistry.get("iam.call.rejected").tag("reason", reason).counter().count();
+    }
+}
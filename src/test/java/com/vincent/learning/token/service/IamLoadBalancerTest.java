@@ -0,0 +1,108 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+class IamLoadBalancerTest {
+
+    private final ClientRequest request =
+            ClientRequest.create(HttpMethod.POST, URI.create("http://iam:8080/auth/token")).build();
+
+    private SimpleMeterRegistry meterRegistry;
+    private IamLoadBalancer balancer;
+    private IamEndpoint healthy;
+    private IamEndpoint degraded;
+
+    @BeforeEach
+    public void init() {
+        meterRegistry = new SimpleMeterRegistry();
+        balancer = new IamLoadBalancer(meterRegistry);
+        healthy = new IamEndpoint("iam-0", 8080);
+        degraded = new IamEndpoint("iam-1", 8080);
+        balancer.setEndpoints(List.of(healthy, degraded));
+    }
+
+    @Test
+    void testPreferLowerLatency() {
+        long now = System.nanoTime();
+        long decay = TimeUnit.SECONDS.toNanos(10);
+        healthy.recordSuccess(TimeUnit.MILLISECONDS.toNanos(5), now, decay);
+        degraded.recordSuccess(TimeUnit.MILLISECONDS.toNanos(200), now, decay);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(healthy, balancer.select());
+        }
+
+        // until the healthy one has many more requests outstanding
+        healthy.getOutstanding().set(100);
+        assertSame(degraded, balancer.select());
+    }
+
+    @Test
+    void testEjectAfterConsecutiveFailures() {
+        List<String> hosts = new ArrayList<>();
+        ExchangeFunction iam =
+                routed -> {
+                    hosts.add(routed.url().getHost());
+                    HttpStatus status =
+                            degraded.getHost().equals(routed.url().getHost())
+                                    ? HttpStatus.SERVICE_UNAVAILABLE
+                                    : HttpStatus.OK;
+                    return Mono.just(ClientResponse.create(status).build());
+                };
+
+        for (int i = 0; i < 50; i++) {
+            balancer.filter(request, iam).block();
+        }
+
+        assertTrue(degraded.isEjected(System.nanoTime()));
+        assertEquals(5, hosts.stream().filter(degraded.getHost()::equals).count());
+        assertEquals("iam-0", hosts.get(hosts.size() - 1));
+        assertEquals(0, healthy.getOutstanding().get());
+        assertEquals(0, degraded.getOutstanding().get());
+        assertEquals(
+                1.0,
+                meterRegistry
+                        .get("iam.endpoint.ejected")
+                        .tag("endpoint", "iam-1:8080")
+                        .gauge()
+                        .value());
+    }
+
+    @Test
+    void testNotEjectOverMaxPercent() {
+        IamEndpoint single = new IamEndpoint("iam", 8080);
+        balancer.setEndpoints(List.of(single));
+        ExchangeFunction iam = routed -> Mono.error(new IllegalStateException("connection reset"));
+
+        for (int i = 0; i < 10; i++) {
+            balancer.filter(request, iam).onErrorResume(e -> Mono.empty()).block();
+        }
+
+        assertFalse(single.isEjected(System.nanoTime()));
+        assertEquals(0, single.getOutstanding().get());
+    }
+
+    @Test
+    void testParseEndpoint() {
+        IamEndpoint endpoint = IamEndpoint.parse("keycloak-1.iam.svc:8443");
+        assertEquals("keycloak-1.iam.svc", endpoint.getHost());
+        assertEquals(8443, endpoint.getPort());
+    }
+}
@@ -0,0 +1,79 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class InFlightExchangeRegistryTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private InFlightExchangeRegistry registry;
+
+    @BeforeEach
+    public void init() {
+        meterRegistry = new SimpleMeterRegistry();
+        registry = new InFlightExchangeRegistry(meterRegistry);
+    }
+
+    @Test
+    void testConcurrentCallsShareUpstream() {
+        AtomicInteger subscriptions = new AtomicInteger();
+        Sinks.One<IamToken> upstream = Sinks.one();
+        IamToken iamToken = IamToken.builder().accessToken("accessToken").expiresIn(10).build();
+
+        Mono<IamToken> first =
+                registry.execute("key", () -> counted(upstream.asMono(), subscriptions));
+        Mono<IamToken> second =
+                registry.execute("key", () -> counted(upstream.asMono(), subscriptions));
+
+        IamToken[] results = new IamToken[2];
+        first.subscribe(token -> results[0] = token);
+        second.subscribe(token -> results[1] = token);
+        upstream.tryEmitValue(iamToken);
+
+        assertEquals(1, subscriptions.get());
+        assertSame(iamToken, results[0]);
+        assertSame(iamToken, results[1]);
+        assertEquals(1.0, count("leader"));
+        assertEquals(1.0, count("joined"));
+    }
+
+    @Test
+    void testCompletedCallIsNotShared() {
+        AtomicInteger subscriptions = new AtomicInteger();
+        IamToken iamToken = IamToken.builder().accessToken("accessToken").build();
+
+        registry.execute("key", () -> counted(Mono.just(iamToken), subscriptions)).block();
+        registry.execute("key", () -> counted(Mono.just(iamToken), subscriptions)).block();
+
+        assertEquals(2, subscriptions.get());
+        assertEquals(0.0, meterRegistry.get("iam.token.single.flight.pending").gauge().value());
+    }
+
+    @Test
+    void testDifferentKeysAreNotShared() {
+        AtomicInteger subscriptions = new AtomicInteger();
+        Sinks.One<IamToken> upstream = Sinks.one();
+
+        registry.execute("key1", () -> counted(upstream.asMono(), subscriptions)).subscribe();
+        registry.execute("key2", () -> counted(upstream.asMono(), subscriptions)).subscribe();
+
+        assertEquals(2, subscriptions.get());
+        upstream.tryEmitEmpty();
+    }
+
+    private double count(String role) {
+        return meterRegistry.get("iam.token.single.flight").tag("role", role).counter().count();
+    }
+
+    private static Mono<IamToken> counted(Mono<IamToken> upstream, AtomicInteger subscriptions) {
+        return upstream.doOnSubscribe(s -> subscriptions.incrementAndGet());
+    }
+}
@@ -0,0 +1,112 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+
+class IssuedTokenCacheTest {
+
+    @Test
+    void testReplayRefreshToken() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        IssuedTokenCache cache =
+                new IssuedTokenCache(
+                        true, Duration.ofSeconds(5), DataSize.ofMegabytes(1), meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+        IamToken iamToken = IamToken.builder().accessToken("accessToken").expiresIn(10).build();
+
+        IamToken first = cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+        IamToken second = cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+
+        assertEquals(1, calls.get());
+        assertSame(first, second);
+        assertEquals(
+                1.0,
+                meterRegistry
+                        .get("cache.gets")
+                        .tag("cache", "iam.token.issued")
+                        .tag("result", "hit")
+                        .functionCounter()
+                        .count());
+    }
+
+    @Test
+    void testReplayCountsExpiresInDown() {
+        long issuedAt = System.nanoTime();
+        IamToken iamToken =
+                IamToken.builder()
+                        .accessToken("accessToken")
+                        .tokenType("Bearer")
+                        .expiresIn(300)
+                        .build();
+        IssuedTokenCache.Entry entry = new IssuedTokenCache.Entry(iamToken, issuedAt);
+
+        assertSame(iamToken, entry.remaining(issuedAt + TimeUnit.MILLISECONDS.toNanos(999)));
+        IamToken replayed = entry.remaining(issuedAt + TimeUnit.SECONDS.toNanos(3));
+        assertEquals(297, replayed.getExpiresIn());
+        assertEquals("accessToken", replayed.getAccessToken());
+        assertEquals("Bearer", replayed.getTokenType());
+
+        byte[] body =
+                "{\"access_token\":\"a\",\"expires_in\":300}".getBytes(StandardCharsets.UTF_8);
+        IamToken passThrough = IamToken.builder().expiresIn(300).passThroughBody(body).build();
+        IamToken replayedBody =
+                new IssuedTokenCache.Entry(passThrough, issuedAt)
+                        .remaining(issuedAt + TimeUnit.SECONDS.toNanos(3));
+        assertEquals(297, replayedBody.getExpiresIn());
+        assertEquals(
+                "{\"access_token\":\"a\",\"expires_in\":297}",
+                new String(replayedBody.getPassThroughBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testExpiredTokenIsNotCached() {
+        IssuedTokenCache cache =
+                new IssuedTokenCache(
+                        true,
+                        Duration.ofSeconds(5),
+                        DataSize.ofMegabytes(1),
+                        new SimpleMeterRegistry());
+        AtomicInteger calls = new AtomicInteger();
+        IamToken iamToken = IamToken.builder().accessToken("accessToken").expiresIn(0).build();
+
+        cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+        cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testDisabled() {
+        IssuedTokenCache cache =
+                new IssuedTokenCache(
+                        false,
+                        Duration.ofSeconds(5),
+                        DataSize.ofMegabytes(1),
+                        new SimpleMeterRegistry());
+        AtomicInteger calls = new AtomicInteger();
+        IamToken iamToken = IamToken.builder().accessToken("accessToken").expiresIn(10).build();
+
+        cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+        cache.getOrLoad("key", () -> upstream(iamToken, calls)).block();
+
+        assertEquals(2, calls.get());
+    }
+
+    private static Mono<IamToken> upstream(IamToken iamToken, AtomicInteger calls) {
+        return Mono.fromSupplier(
+                () -> {
+                    calls.incrementAndGet();
+                    return iamToken;
+                });
+    }
+}
@@ -0,0 +1,103 @@
+package com.vincent.learning.token.service;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+class JwksKeyStoreTest {
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicReference<String> jwks = new AtomicReference<>();
+    private JwksKeyStore keyStore;
+
+    @BeforeEach
+    public void init() {
+        WebClient iam =
+                WebClient.builder()
+                        .exchangeFunction(
+                                request -> {
+                                    fetches.incrementAndGet();
+                                    return Mono.just(
+                                            ClientResponse.create(HttpStatus.OK)
+                                                    .header(
+                                                            HttpHeaders.CONTENT_TYPE,
+                                                            MediaType.APPLICATION_JSON_VALUE)
+                                                    .body(jwks.get())
+                                                    .build());
+                                })
+                        .build();
+        WebClientFactory webClientFactory = mock(WebClientFactory.class);
+        when(webClientFactory.getWebClient()).thenReturn(iam);
+        keyStore = new JwksKeyStore();
+        ReflectionTestUtils.setField(keyStore, "webClientFactory", webClientFactory);
+    }
+
+    @Test
+    void testUnknownKidRefreshIsRateLimited() throws JOSEException {
+        jwks.set(jwks(new RSAKeyGenerator(2048).keyID("kid-1").generate()));
+        keyStore.refresh().block();
+        assertNotNull(keyStore.verifier("kid-1").block());
+        assertEquals(1, fetches.get());
+
+        // rotated after the last refresh, it is not picked up within the min refresh interval
+        jwks.set(jwks(new RSAKeyGenerator(2048).keyID("kid-2").generate()));
+        assertNull(keyStore.verifier("kid-2").block());
+        assertNull(keyStore.verifier("kid-3").block());
+        assertEquals(1, fetches.get());
+
+        long minuteAgo = System.nanoTime() - TimeUnit.MINUTES.toNanos(1);
+        ReflectionTestUtils.setField(keyStore, "lastRefreshNanos", minuteAgo);
+        assertNotNull(keyStore.verifier("kid-2").block());
+        assertNull(keyStore.verifier("kid-1").block());
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    void testBackgroundRefreshStartsOnFirstUse() throws JOSEException {
+        ReflectionTestUtils.setField(keyStore, "refreshInterval", Duration.ofMillis(50));
+        jwks.set(jwks(new RSAKeyGenerator(2048).keyID("kid-1").generate()));
+
+        assertNotNull(keyStore.verifier("kid-1").block());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> fetches.get() >= 3);
+        keyStore.stop();
+    }
+
+    @Test
+    void testSkipEncryptionKey() throws Exception {
+        RSAKey signing = new RSAKeyGenerator(2048).keyID("sig").keyUse(KeyUse.SIGNATURE).generate();
+        RSAKey encryption =
+                new RSAKeyGenerator(2048).keyID("enc").keyUse(KeyUse.ENCRYPTION).generate();
+
+        assertEquals(Set.of("sig"), JwksKeyStore.parse(jwks(signing, encryption)).keySet());
+    }
+
+    private static String jwks(RSAKey... keys) {
+        // only the public parts are serialized
+        return new JWKSet(List.<JWK>of(keys)).toString();
+    }
+}
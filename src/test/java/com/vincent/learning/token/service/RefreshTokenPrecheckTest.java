@@ -0,0 +1,74 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.model.ErrorResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+
+class RefreshTokenPrecheckTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RefreshTokenPrecheck precheck =
+            new RefreshTokenPrecheck(true, Duration.ofSeconds(30), meterRegistry);
+
+    @Test
+    void testPassValidToken() {
+        long exp = System.currentTimeMillis() / 1000 + 600;
+        assertNull(precheck.check(jwt("{\"exp\":" + exp + ",\"typ\":\"Refresh\"}")));
+        // offline tokens do not expire, unknown claims are skipped
+        assertNull(
+                precheck.check(
+                        jwt("{\"typ\":\"Offline\",\"realm_access\":{\"roles\":[\"a\"]}}")));
+        // within the clock skew
+        assertNull(precheck.check(jwt("{\"exp\":" + (exp - 610) + ",\"typ\":\"Refresh\"}")));
+        assertEquals(3.0, count("passed"));
+    }
+
+    @Test
+    void testRejectLocally() {
+        long exp = System.currentTimeMillis() / 1000 - 60;
+        assertError("Token is not active", jwt("{\"exp\":" + exp + ",\"typ\":\"Refresh\"}"));
+        assertError("Invalid refresh token. Token type is Bearer", jwt("{\"typ\":\"Bearer\"}"));
+        assertError("Invalid refresh token", "refresh1");
+        assertError("Invalid refresh token", "a.!!!.c");
+        assertError("Invalid refresh token", jwt("[1,2]"));
+        assertEquals(1.0, count("expired"));
+        assertEquals(1.0, count("wrong_type"));
+        assertEquals(3.0, count("malformed"));
+    }
+
+    @Test
+    void testDisabled() {
+        RefreshTokenPrecheck disabled =
+                new RefreshTokenPrecheck(false, Duration.ofSeconds(30), meterRegistry);
+        assertNull(disabled.check("refresh1"));
+    }
+
+    private void assertError(String message, String token) {
+        ErrorResponse error = precheck.check(token);
+        assertEquals(ErrorConstants.INVALID_GRANT, error.getError());
+        assertEquals(message, error.getMessage());
+    }
+
+    private double count(String outcome) {
+        return meterRegistry
+                .get("iam.token.refresh.precheck")
+                .tag("outcome", outcome)
+                .counter()
+                .count();
+    }
+
+    private static String jwt(String payload) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"HS256\"}".getBytes(StandardCharsets.UTF_8))
+                + "."
+                + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8))
+                + ".c2lnbmF0dXJl";
+    }
+}
@@ -0,0 +1,130 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCounted;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import org.junit.jupiter.api.Test;
+
+class ReloadableSslContextTest {
+
+    private static final int READERS = 8;
+    private static final int SWAPS = 200;
+
+    @Test
+    void testSwap() throws SSLException {
+        SslContext initial = newContext();
+        SslContext next = newContext();
+        ReloadableSslContext context = new ReloadableSslContext(initial);
+
+        assertEquals(0, context.version());
+        assertSame(initial, context.current().context());
+        assertEquals(1, context.swap(next));
+        assertSame(next, context.current().context());
+        assertTrue(context.isClient());
+    }
+
+    @Test
+    void testReleaseRetiredContextAfterGracePeriod() throws SSLException {
+        // an OpenSSL context is reference counted
+        SslContext initial =
+                mock(SslContext.class, withSettings().extraInterfaces(ReferenceCounted.class));
+        ReloadableSslContext context = new ReloadableSslContext(initial, Duration.ofMillis(200));
+
+        context.swap(newContext());
+        context.swap(newContext());
+
+        // not at the next swap, a reader may still hold the snapshot
+        verify((ReferenceCounted) initial, never()).release();
+        verify((ReferenceCounted) initial, timeout(5000)).release();
+    }
+
+    @Test
+    void testReadersNeverSeeHalfBuiltContext() throws Exception {
+        SslContext initial = newContext();
+        ReloadableSslContext context = new ReloadableSslContext(initial);
+        // every published version with the context it must be paired with
+        Map<Long, SslContext> published = new ConcurrentHashMap<>();
+        published.put(0L, initial);
+
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(READERS);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(
+                    executor.submit(
+                            () -> {
+                                started.countDown();
+                                long lastVersion = -1;
+                                int reads = 0;
+                                while (running.get()) {
+                                    ReloadableSslContext.Snapshot snapshot = context.current();
+                                    assertSame(
+                                            published.get(snapshot.version()), snapshot.context());
+                                    assertTrue(snapshot.version() >= lastVersion);
+                                    lastVersion = snapshot.version();
+
+                                    SSLEngine engine =
+                                            context.newEngine(
+                                                    ByteBufAllocator.DEFAULT, "localhost", 8443);
+                                    assertNotNull(engine);
+                                    assertTrue(engine.getUseClientMode());
+                                    assertTrue(context.cipherSuites().size() > 0);
+                                    reads++;
+                                }
+                                return reads;
+                            }));
+        }
+
+        Future<?> writer =
+                executor.submit(
+                        () -> {
+                            started.await();
+                            for (int i = 0; i < SWAPS; i++) {
+                                SslContext next = newContext();
+                                published.put(context.version() + 1, next);
+                                context.swap(next);
+                            }
+                            return null;
+                        });
+
+        writer.get(60, TimeUnit.SECONDS);
+        running.set(false);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+        }
+        executor.shutdown();
+        assertEquals(SWAPS, context.version());
+    }
+
+    private static SslContext newContext() throws SSLException {
+        return SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+    }
+}
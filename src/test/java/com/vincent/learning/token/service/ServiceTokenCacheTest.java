@@ -0,0 +1,150 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.vincent.learning.token.model.IamToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class ServiceTokenCacheTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testServeFromMemory() {
+        ServiceTokenCache cache =
+                new ServiceTokenCache(
+                        0.8, Duration.ofSeconds(5), Duration.ofSeconds(10), 100, meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+
+        for (int i = 0; i < 1000; i++) {
+            IamToken token = cache.getOrLoad("key", () -> upstream(calls, "token1", 300)).block();
+            assertEquals("token1", token.getAccessToken());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void testOneBackgroundRefreshAhead() throws InterruptedException {
+        // refresh after 10ms of a 1s token
+        ServiceTokenCache cache =
+                new ServiceTokenCache(
+                        0.01, Duration.ofSeconds(5), Duration.ofSeconds(10), 100, meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+        cache.getOrLoad("key", () -> upstream(calls, "token1", 1)).block();
+        Thread.sleep(20);
+
+        Sinks.One<IamToken> refresh = Sinks.one();
+        for (int i = 0; i < 100; i++) {
+            IamToken token =
+                    cache.getOrLoad(
+                                    "key",
+                                    () -> {
+                                        calls.incrementAndGet();
+                                        return refresh.asMono();
+                                    })
+                            .block();
+            // the cached token is served while the refresh is in flight
+            assertEquals("token1", token.getAccessToken());
+        }
+        assertEquals(2, calls.get());
+
+        refresh.tryEmitValue(IamToken.builder().accessToken("token2").expiresIn(300).build());
+        IamToken refreshed = cache.getOrLoad("key", () -> upstream(calls, "token3", 300)).block();
+        assertEquals("token2", refreshed.getAccessToken());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testServeStaleWhenRefreshFails() throws InterruptedException {
+        ServiceTokenCache cache =
+                new ServiceTokenCache(
+                        0.01, Duration.ofMinutes(1), Duration.ofSeconds(10), 100, meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+        cache.getOrLoad("key", () -> upstream(calls, "token1", 2)).block();
+        Thread.sleep(30);
+
+        for (int i = 0; i < 10; i++) {
+            IamToken token =
+                    cache.getOrLoad(
+                                    "key",
+                                    () -> {
+                                        calls.incrementAndGet();
+                                        return Mono.error(new IllegalStateException("iam down"));
+                                    })
+                            .block();
+            assertEquals("token1", token.getAccessToken());
+        }
+        // no retry within the retry interval
+        assertEquals(2, calls.get());
+        assertEquals(
+                1.0,
+                meterRegistry
+                        .get("iam.token.client.credentials.refresh")
+                        .tag("result", "failure")
+                        .counter()
+                        .count());
+    }
+
+    @Test
+    void testRetryRefreshWithoutUsableToken() throws InterruptedException {
+        ServiceTokenCache cache =
+                new ServiceTokenCache(
+                        0.01, Duration.ofMillis(10), Duration.ofSeconds(10), 100, meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+        cache.getOrLoad("key", () -> upstream(calls, "token1", 2)).block();
+        Thread.sleep(30);
+
+        // an empty answer and a token without lifetime are not stored
+        cache.getOrLoad("key", () -> Mono.fromRunnable(calls::incrementAndGet)).block();
+        Thread.sleep(30);
+        cache.getOrLoad("key", () -> upstream(calls, "token2", 0)).block();
+        Thread.sleep(30);
+        IamToken token = cache.getOrLoad("key", () -> upstream(calls, "token3", 300)).block();
+
+        assertEquals("token1", token.getAccessToken());
+        assertEquals(4, calls.get());
+        assertEquals("token3", cache.getOrLoad("key", Mono::empty).block().getAccessToken());
+    }
+
+    @Test
+    void testRefreshTimeout() throws InterruptedException {
+        ServiceTokenCache cache =
+                new ServiceTokenCache(
+                        0.01, Duration.ofMillis(10), Duration.ofMillis(50), 100, meterRegistry);
+        AtomicInteger calls = new AtomicInteger();
+        cache.getOrLoad("key", () -> upstream(calls, "token1", 2)).block();
+        Thread.sleep(30);
+
+        // no caller bounds the refresh, it times out on its own and is retried
+        cache.getOrLoad("key", () -> Mono.fromRunnable(calls::incrementAndGet).then(Mono.never()))
+                .block();
+        Thread.sleep(100);
+        cache.getOrLoad("key", () -> upstream(calls, "token2", 300)).block();
+
+        assertEquals(3, calls.get());
+        assertEquals(
+                1.0,
+                meterRegistry
+                        .get("iam.token.client.credentials.refresh")
+                        .tag("result", "failure")
+                        .counter()
+                        .count());
+    }
+
+    private static Mono<IamToken> upstream(AtomicInteger calls, String accessToken, int expiresIn) {
+        return Mono.fromSupplier(
+                () -> {
+                    calls.incrementAndGet();
+                    return IamToken.builder()
+                            .accessToken(accessToken)
+                            .tokenType("Bearer")
+                            .expiresIn(expiresIn)
+                            .build();
+                });
+    }
+}
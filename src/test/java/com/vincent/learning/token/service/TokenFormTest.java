@@ -0,0 +1,137 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.reactive.MockClientHttpRequest;
+import reactor.core.publisher.Sinks;
+
+class TokenFormTest {
+
+    @Test
+    void testEncodeLikeUrlEncoder() {
+        String username = "jöhn doe+1@example.com";
+        String password = "p@ss w0rd&=%中";
+        TokenForm tokenForm =
+                TokenForm.grant("password")
+                        .param("username", username)
+                        .secret("password", password.getBytes(StandardCharsets.UTF_8))
+                        .constant("client_id", "admin portal");
+
+        assertEquals(
+                "grant_type=password"
+                        + "&username="
+                        + URLEncoder.encode(username, StandardCharsets.UTF_8)
+                        + "&password="
+                        + URLEncoder.encode(password, StandardCharsets.UTF_8)
+                        + "&client_id=admin+portal",
+                write(tokenForm));
+    }
+
+    @Test
+    void testInsertSetsHeaders() {
+        TokenForm tokenForm = TokenForm.grant("refresh_token").param("refresh_token", "abc");
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.POST, "/token");
+        tokenForm.insert(request, null).block();
+
+        assertEquals(MediaType.APPLICATION_FORM_URLENCODED, request.getHeaders().getContentType());
+        assertEquals(
+                "grant_type=refresh_token&refresh_token=abc".length(),
+                request.getHeaders().getContentLength());
+    }
+
+    @Test
+    void testSecretZeroedWhenTheCallTerminates() {
+        byte[] password = "passwd".getBytes(StandardCharsets.UTF_8);
+        TokenForm tokenForm =
+                TokenForm.grant("password").param("username", "user1").secret("password", password);
+        Sinks.One<String> response = Sinks.one();
+        tokenForm.send(response::asMono).subscribe();
+
+        // the caller gives up, the call is shared and a resend writes the form again
+        tokenForm.release();
+        assertEquals("grant_type=password&username=user1&password=passwd", write(tokenForm));
+        assertEquals("grant_type=password&username=user1&password=passwd", write(tokenForm));
+
+        response.tryEmitValue("token");
+        assertArrayEquals(new byte[password.length], password);
+        // a write now would send the zeroed password
+        assertThrows(IllegalStateException.class, () -> write(tokenForm));
+    }
+
+    @Test
+    void testSecretZeroedByReleaseWhenNotSent() {
+        // e.g. the exchange joined a call in flight with its own form
+        byte[] password = "passwd".getBytes(StandardCharsets.UTF_8);
+        TokenForm tokenForm = TokenForm.grant("password").secret("password", password);
+
+        tokenForm.release();
+        assertArrayEquals(new byte[password.length], password);
+    }
+
+    @Test
+    void testSecretZeroedByClear() {
+        byte[] password = "passwd".getBytes(StandardCharsets.UTF_8);
+        TokenForm tokenForm = TokenForm.grant("password").secret("password", password);
+
+        tokenForm.clear();
+        assertArrayEquals(new byte[password.length], password);
+    }
+
+    @Test
+    void testFormWithoutSecretWrittenAgain() {
+        // the client credentials form is sent again by every background refresh
+        TokenForm tokenForm =
+                TokenForm.grant("client_credentials")
+                        .param("client_id", "service1")
+                        .param("client_secret", "secret1");
+        assertEquals(write(tokenForm), write(tokenForm));
+    }
+
+    @Test
+    void testToStringMasksSecret() {
+        TokenForm tokenForm =
+                TokenForm.grant("password")
+                        .param("username", "user1")
+                        .secret("password", "passwd".getBytes(StandardCharsets.UTF_8))
+                        .param("scope", null);
+
+        assertEquals("grant_type=password&username=user1&password=***", tokenForm.toString());
+        assertEquals("***", tokenForm.get("password"));
+        assertEquals("user1", tokenForm.get("username"));
+        assertEquals("password", tokenForm.get("grant_type"));
+    }
+
+    @Test
+    void testToStringMasksSecretsByName() {
+        TokenForm clientCredentials =
+                TokenForm.grant("client_credentials")
+                        .param("client_id", "service1")
+                        .param("client_secret", "secret1");
+        TokenForm refreshToken =
+                TokenForm.grant("refresh_token")
+                        .param("refresh_token", "eyJhbGciOiJIUzI1NiJ9.e30.c2ln")
+                        .constant("client_id", "admin-portal");
+
+        assertEquals(
+                "grant_type=client_credentials&client_id=service1&client_secret=***",
+                clientCredentials.toString());
+        assertEquals(
+                "grant_type=refresh_token&refresh_token=***&client_id=admin-portal",
+                refreshToken.toString());
+        assertEquals("***", refreshToken.get("refresh_token"));
+    }
+
+    private static String write(TokenForm tokenForm) {
+        DataBuffer buffer = tokenForm.encode(DefaultDataBufferFactory.sharedInstance);
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,154 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.vincent.learning.token.config.IamProperties;
+import com.vincent.learning.token.model.IntrospectionResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+
+class TokenIntrospectorTest {
+    private static final String ISSUER = "https://iam.example.com/auth/realms/oam";
+
+    private static RSAKey signingKey;
+    private static RSAKey otherKey;
+
+    private JwksKeyStore jwksKeyStore;
+    private TokenIntrospector introspector;
+
+    @BeforeAll
+    static void generateKeys() throws JOSEException {
+        signingKey = new RSAKeyGenerator(2048).keyID("kid-1").generate();
+        otherKey = new RSAKeyGenerator(2048).keyID("kid-1").generate();
+    }
+
+    @BeforeEach
+    public void init() throws JOSEException {
+        jwksKeyStore = mock(JwksKeyStore.class);
+        when(jwksKeyStore.verifier(any())).thenReturn(Mono.empty());
+        when(jwksKeyStore.verifier("kid-1"))
+                .thenReturn(Mono.just(new RSASSAVerifier(signingKey.toRSAPublicKey())));
+        introspector = introspector(List.of(ISSUER), List.of("admin-portal"));
+    }
+
+    @Test
+    void testActiveTokenIsCached() throws JOSEException {
+        Instant exp = Instant.now().plusSeconds(300);
+        String token = sign(signingKey, claims(exp).build());
+
+        IntrospectionResponse response = introspector.introspect(token).block();
+        assertTrue(response.isActive());
+        assertEquals("user1", response.getUsername());
+        assertEquals("admin-portal", response.getClientId());
+        assertEquals(exp.getEpochSecond(), response.getExp());
+        assertEquals(ISSUER, response.getIss());
+
+        assertTrue(introspector.introspect(token).block().isActive());
+        verify(jwksKeyStore, times(1)).verifier("kid-1");
+    }
+
+    @Test
+    void testInactiveToken() throws JOSEException {
+        Instant exp = Instant.now().plusSeconds(300);
+
+        assertInactive(sign(otherKey, claims(exp).build()));
+        assertInactive(sign(signingKey, claims(Instant.now().minusSeconds(60)).build()));
+        assertInactive(
+                sign(
+                        signingKey,
+                        claims(exp).notBeforeTime(Date.from(exp.minusSeconds(60))).build()));
+        assertInactive(sign(signingKey, claims(exp).issuer("https://evil.example.com").build()));
+        assertInactive(
+                sign(signingKey, claims(exp).audience("other").claim("azp", "other").build()));
+        assertInactive(sign(signingKey, claims(exp).claim("typ", "Refresh").build()));
+        assertInactive("not-a-jwt");
+    }
+
+    @Test
+    void testUnknownKid() throws JOSEException {
+        RSAKey rotated = new RSAKeyGenerator(2048).keyID("kid-2").generate();
+        assertInactive(sign(rotated, claims(Instant.now().plusSeconds(300)).build()));
+        verify(jwksKeyStore).verifier("kid-2");
+    }
+
+    @Test
+    void testNoAudienceConfigured() throws JOSEException {
+        introspector = introspector(List.of(ISSUER), List.of());
+
+        assertInactive(sign(signingKey, claims(Instant.now().plusSeconds(300)).build()));
+        verify(jwksKeyStore, never()).verifier(any());
+    }
+
+    @Test
+    void testRealmIssuers() {
+        IamProperties iamProperties = new IamProperties();
+        iamProperties.setHost("iam.example.com");
+        iamProperties.setPort(443);
+        iamProperties.setRootPath("/auth/realms/oam/protocol/openid-connect");
+        assertEquals(List.of(ISSUER), TokenIntrospector.realmIssuers(iamProperties));
+
+        iamProperties.setTlsEnable("disabled");
+        iamProperties.setEndpoints(List.of("iam-0:8080", "iam-1:80"));
+        assertEquals(
+                List.of("http://iam-0:8080/auth/realms/oam", "http://iam-1/auth/realms/oam"),
+                TokenIntrospector.realmIssuers(iamProperties));
+    }
+
+    private TokenIntrospector introspector(List<String> issuers, List<String> audiences) {
+        return new TokenIntrospector(
+                Duration.ofSeconds(5),
+                issuers,
+                audiences,
+                DataSize.ofMegabytes(1),
+                new IamProperties(),
+                jwksKeyStore,
+                new CredentialHasher(),
+                new SimpleMeterRegistry());
+    }
+
+    private void assertInactive(String token) {
+        assertFalse(introspector.introspect(token).block().isActive());
+    }
+
+    private static JWTClaimsSet.Builder claims(Instant exp) {
+        return new JWTClaimsSet.Builder()
+                .issuer(ISSUER)
+                .subject("f3d2b1c0")
+                .audience("account")
+                .expirationTime(Date.from(exp))
+                .issueTime(new Date())
+                .claim("typ", "Bearer")
+                .claim("azp", "admin-portal")
+                .claim("preferred_username", "user1")
+                .claim("scope", "openid profile");
+    }
+
+    private static String sign(RSAKey key, JWTClaimsSet claims) throws JOSEException {
+        SignedJWT jwt =
+                new SignedJWT(
+                        new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+                        claims);
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+}
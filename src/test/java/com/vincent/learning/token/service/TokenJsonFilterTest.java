@@ -0,0 +1,151 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.vincent.learning.token.model.IamToken;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+class TokenJsonFilterTest {
+
+    private static final String KEYCLOAK_RESPONSE =
+            "{\"access_token\":\"eyJhbGciOiJSUzI1NiJ9.eyJzdWIiOiJ1c2VyMSJ9.c2ln\","
+                    + "\"expires_in\":300,\"refresh_expires_in\":1800,"
+                    + "\"refresh_token\":\"eyJhbGciOiJIUzI1NiJ9.e30.c2ln\","
+                    + "\"token_type\":\"Bearer\",\"not-before-policy\":0,"
+                    + "\"session_state\":\"6c7f1a3e\",\"scope\":\"openid profile email\"}";
+
+    private final TokenJsonFilter filter =
+            new TokenJsonFilter(
+                    true, List.of("access_token", "token_type", "expires_in", "refresh_token"));
+
+    @Test
+    void testCopyAllowedMembers() {
+        IamToken token = filter(filter, KEYCLOAK_RESPONSE, 4096);
+
+        assertEquals(
+                "{\"access_token\":\"eyJhbGciOiJSUzI1NiJ9.eyJzdWIiOiJ1c2VyMSJ9.c2ln\","
+                        + "\"expires_in\":300,"
+                        + "\"refresh_token\":\"eyJhbGciOiJIUzI1NiJ9.e30.c2ln\","
+                        + "\"token_type\":\"Bearer\"}",
+                body(token));
+        assertEquals(300, token.getExpiresIn());
+    }
+
+    @Test
+    void testSameResultWhateverTheChunks() {
+        String expected = body(filter(filter, KEYCLOAK_RESPONSE, 4096));
+        for (int chunkSize : new int[] {1, 2, 7, 64}) {
+            IamToken token = filter(filter, KEYCLOAK_RESPONSE, chunkSize);
+            assertEquals(expected, body(token), "chunk size " + chunkSize);
+            assertEquals(300, token.getExpiresIn());
+        }
+    }
+
+    @Test
+    void testSkipNestedValuesAndKeepEscapes() {
+        String json =
+                " {\n \"claims\" : {\"aud\":[\"a\",\"}\"],\"x\":{\"y\":\"]\\\"\"}},"
+                        + " \"access_token\" : \"a\\\"b\\\\\" , \"expires_in\" : 60 }\n";
+
+        IamToken token = filter(filter, json, 5);
+
+        assertEquals("{\"access_token\":\"a\\\"b\\\\\",\"expires_in\":60}", body(token));
+        assertEquals(60, token.getExpiresIn());
+    }
+
+    @Test
+    void testConfiguredFields() {
+        TokenJsonFilter accessTokenOnly = new TokenJsonFilter(true, List.of("access_token"));
+
+        IamToken token = filter(accessTokenOnly, KEYCLOAK_RESPONSE, 4096);
+
+        assertEquals(
+                "{\"access_token\":\"eyJhbGciOiJSUzI1NiJ9.eyJzdWIiOiJ1c2VyMSJ9.c2ln\"}",
+                body(token));
+        assertEquals(0, token.getExpiresIn());
+    }
+
+    @Test
+    void testWithExpiresIn() {
+        byte[] body = filter(filter, KEYCLOAK_RESPONSE, 4096).getPassThroughBody();
+
+        assertEquals(
+                "{\"access_token\":\"eyJhbGciOiJSUzI1NiJ9.eyJzdWIiOiJ1c2VyMSJ9.c2ln\","
+                        + "\"expires_in\":7,"
+                        + "\"refresh_token\":\"eyJhbGciOiJIUzI1NiJ9.e30.c2ln\","
+                        + "\"token_type\":\"Bearer\"}",
+                new String(TokenJsonFilter.withExpiresIn(body, 7), StandardCharsets.UTF_8));
+        // only the member of the top level, not a name in a string or a nested object
+        byte[] nested =
+                "{\"a\":\"\\\",\\\"expires_in\\\":1\",\"b\":{\"expires_in\":2},\"expires_in\":300}"
+                        .getBytes(StandardCharsets.UTF_8);
+        assertEquals(
+                "{\"a\":\"\\\",\\\"expires_in\\\":1\",\"b\":{\"expires_in\":2},\"expires_in\":42}",
+                new String(TokenJsonFilter.withExpiresIn(nested, 42), StandardCharsets.UTF_8));
+        byte[] none = "{\"access_token\":\"a\"}".getBytes(StandardCharsets.UTF_8);
+        assertSame(none, TokenJsonFilter.withExpiresIn(none, 42));
+    }
+
+    @Test
+    void testRejectIncompleteBody() {
+        assertThrows(DecodingException.class, () -> filter(filter, "", 16));
+        assertThrows(DecodingException.class, () -> filter(filter, "{\"access_token\":\"a", 16));
+        assertThrows(DecodingException.class, () -> filter(filter, "[{}]", 16));
+        assertThrows(DecodingException.class, () -> filter(filter, "{\"a\":1,}", 16));
+    }
+
+    @Test
+    void testReleaseBuffers() {
+        NettyDataBufferFactory bufferFactory =
+                new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+        List<DataBuffer> buffers = chunks(bufferFactory, KEYCLOAK_RESPONSE, 32);
+        filter.filter(Flux.fromIterable(buffers)).block();
+
+        for (DataBuffer buffer : buffers) {
+            assertEquals(0, ((NettyDataBuffer) buffer).getNativeBuffer().refCnt());
+        }
+
+        List<DataBuffer> broken = chunks(bufferFactory, "{\"a\":1,}", 2);
+        assertThrows(
+                DecodingException.class, () -> filter.filter(Flux.fromIterable(broken)).block());
+        for (DataBuffer buffer : broken) {
+            assertEquals(0, ((NettyDataBuffer) buffer).getNativeBuffer().refCnt());
+        }
+    }
+
+    private static IamToken filter(TokenJsonFilter filter, String json, int chunkSize) {
+        List<DataBuffer> buffers =
+                chunks(DefaultDataBufferFactory.sharedInstance, json, chunkSize);
+        return filter.filter(Flux.fromIterable(buffers)).block();
+    }
+
+    private static List<DataBuffer> chunks(
+            DataBufferFactory bufferFactory, String json, int chunkSize) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            buffers.add(
+                    bufferFactory.wrap(
+                            Arrays.copyOfRange(bytes, i, Math.min(i + chunkSize, bytes.length))));
+        }
+        return buffers;
+    }
+
+    private static String body(IamToken token) {
+        return new String(token.getPassThroughBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,73 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.exception.RestException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+
+class TokenMetricsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TokenMetrics tokenMetrics = new TokenMetrics(meterRegistry);
+
+    @Test
+    void testExchangeTags() {
+        tokenMetrics.timeExchange("PASSWORD", Mono.just("token")).block();
+        Mono<String> rejected =
+                tokenMetrics.timeExchange(
+                        "password",
+                        Mono.error(
+                                new RestException(
+                                        ErrorConstants.TOO_MANY_REQUESTS,
+                                        "slow down",
+                                        HttpStatus.TOO_MANY_REQUESTS)));
+        assertThrows(RestException.class, rejected::block);
+
+        assertEquals(1, exchangeCount("password", "success", TokenMetrics.NONE));
+        assertEquals(
+                1, exchangeCount("password", "client_error", ErrorConstants.TOO_MANY_REQUESTS));
+    }
+
+    @Test
+    void testBoundedTagValues() {
+        // a made up grant type and a raw error from IAM must not become tag values
+        Mono<String> failed =
+                tokenMetrics.timeExchange(
+                        "user1-grant",
+                        Mono.error(
+                                new RestException(
+                                        "Account is disabled for user1",
+                                        "disabled",
+                                        HttpStatus.BAD_REQUEST)));
+        assertThrows(RestException.class, failed::block);
+        assertEquals(1, exchangeCount(TokenMetrics.OTHER, "client_error", TokenMetrics.OTHER));
+
+        Mono<String> timeout =
+                tokenMetrics.timeUpstream("refresh_token", Mono.error(new TimeoutException()));
+        assertThrows(RuntimeException.class, timeout::block);
+        assertEquals(
+                1,
+                meterRegistry
+                        .get("iam.token.upstream")
+                        .tag("grant_type", "refresh_token")
+                        .tag("status", "timeout")
+                        .timer()
+                        .count());
+    }
+
+    private long exchangeCount(String grantType, String outcome, String error) {
+        return meterRegistry
+                .get("iam.token.exchange")
+                .tag("grant_type", grantType)
+                .tag("outcome", outcome)
+                .tag("error", error)
+                .timer()
+                .count();
+    }
+}
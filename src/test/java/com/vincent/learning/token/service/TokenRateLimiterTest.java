@@ -0,0 +1,96 @@
+package com.vincent.learning.token.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.vincent.learning.token.config.RateLimitProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenRateLimiterTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private TokenRateLimiter rateLimiter;
+
+    @BeforeEach
+    public void init() {
+        RateLimitProperties.GrantLimits password = new RateLimitProperties.GrantLimits();
+        password.setUser(limit(60, Duration.ofMinutes(1), 3));
+        password.setIp(limit(60, Duration.ofMinutes(1), 100));
+        RateLimitProperties properties = new RateLimitProperties();
+        properties.setEnabled(true);
+        properties.setGrants(Map.of("PASSWORD", password));
+        meterRegistry = new SimpleMeterRegistry();
+        rateLimiter = new TokenRateLimiter(properties, meterRegistry);
+    }
+
+    @Test
+    void testBurstThenReject() {
+        for (int i = 0; i < 3; i++) {
+            assertNull(rateLimiter.acquire("password", "user1", "10.0.0.1"));
+        }
+        Duration retryAfter = rateLimiter.acquire("password", "User1", "10.0.0.1");
+        assertNotNull(retryAfter);
+        // one request per second is emitted
+        assertTrue(retryAfter.compareTo(Duration.ofSeconds(1)) <= 0);
+        assertTrue(retryAfter.compareTo(Duration.ofMillis(900)) > 0);
+
+        // other users and grant types are not affected
+        assertNull(rateLimiter.acquire("password", "user2", "10.0.0.1"));
+        assertNull(rateLimiter.acquire("refresh_token", null, "10.0.0.1"));
+        assertEquals(
+                1.0,
+                meterRegistry
+                        .get("iam.token.rate.limited")
+                        .tag("grant_type", "password")
+                        .tag("key", "user")
+                        .counter()
+                        .count());
+    }
+
+    @Test
+    void testLimitByIp() {
+        int accepted = 0;
+        for (int i = 0; i < 200; i++) {
+            if (rateLimiter.acquire("password", "user" + i, "10.0.0.2") == null) {
+                accepted++;
+            }
+        }
+        assertEquals(100, accepted);
+    }
+
+    @Test
+    void testUserRejectionKeepsIpQuota() {
+        for (int i = 0; i < 100; i++) {
+            rateLimiter.acquire("password", "user1", "10.0.0.3");
+        }
+        // only the 3 requests accepted for user1 count against the ip
+        int accepted = 0;
+        for (int i = 0; i < 200; i++) {
+            if (rateLimiter.acquire("password", "user" + (i + 2), "10.0.0.3") == null) {
+                accepted++;
+            }
+        }
+        assertEquals(97, accepted);
+    }
+
+    @Test
+    void testDisabled() {
+        RateLimitProperties properties = new RateLimitProperties();
+        TokenRateLimiter disabled = new TokenRateLimiter(properties, meterRegistry);
+        assertNull(disabled.acquire("password", "user1", "10.0.0.1"));
+    }
+
+    private static RateLimitProperties.Limit limit(int limit, Duration period, int burst) {
+        RateLimitProperties.Limit result = new RateLimitProperties.Limit();
+        result.setLimit(limit);
+        result.setPeriod(period);
+        result.setBurst(burst);
+        return result;
+    }
+}
@@ -0,0 +1,330 @@
+package com.vincent.learning.token.service;
+
+import static java.util.Map.entry;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static reactor.netty.http.HttpProtocol.H2;
+import static reactor.netty.http.HttpProtocol.H2C;
+import static reactor.netty.http.HttpProtocol.HTTP11;
+
+import com.vincent.learning.token.config.CertificationMonitor;
+import com.vincent.learning.token.config.IamProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.ssl.SslProvider;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.net.ssl.SSLException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.Http11SslContextSpec;
+import reactor.netty.http.Http2SslContextSpec;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+class WebClientFactoryTest {
+
+    private final Set<Integer> warmPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger warmRequests = new AtomicInteger();
+    private final List<DisposableServer> servers = new ArrayList<>();
+    private DisposableServer iam;
+    private WebClientFactory factory;
+
+    @BeforeEach
+    public void init() {
+        iam = server(HttpServer.create());
+    }
+
+    /** the routes of the tests on a server bound to a free port, disposed after the test. */
+    private DisposableServer server(HttpServer server) {
+        DisposableServer bound =
+                server.port(0)
+                        .route(
+                                routes ->
+                                        routes.get("/port/{delay}", this::answerPort)
+                                                .get("/protocol/{delay}", this::answerProtocol)
+                                                .get("/certs", this::certs))
+                        .bindNow();
+        servers.add(bound);
+        return bound;
+    }
+
+    /** answer the client port after the delay, so the connection of a request is known. */
+    private Publisher<Void> answerPort(HttpServerRequest request, HttpServerResponse response) {
+        int clientPort = request.remoteAddress().getPort();
+        Duration delay = Duration.ofMillis(Long.parseLong(request.param("delay")));
+        return response.sendString(Mono.delay(delay).map(i -> String.valueOf(clientPort)));
+    }
+
+    /** answer the protocol of the request and the client port after the delay. */
+    private Publisher<Void> answerProtocol(HttpServerRequest request, HttpServerResponse response) {
+        String answer = request.version().text() + " " + request.remoteAddress().getPort();
+        Duration delay = Duration.ofMillis(Long.parseLong(request.param("delay")));
+        return response.sendString(Mono.delay(delay).map(i -> answer));
+    }
+
+    private Publisher<Void> certs(HttpServerRequest request, HttpServerResponse response) {
+        warmRequests.incrementAndGet();
+        warmPorts.add(request.remoteAddress().getPort());
+        return response.sendString(Mono.just("{\"keys\":[]}"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (factory != null) {
+            factory.destroy();
+        }
+        servers.forEach(DisposableServer::disposeNow);
+    }
+
+    @Test
+    void testPendingAcquireLimit() throws SSLException {
+        factory = factory(Map.of("poolMaxConnections", 1, "poolPendingAcquireMaxCount", 1));
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+        // one request on the only connection, one waiting for it, one over the limit
+        long served =
+                Flux.range(0, 3)
+                        .flatMap(
+                                i ->
+                                        port(200)
+                                                .onErrorResume(
+                                                        e -> {
+                                                            errors.add(e);
+                                                            return Mono.empty();
+                                                        }))
+                        .count()
+                        .block();
+
+        assertEquals(2, served);
+        assertEquals(1, errors.size());
+        assertTrue(
+                NestedExceptionUtils.getMostSpecificCause(errors.get(0))
+                        .getMessage()
+                        .contains("maximum size of 1"));
+    }
+
+    @Test
+    void testFifoLeasesLeastRecentlyUsed() throws SSLException {
+        factory = factory(Map.of("poolMaxConnections", 2, "poolLeaseStrategy", "fifo"));
+        List<Integer> released = releaseTwoConnections();
+
+        assertEquals(released.get(0), port(0).block());
+    }
+
+    @Test
+    void testLifoLeasesMostRecentlyUsed() throws SSLException {
+        factory = factory(Map.of("poolMaxConnections", 2, "poolLeaseStrategy", "lifo"));
+        List<Integer> released = releaseTwoConnections();
+
+        assertEquals(released.get(1), port(0).block());
+    }
+
+    @Test
+    void testEvictStaleSslContext() throws SSLException {
+        factory = factory(Map.of("poolMaxConnections", 1));
+        Integer first = port(0).block();
+        assertEquals(first, port(0).block());
+
+        factory.refresh().block();
+
+        assertEquals(1, factory.getSslContextVersion());
+        assertNotEquals(first, port(0).block());
+    }
+
+    @Test
+    void testKeepWarmConnections() throws SSLException {
+        factory =
+                factory(
+                        Map.of(
+                                "poolMinWarmConnections",
+                                2,
+                                "poolEvictInBackground",
+                                Duration.ofMillis(100)));
+
+        // the floor is re-warmed on the same two connections
+        await().atMost(5, TimeUnit.SECONDS).until(() -> warmRequests.get() >= 6);
+        assertEquals(2, warmPorts.size());
+
+        // and opened again with the new ssl context
+        factory.refresh().block();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> warmPorts.size() >= 4);
+    }
+
+    @Test
+    void testHttp2Disabled() throws IOException {
+        DisposableServer h2 = h2Server();
+        factory = factory(h2, true, Map.of());
+
+        assertEquals("HTTP/1.1", protocol(0).block());
+    }
+
+    @Test
+    void testH2ByAlpn() throws IOException {
+        DisposableServer h2 = h2Server();
+        factory = factory(h2, true, Map.of("http2Enabled", true));
+
+        assertEquals("HTTP/2.0", protocol(0).block());
+    }
+
+    @Test
+    void testH2cUpgrade() throws IOException {
+        DisposableServer h2c = server(HttpServer.create().protocol(H2C, HTTP11));
+        factory = factory(h2c, false, Map.of("http2Enabled", true));
+
+        assertEquals("HTTP/2.0", protocol(0).block());
+    }
+
+    @Test
+    void testFallbackToHttp11() throws IOException {
+        Http11SslContextSpec http11 = Http11SslContextSpec.forServer(certificate(), privateKey());
+        DisposableServer tls = server(HttpServer.create().secure(spec -> spec.sslContext(http11)));
+        factory = factory(tls, true, Map.of("http2Enabled", true));
+        assertEquals("HTTP/1.1", protocol(0).block());
+        factory.destroy();
+
+        factory = factory(iam, false, Map.of("http2Enabled", true));
+        assertEquals("HTTP/1.1", protocol(0).block());
+    }
+
+    @Test
+    void testStreamsMultiplexed() throws IOException {
+        DisposableServer h2 = h2Server();
+        factory =
+                factory(
+                        h2,
+                        true,
+                        Map.of(
+                                "http2Enabled",
+                                true,
+                                "http2MaxConnections",
+                                1L,
+                                "http2MaxConcurrentStreams",
+                                10L));
+
+        // concurrent requests on the streams of a single connection
+        Set<String> answers =
+                Flux.range(0, 5).flatMap(i -> answer(200)).collect(Collectors.toSet()).block();
+
+        assertEquals(1, answers.size());
+        assertTrue(answers.iterator().next().startsWith("HTTP/2.0 "));
+    }
+
+    /** the port of the connection released first, then the one released 200ms later. */
+    private List<Integer> releaseTwoConnections() {
+        return Flux.merge(port(100), port(300)).collectList().block();
+    }
+
+    private Mono<Integer> port(long delayMillis) {
+        return factory.getWebClient()
+                .get()
+                .uri("/port/{delay}", delayMillis)
+                .retrieve()
+                .bodyToMono(String.class)
+                .map(Integer::valueOf);
+    }
+
+    /** the protocol the request was received with. */
+    private Mono<String> protocol(long delayMillis) {
+        return answer(delayMillis).map(answer -> answer.substring(0, answer.indexOf(' ')));
+    }
+
+    private Mono<String> answer(long delayMillis) {
+        return factory.getWebClient()
+                .get()
+                .uri("/protocol/{delay}", delayMillis)
+                .retrieve()
+                .bodyToMono(String.class);
+    }
+
+    /** h2 and HTTP/1.1 over tls, negotiated by ALPN. */
+    private DisposableServer h2Server() throws IOException {
+        Http2SslContextSpec h2 = Http2SslContextSpec.forServer(certificate(), privateKey());
+        return server(HttpServer.create().protocol(H2, HTTP11).secure(spec -> spec.sslContext(h2)));
+    }
+
+    private static File certificate() throws IOException {
+        return new ClassPathResource("client-public.crt").getFile();
+    }
+
+    private static File privateKey() throws IOException {
+        return new ClassPathResource("client-private.key").getFile();
+    }
+
+    private WebClientFactory factory(Map<String, Object> overrides) throws SSLException {
+        return factory(iam, false, overrides);
+    }
+
+    private WebClientFactory factory(
+            DisposableServer server, boolean tls, Map<String, Object> overrides)
+            throws SSLException {
+        IamProperties iamProperties = new IamProperties();
+        iamProperties.setTlsEnable(tls ? "enabled" : "disabled");
+        iamProperties.setHost("localhost");
+        iamProperties.setPort(server.port());
+        iamProperties.setRootPath("");
+        WebClientFactory webClientFactory = new WebClientFactory();
+        ReflectionTestUtils.setField(webClientFactory, "iamProperties", iamProperties);
+        ReflectionTestUtils.setField(
+                webClientFactory, "certificationMonitor", mock(CertificationMonitor.class));
+        ReflectionTestUtils.setField(
+                webClientFactory,
+                "iamLoadBalancer",
+                new IamLoadBalancer(new SimpleMeterRegistry()));
+        // the defaults of application.yml
+        Map<String, Object> fields =
+                new HashMap<>(
+                        Map.ofEntries(
+                                entry("iamClientConnectionTimeout", 5000),
+                                entry("iamClientReadTimeout", 5000),
+                                entry("iamClientWriteTimeout", 5000),
+                                entry("iamClientHandshakeTimeout", 5000),
+                                entry("tlsProvider", SslProvider.JDK),
+                                entry("tlsProtocols", List.of()),
+                                entry("tlsCiphers", List.of()),
+                                entry("tlsAlpn", List.of()),
+                                entry("tlsSessionTimeout", Duration.ZERO),
+                                entry("maxInMemorySize", DataSize.ofMegabytes(1)),
+                                entry("poolName", "iam-test"),
+                                entry("poolMaxConnections", 500),
+                                entry("poolPendingAcquireMaxCount", -2),
+                                entry("poolPendingAcquireTimeout", Duration.ofSeconds(5)),
+                                entry("poolMaxIdleTime", Duration.ofSeconds(30)),
+                                entry("poolMaxLifeTime", Duration.ofMinutes(10)),
+                                entry("poolEvictInBackground", Duration.ofSeconds(30)),
+                                entry("poolLeaseStrategy", "fifo"),
+                                entry("poolMinWarmConnections", 0),
+                                entry("http2Enabled", false),
+                                entry("http2MaxConcurrentStreams", 100L),
+                                entry("http2MaxConnections", 4L),
+                                entry("http2MinConnections", 1L)));
+        fields.putAll(overrides);
+        fields.forEach(
+                (name, value) -> ReflectionTestUtils.setField(webClientFactory, name, value));
+        webClientFactory.init();
+        return webClientFactory;
+    }
+}
@@ -0,0 +1,119 @@
+package com.vincent.learning.token.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class MpscRingBufferTest {
+
+    static class Entry {
+        int producer;
+        int value;
+    }
+
+    @Test
+    void testCapacityIsPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new MpscRingBuffer<>(6, Entry::new));
+        assertThrows(IllegalArgumentException.class, () -> new MpscRingBuffer<>(0, Entry::new));
+    }
+
+    @Test
+    void testFullUntilDrained() {
+        MpscRingBuffer<Entry> ring = new MpscRingBuffer<>(4, Entry::new);
+        for (int i = 0; i < 4; i++) {
+            long sequence = ring.tryClaim();
+            assertEquals(i, sequence);
+            ring.get(sequence).value = i;
+            ring.publish(sequence);
+        }
+        assertEquals(-1, ring.tryClaim());
+        assertEquals(4, ring.size());
+
+        List<Integer> values = new ArrayList<>();
+        assertEquals(3, ring.drain(entry -> values.add(entry.value), 3));
+        assertEquals(List.of(0, 1, 2), values);
+        assertEquals(1, ring.size());
+        assertEquals(4, ring.tryClaim());
+    }
+
+    @Test
+    void testStopAtUnpublished() {
+        MpscRingBuffer<Entry> ring = new MpscRingBuffer<>(4, Entry::new);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        ring.publish(second);
+        assertEquals(0, ring.drain(entry -> {}, 4));
+
+        ring.publish(first);
+        assertEquals(2, ring.drain(entry -> {}, 4));
+    }
+
+    @Test
+    void testHandlerThrows() {
+        MpscRingBuffer<Entry> ring = new MpscRingBuffer<>(4, Entry::new);
+        ring.publish(ring.tryClaim());
+        ring.publish(ring.tryClaim());
+        assertThrows(
+                IllegalStateException.class,
+                () ->
+                        ring.drain(
+                                entry -> {
+                                    throw new IllegalStateException();
+                                },
+                                4));
+        assertEquals(1, ring.drain(entry -> {}, 4));
+    }
+
+    @Test
+    void testManyProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100_000;
+        MpscRingBuffer<Entry> ring = new MpscRingBuffer<>(64, Entry::new);
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(
+                            () -> {
+                                for (int i = 0; i < perProducer; i++) {
+                                    long sequence;
+                                    while ((sequence = ring.tryClaim()) < 0) {
+                                        Thread.onSpinWait();
+                                    }
+                                    Entry entry = ring.get(sequence);
+                                    entry.producer = producer;
+                                    entry.value = i;
+                                    ring.publish(sequence);
+                                }
+                                done.countDown();
+                            })
+                    .start();
+        }
+
+        // every producer's entries are consumed once and in its own order
+        int[] next = new int[producers];
+        AtomicBoolean ordered = new AtomicBoolean(true);
+        int consumed = 0;
+        while (consumed < producers * perProducer) {
+            consumed +=
+                    ring.drain(
+                            entry -> {
+                                if (entry.value != next[entry.producer]++) {
+                                    ordered.set(false);
+                                }
+                            },
+                            16);
+        }
+        done.await();
+        assertTrue(ordered.get());
+        for (int count : next) {
+            assertEquals(perProducer, count);
+        }
+        assertEquals(0, ring.size());
+    }
+}
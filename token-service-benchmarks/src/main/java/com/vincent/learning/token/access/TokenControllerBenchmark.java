@@ -0,0 +1,54 @@
+package com.vincent.learning.token.access;
+
+import com.vincent.learning.token.model.ErrorResponse;
+import com.vincent.learning.token.model.ExchangeTokenRequest;
+import com.vincent.learning.token.model.GrantType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Validation of the token requests, in the package of the controller as the validation is
+ * package private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenControllerBenchmark {
+
+    private ExchangeTokenRequest passwordRequest;
+    private ExchangeTokenRequest refreshRequest;
+    private ExchangeTokenRequest invalidRequest;
+
+    @Setup
+    public void setUp() {
+        passwordRequest = new ExchangeTokenRequest();
+        passwordRequest.setGrantType(GrantType.PASSWORD.name().toLowerCase());
+        passwordRequest.setUsername("user1");
+        passwordRequest.setPassword("cGFzc3dk");
+
+        refreshRequest = new ExchangeTokenRequest();
+        refreshRequest.setGrantType(GrantType.REFRESH_TOKEN.name().toLowerCase());
+        refreshRequest.setRefreshToken("eyJhbGciOiJIUzI1NiJ9.eyJ0eXAiOiJSZWZyZXNoIn0.c2ln");
+
+        invalidRequest = new ExchangeTokenRequest();
+        invalidRequest.setGrantType("authorization_code");
+    }
+
+    @Benchmark
+    public ErrorResponse validatePassword() {
+        return TokenController.validate(passwordRequest);
+    }
+
+    @Benchmark
+    public ErrorResponse validateRefreshToken() {
+        return TokenController.validate(refreshRequest);
+    }
+
+    @Benchmark
+    public ErrorResponse validateInvalidGrant() {
+        return TokenController.validate(invalidRequest);
+    }
+}
@@ -0,0 +1,25 @@
+package com.vincent.learning.token.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The JMH main with the gc profiler always on, so every run reports the allocation rate per
+ * operation (gc.alloc.rate.norm) next to the throughput. The usual JMH options are accepted.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar JsonCodecBenchmark -rf json -rff before.json
+ * </pre>
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build())
+                .run();
+    }
+}
@@ -0,0 +1,30 @@
+package com.vincent.learning.token.benchmark;
+
+import com.vincent.learning.token.util.EncodeUtil;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Decoding of the base64 password of every password grant. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeUtilBenchmark {
+
+    @Param({"12", "64"})
+    public int passwordLength;
+
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        encoded = EncodeUtil.encodeBase64("p@ssw0rd-".repeat(8).substring(0, passwordLength));
+    }
+
+    @Benchmark
+    public String decodeBase64() {
+        return EncodeUtil.decodeBase64(encoded);
+    }
+}
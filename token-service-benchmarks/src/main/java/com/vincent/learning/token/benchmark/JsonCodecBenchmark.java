@@ -0,0 +1,128 @@
+package com.vincent.learning.token.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vincent.learning.token.model.IamToken;
+import com.vincent.learning.token.model.TokenResponse;
+import com.vincent.learning.token.service.TokenJsonFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+/**
+ * Decoding of the IAM token response and encoding of the response to the client, with tokens of
+ * the size keycloak issues (RS256 access token, HS256 refresh token). mapToTokenResponse and
+ * passThrough compare the two modes of the controller, run them with -prof gc to see the bytes
+ * allocated per response next to the bytes read and written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TokenJsonFilter tokenJsonFilter =
+            new TokenJsonFilter(
+                    true, List.of("access_token", "token_type", "expires_in", "refresh_token"));
+    private byte[] iamTokenJson;
+    private TokenResponse tokenResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        String accessToken = jwt(900, 342);
+        String refreshToken = jwt(520, 43);
+        // keycloak answers more fields than IamToken maps, they are skipped
+        iamTokenJson =
+                ("{\"access_token\":\""
+                                + accessToken
+                                + "\",\"expires_in\":300,\"refresh_expires_in\":1800,"
+                                + "\"refresh_token\":\""
+                                + refreshToken
+                                + "\",\"token_type\":\"Bearer\",\"not-before-policy\":0,"
+                                + "\"session_state\":\"6c7f1a3e-2b4d-4e8a-9f1c-0d2e3b4a5c6d\","
+                                + "\"scope\":\"openid profile email\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+        IamToken iamToken = objectMapper.readValue(iamTokenJson, IamToken.class);
+        tokenResponse =
+                new TokenResponse(
+                        iamToken.getAccessToken(),
+                        iamToken.getTokenType(),
+                        iamToken.getExpiresIn(),
+                        iamToken.getRefreshToken());
+    }
+
+    @Benchmark
+    public IamToken decodeIamToken() throws IOException {
+        return objectMapper.readValue(iamTokenJson, IamToken.class);
+    }
+
+    @Benchmark
+    public byte[] encodeTokenResponse() throws IOException {
+        return objectMapper.writeValueAsBytes(tokenResponse);
+    }
+
+    /** decode into an IamToken, map it to a TokenResponse and encode it, the default mode. */
+    @Benchmark
+    public byte[] mapToTokenResponse(Bytes bytes) throws IOException {
+        IamToken iamToken = objectMapper.readValue(iamTokenJson, IamToken.class);
+        byte[] body =
+                objectMapper.writeValueAsBytes(
+                        new TokenResponse(
+                                iamToken.getAccessToken(),
+                                iamToken.getTokenType(),
+                                iamToken.getExpiresIn(),
+                                iamToken.getRefreshToken()));
+        bytes.count(iamTokenJson.length, body.length);
+        return body;
+    }
+
+    /** copy the allowed members from the upstream buffer, the reactor assembly included. */
+    @Benchmark
+    public byte[] passThrough(Bytes bytes) {
+        Flux<DataBuffer> upstream =
+                Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(iamTokenJson));
+        byte[] body = tokenJsonFilter.filter(upstream).block().getPassThroughBody();
+        bytes.count(iamTokenJson.length, body.length);
+        return body;
+    }
+
+    /**
+     * The bytes read from IAM and written to the client, totals of the iteration, the ratio to the
+     * operations is the size of one response.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long bytesIn;
+        public long bytesOut;
+
+        void count(int in, int out) {
+            bytesIn += in;
+            bytesOut += out;
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesIn = 0;
+            bytesOut = 0;
+        }
+    }
+
+    /** a token with payload and signature of the given size, the content is irrelevant. */
+    private static String jwt(int payloadSize, int signatureSize) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes())
+                + "."
+                + encoder.encodeToString("x".repeat(payloadSize).getBytes())
+                + "."
+                + encoder.encodeToString("s".repeat(signatureSize).getBytes());
+    }
+}
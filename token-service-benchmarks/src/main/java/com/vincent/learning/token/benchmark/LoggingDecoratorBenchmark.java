@@ -0,0 +1,107 @@
+package com.vincent.learning.token.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.vincent.learning.token.filter.ApiAccessLogFilter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+
+/**
+ * ApiAccessLogFilter around a token request and its response, the form read and the token written
+ * as the controller does. The log level of the filter package is a parameter: at INFO the exchange
+ * is not decorated, at DEBUG the bodies are captured, redacted and formatted. With the tail
+ * sampling the bodies are captured at any level, at INFO they are released unformatted. The
+ * logback configuration of the benchmarks has no appender, so the cost of the capture is
+ * measured, not of the console.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggingDecoratorBenchmark {
+
+    @Param({"INFO", "DEBUG"})
+    public String level;
+
+    /** true captures every exchange for the tail sampling, none of them is slow nor sampled. */
+    @Param({"false", "true"})
+    public boolean sampling;
+
+    private final DefaultDataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final byte[] requestBody =
+            "grant_type=password&username=user1&password=cEBzc3cwcmQtMTIzNA%3D%3D"
+                    .getBytes(StandardCharsets.UTF_8);
+    private ApiAccessLogFilter filter;
+    private byte[] responseBody;
+    private WebFilterChain chain;
+
+    @Setup
+    public void setUp() {
+        ((Logger) LoggerFactory.getLogger("com.vincent.learning.token.filter"))
+                .setLevel(Level.valueOf(level));
+        filter =
+                new ApiAccessLogFilter(
+                        DataSize.ofKilobytes(4),
+                        List.of(
+                                "password",
+                                "client_secret",
+                                "access_token",
+                                "refresh_token",
+                                "token"),
+                        sampling,
+                        Duration.ofSeconds(1),
+                        500,
+                        0);
+        responseBody =
+                ("{\"access_token\":\""
+                                + "a".repeat(1300)
+                                + "\",\"token_type\":\"Bearer\",\"expires_in\":300,"
+                                + "\"refresh_token\":\""
+                                + "r".repeat(750)
+                                + "\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+        chain =
+                exchange ->
+                        exchange.getFormData()
+                                .flatMap(
+                                        form -> {
+                                            ServerHttpResponse response = exchange.getResponse();
+                                            response.setStatusCode(HttpStatus.OK);
+                                            response.getHeaders()
+                                                    .setContentType(MediaType.APPLICATION_JSON);
+                                            return response.writeWith(
+                                                    Flux.just(wrap(responseBody)));
+                                        });
+    }
+
+    @Benchmark
+    public MockServerWebExchange filterTokenExchange() {
+        MockServerHttpRequest request =
+                MockServerHttpRequest.post("/iam/openid-connect/v1/token")
+                        .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                        .body(Flux.just(wrap(requestBody)));
+        MockServerWebExchange exchange = MockServerWebExchange.from(request);
+        filter.filter(exchange, chain).block();
+        return exchange;
+    }
+
+    private DataBuffer wrap(byte[] bytes) {
+        return bufferFactory.wrap(bytes);
+    }
+}
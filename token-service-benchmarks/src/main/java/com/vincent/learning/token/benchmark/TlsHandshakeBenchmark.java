@@ -0,0 +1,120 @@
+package com.vincent.learning.token.benchmark;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Handshake throughput of the client tls providers against a local tls stub, with and without
+ * session resumption. It mirrors the client context built by WebClientFactory.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar TlsHandshakeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+
+    @Param({"JDK", "OPENSSL"})
+    public SslProvider provider;
+
+    /** true offers the cached session of the peer, false forces a full handshake. */
+    @Param({"false", "true"})
+    public boolean resumption;
+
+    private EventLoopGroup group;
+    private Channel server;
+    private Bootstrap client;
+    private SslContext clientContext;
+    private int port;
+
+    @Setup
+    public void setUp() throws Exception {
+        SelfSignedCertificate certificate = new SelfSignedCertificate("localhost");
+        SslContext serverContext =
+                SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey())
+                        .sslProvider(provider)
+                        .build();
+        clientContext =
+                SslContextBuilder.forClient()
+                        .sslProvider(provider)
+                        .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                        .build();
+
+        group = new NioEventLoopGroup(2);
+        server =
+                new ServerBootstrap()
+                        .group(group)
+                        .channel(NioServerSocketChannel.class)
+                        .childHandler(
+                                new ChannelInitializer<SocketChannel>() {
+                                    @Override
+                                    protected void initChannel(SocketChannel channel) {
+                                        channel.pipeline()
+                                                .addLast(serverContext.newHandler(channel.alloc()));
+                                    }
+                                })
+                        .bind("localhost", 0)
+                        .sync()
+                        .channel();
+        port = ((InetSocketAddress) server.localAddress()).getPort();
+
+        client =
+                new Bootstrap()
+                        .group(group)
+                        .channel(NioSocketChannel.class)
+                        .handler(
+                                new ChannelInitializer<SocketChannel>() {
+                                    @Override
+                                    protected void initChannel(SocketChannel channel) {
+                                        // the session cache is keyed by peer host and port
+                                        SslHandler sslHandler =
+                                                resumption
+                                                        ? clientContext.newHandler(
+                                                                channel.alloc(), "localhost", port)
+                                                        : clientContext.newHandler(channel.alloc());
+                                        channel.pipeline().addLast(sslHandler);
+                                    }
+                                });
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    public boolean handshake() throws InterruptedException {
+        Channel channel = client.connect("localhost", port).sync().channel();
+        try {
+            return channel.pipeline()
+                    .get(SslHandler.class)
+                    .handshakeFuture()
+                    .sync()
+                    .isSuccess();
+        } finally {
+            channel.close().sync();
+        }
+    }
+}
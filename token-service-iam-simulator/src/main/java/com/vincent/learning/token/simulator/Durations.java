@@ -0,0 +1,19 @@
+package com.vincent.learning.token.simulator;
+
+import java.time.Duration;
+
+/** The durations of the command line, a number followed by ms or s. */
+final class Durations {
+
+    private Durations() {}
+
+    static Duration parse(String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        throw new IllegalArgumentException("a duration must end with ms or s: " + value);
+    }
+}
@@ -0,0 +1,177 @@
+package com.vincent.learning.token.simulator;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A stand-in for the openid-connect endpoints of a keycloak realm, for the tests and the load
+ * tests. It answers {root-path}/token with keycloak shaped tokens and {root-path}/certs with an
+ * empty key set, over http, tls or mutual tls. The latency and the faults of the token responses
+ * are set by a {@link ResponseBehavior}, which can be changed while it runs.
+ *
+ * <pre>
+ * try (IamSimulator iam = new IamSimulator(config, ResponseBehavior.normal()).start()) {
+ *     iam.setBehavior(ResponseBehavior.builder().resetRatio(0.01).build());
+ * }
+ * </pre>
+ */
+@Slf4j
+public class IamSimulator implements AutoCloseable {
+
+    private final SimulatorConfig config;
+    private final SimulatorStats stats = new SimulatorStats();
+    private volatile ResponseBehavior behavior;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+    private TokenGenerator tokenGenerator;
+    private long startNanos;
+
+    public IamSimulator(SimulatorConfig config, ResponseBehavior behavior) {
+        behavior.check();
+        this.config = config;
+        this.behavior = behavior;
+    }
+
+    public IamSimulator start() throws IOException, GeneralSecurityException {
+        SslContext sslContext = sslContext();
+        SimulatorHandler handler = new SimulatorHandler(this, config.rootPath());
+        // daemon threads, a test which forgets to close the simulator still ends
+        DefaultThreadFactory threadFactory =
+                new DefaultThreadFactory(config.getThreadPrefix(), true);
+        bossGroup = new NioEventLoopGroup(1, threadFactory);
+        workerGroup = new NioEventLoopGroup(config.getWorkerThreads(), threadFactory);
+        serverChannel =
+                new ServerBootstrap()
+                        .group(bossGroup, workerGroup)
+                        .channel(NioServerSocketChannel.class)
+                        .option(ChannelOption.SO_BACKLOG, 1024)
+                        .childOption(ChannelOption.TCP_NODELAY, true)
+                        .childHandler(
+                                new ChannelInitializer<SocketChannel>() {
+                                    @Override
+                                    protected void initChannel(SocketChannel channel) {
+                                        pipeline(channel.pipeline(), sslContext, handler);
+                                    }
+                                })
+                        .bind(config.getHost(), config.getPort())
+                        .syncUninterruptibly()
+                        .channel();
+        tokenGenerator = new TokenGenerator(issuer());
+        startNanos = System.nanoTime();
+        log.info("IAM simulator is listening on {}", baseUrl());
+        return this;
+    }
+
+    public int port() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /** e.g. https://localhost:8444/auth/realms/oam/protocol/openid-connect */
+    public String baseUrl() {
+        return scheme() + "://" + config.getHost() + ":" + port() + config.rootPath();
+    }
+
+    public ResponseBehavior getBehavior() {
+        return behavior;
+    }
+
+    /** applies to the requests received from now on. */
+    public void setBehavior(ResponseBehavior behavior) {
+        behavior.check();
+        this.behavior = behavior;
+    }
+
+    public SimulatorStats stats() {
+        return stats;
+    }
+
+    /** block until the simulator is closed, e.g. by a shutdown hook. */
+    public void awaitClose() {
+        serverChannel.closeFuture().syncUninterruptibly();
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    private static void pipeline(
+            ChannelPipeline pipeline, SslContext sslContext, SimulatorHandler handler) {
+        if (sslContext != null) {
+            pipeline.addLast(sslContext.newHandler(pipeline.channel().alloc()));
+        }
+        pipeline.addLast(new HttpServerCodec())
+                .addLast(new HttpObjectAggregator(64 * 1024))
+                .addLast(handler);
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    TokenGenerator tokenGenerator() {
+        return tokenGenerator;
+    }
+
+    private String issuer() {
+        String authority = config.getHost() + ":" + port();
+        return scheme() + "://" + authority + "/auth/realms/" + config.getRealm();
+    }
+
+    private String scheme() {
+        return config.getTls() == SimulatorConfig.Tls.NONE ? "http" : "https";
+    }
+
+    private SslContext sslContext() throws IOException, GeneralSecurityException {
+        if (config.getTls() == SimulatorConfig.Tls.NONE) {
+            return null;
+        }
+        SslContextBuilder builder;
+        if (config.getCertificate() != null) {
+            builder = SslContextBuilder.forServer(config.getCertificate(), config.getPrivateKey());
+        } else {
+            SelfSignedCertificate certificate = new SelfSignedCertificate(config.getHost());
+            builder =
+                    SslContextBuilder.forServer(
+                            certificate.certificate(), certificate.privateKey());
+        }
+        builder.sslProvider(config.getSslProvider());
+        if (config.getTls() == SimulatorConfig.Tls.MTLS) {
+            builder.clientAuth(ClientAuth.REQUIRE);
+            if (config.getTrustCertificate() != null) {
+                builder.trustManager(config.getTrustCertificate());
+            } else {
+                builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            }
+        }
+        return builder.build();
+    }
+}
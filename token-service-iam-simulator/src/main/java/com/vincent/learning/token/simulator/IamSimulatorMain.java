@@ -0,0 +1,96 @@
+package com.vincent.learning.token.simulator;
+
+import io.netty.handler.ssl.SslProvider;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Run the simulator on its own, e.g. for a benchmark of a deployed token service.
+ *
+ * <pre>
+ * java -jar token-service-iam-simulator-standalone.jar --port=8444 --tls=mtls \
+ *     --latency=lognormal:20ms:250ms --reset-ratio=0.001 --burst-every=60s --burst-status=429
+ * </pre>
+ */
+public class IamSimulatorMain {
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        String tls = options.getOrDefault("tls", "none");
+        String sslProvider = options.getOrDefault("ssl-provider", "jdk");
+        int workerThreads = Integer.parseInt(options.getOrDefault("worker-threads", "0"));
+        SimulatorConfig config =
+                SimulatorConfig.builder()
+                        .host(options.getOrDefault("host", "localhost"))
+                        .port(Integer.parseInt(options.getOrDefault("port", "8444")))
+                        .realm(options.getOrDefault("realm", "oam"))
+                        .tls(upper(tls, SimulatorConfig.Tls::valueOf))
+                        .certificate(file(options.get("certificate")))
+                        .privateKey(file(options.get("private-key")))
+                        .trustCertificate(file(options.get("trust-certificate")))
+                        .sslProvider(upper(sslProvider, SslProvider::valueOf))
+                        .workerThreads(workerThreads)
+                        .build();
+
+        ResponseBehavior.ResponseBehaviorBuilder behavior =
+                ResponseBehavior.builder()
+                        .latency(LatencyDistribution.parse(options.getOrDefault("latency", "none")))
+                        .resetRatio(ratio(options, "reset-ratio"))
+                        .errorRatio(ratio(options, "error-ratio"))
+                        .invalidGrantRatio(ratio(options, "invalid-grant-ratio"))
+                        .trickleRatio(ratio(options, "trickle-ratio"));
+        if (options.containsKey("trickle-chunk-size")) {
+            behavior.trickleChunkSize(Integer.parseInt(options.get("trickle-chunk-size")));
+        }
+        if (options.containsKey("trickle-interval")) {
+            behavior.trickleInterval(Durations.parse(options.get("trickle-interval")));
+        }
+        if (options.containsKey("burst-every")) {
+            behavior.burstEvery(Durations.parse(options.get("burst-every")));
+        }
+        if (options.containsKey("burst-length")) {
+            behavior.burstLength(Durations.parse(options.get("burst-length")));
+        }
+        if (options.containsKey("burst-status")) {
+            behavior.burstStatus(Integer.parseInt(options.get("burst-status")));
+        }
+        if (options.containsKey("burst-retry-after")) {
+            behavior.burstRetryAfter(Durations.parse(options.get("burst-retry-after")));
+        }
+
+        IamSimulator simulator = new IamSimulator(config, behavior.build()).start();
+        Runtime.getRuntime()
+                .addShutdownHook(
+                        new Thread(
+                                () -> {
+                                    System.out.println(simulator.stats());
+                                    simulator.close();
+                                }));
+        simulator.awaitClose();
+    }
+
+    private static double ratio(Map<String, String> options, String name) {
+        return Double.parseDouble(options.getOrDefault(name, "0"));
+    }
+
+    private static File file(String path) {
+        return path == null ? null : new File(path);
+    }
+
+    private static <T> T upper(String value, Function<String, T> valueOf) {
+        return valueOf.apply(value.toUpperCase(Locale.ROOT));
+    }
+}
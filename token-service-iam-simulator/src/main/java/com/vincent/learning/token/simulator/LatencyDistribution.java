@@ -0,0 +1,70 @@
+package com.vincent.learning.token.simulator;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The response time of the simulated IAM. The log-normal one is the closest to a real keycloak: a
+ * narrow body around the median and a long tail (password hashing, database, gc).
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+    /** z of the 99th percentile of the standard normal distribution. */
+    double Z_99 = 2.3263478740408408;
+
+    long sampleNanos(ThreadLocalRandom random);
+
+    static LatencyDistribution none() {
+        return random -> 0;
+    }
+
+    static LatencyDistribution fixed(Duration latency) {
+        long nanos = latency.toNanos();
+        return random -> nanos;
+    }
+
+    static LatencyDistribution uniform(Duration min, Duration max) {
+        long minNanos = min.toNanos();
+        long maxNanos = max.toNanos();
+        if (maxNanos <= minNanos) {
+            return fixed(min);
+        }
+        return random -> random.nextLong(minNanos, maxNanos);
+    }
+
+    /**
+     * @param median the 50th percentile
+     * @param p99 the 99th percentile, greater than the median
+     */
+    static LatencyDistribution logNormal(Duration median, Duration p99) {
+        double mu = Math.log(median.toNanos());
+        double sigma = (Math.log(p99.toNanos()) - mu) / Z_99;
+        if (!(sigma > 0)) {
+            throw new IllegalArgumentException("p99 must be greater than the median");
+        }
+        return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    /**
+     * Parse fixed:20ms, uniform:5ms:50ms, lognormal:20ms:250ms or none.
+     */
+    static LatencyDistribution parse(String value) {
+        String[] parts = value.trim().toLowerCase(Locale.ROOT).split(":");
+        return switch (parts[0]) {
+            case "none" -> none();
+            case "fixed" -> fixed(duration(parts, 1));
+            case "uniform" -> uniform(duration(parts, 1), duration(parts, 2));
+            case "lognormal" -> logNormal(duration(parts, 1), duration(parts, 2));
+            default -> throw new IllegalArgumentException("unknown latency distribution " + value);
+        };
+    }
+
+    private static Duration duration(String[] parts, int index) {
+        if (parts.length <= index) {
+            throw new IllegalArgumentException("missing duration in " + String.join(":", parts));
+        }
+        return Durations.parse(parts[index]);
+    }
+}
@@ -0,0 +1,74 @@
+package com.vincent.learning.token.simulator;
+
+import java.time.Duration;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * How the simulator answers a token request. The ratios are the probabilities of exclusive
+ * outcomes, drawn once per request, their sum must not exceed 1; the rest is a normal token
+ * response. A burst overrides them all while it lasts.
+ */
+@Getter
+@Builder(toBuilder = true)
+public class ResponseBehavior {
+
+    /** the time before the response headers, of every response but the resets. */
+    @Builder.Default private final LatencyDistribution latency = LatencyDistribution.none();
+
+    /** the connection is closed with a tcp reset instead of a response. */
+    private final double resetRatio;
+
+    /** 500 with a keycloak server error body. */
+    private final double errorRatio;
+
+    /** 400 invalid_grant, as keycloak answers a wrong password or an expired refresh token. */
+    private final double invalidGrantRatio;
+
+    /** a token response whose body is written in small chunks, slowly. */
+    private final double trickleRatio;
+
+    @Builder.Default private final int trickleChunkSize = 64;
+    @Builder.Default private final Duration trickleInterval = Duration.ofMillis(50);
+
+    /**
+     * all requests are answered burstStatus for the last burstLength of every burstEvery, the
+     * first burst starts burstEvery - burstLength after the start. null disables.
+     */
+    private final Duration burstEvery;
+
+    @Builder.Default private final Duration burstLength = Duration.ofSeconds(1);
+
+    /** 429 or 503, with a Retry-After header. */
+    @Builder.Default private final int burstStatus = 503;
+
+    @Builder.Default private final Duration burstRetryAfter = Duration.ofSeconds(1);
+
+    @Builder.Default private final Duration accessTokenLifetime = Duration.ofMinutes(5);
+    @Builder.Default private final Duration refreshTokenLifetime = Duration.ofMinutes(30);
+
+    public static ResponseBehavior normal() {
+        return ResponseBehavior.builder().build();
+    }
+
+    void check() {
+        double total = resetRatio + errorRatio + invalidGrantRatio + trickleRatio;
+        if (resetRatio < 0 || errorRatio < 0 || invalidGrantRatio < 0 || trickleRatio < 0) {
+            throw new IllegalArgumentException("a ratio must not be negative");
+        }
+        if (total > 1) {
+            throw new IllegalArgumentException("the sum of the ratios must not exceed 1");
+        }
+        if (trickleChunkSize <= 0) {
+            throw new IllegalArgumentException("trickleChunkSize must be positive");
+        }
+    }
+
+    /** @return whether a burst is running, elapsedNanos after the start of the simulator */
+    boolean inBurst(long elapsedNanos) {
+        return burstEvery != null
+                && !burstEvery.isZero()
+                && elapsedNanos % burstEvery.toNanos()
+                        >= burstEvery.toNanos() - burstLength.toNanos();
+    }
+}
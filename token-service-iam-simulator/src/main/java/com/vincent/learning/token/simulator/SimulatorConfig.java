@@ -0,0 +1,48 @@
+package com.vincent.learning.token.simulator;
+
+import io.netty.handler.ssl.SslProvider;
+import java.io.File;
+import lombok.Builder;
+import lombok.Getter;
+
+/** The listening side of the simulator, fixed once it is started. */
+@Getter
+@Builder
+public class SimulatorConfig {
+
+    public enum Tls {
+        NONE,
+        TLS,
+        /** the client must present a certificate. */
+        MTLS
+    }
+
+    @Builder.Default private final String host = "localhost";
+
+    /** 0 binds a free port, see {@link IamSimulator#port()}. */
+    private final int port;
+
+    @Builder.Default private final String realm = "oam";
+
+    @Builder.Default private final Tls tls = Tls.NONE;
+
+    /** pem certificate chain and pkcs8 key of the server, a self-signed one when null. */
+    private final File certificate;
+
+    private final File privateKey;
+
+    /** pem ca of the client certificates, any client certificate is accepted when null. */
+    private final File trustCertificate;
+
+    @Builder.Default private final SslProvider sslProvider = SslProvider.JDK;
+
+    /** 0 is the netty default, twice the cores. */
+    private final int workerThreads;
+
+    /** the name prefix of the event loop threads. */
+    @Builder.Default private final String threadPrefix = "iam-simulator";
+
+    public String rootPath() {
+        return "/auth/realms/" + realm + "/protocol/openid-connect";
+    }
+}
@@ -0,0 +1,222 @@
+package com.vincent.learning.token.simulator;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The token and certs endpoints of the realm. Nothing blocks: the latency and the trickle are
+ * scheduled on the event loop of the connection.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+class SimulatorHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    /** the client of a form without client_id, the service adds its own to every form. */
+    private static final String DEFAULT_CLIENT_ID = "admin-portal";
+
+    private static final byte[] CERTS = json("{\"keys\":[]}");
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] SERVER_ERROR = json("{\"error\":\"unknown_error\"}");
+    private static final byte[] INVALID_GRANT =
+            json(
+                    "{\"error\":\"invalid_grant\","
+                            + "\"error_description\":\"Invalid user credentials\"}");
+    private static final byte[] TOO_MANY_REQUESTS = json("{\"error\":\"too_many_requests\"}");
+    private static final byte[] UNAVAILABLE = json("{\"error\":\"temporarily_unavailable\"}");
+
+    private final IamSimulator simulator;
+    private final String tokenPath;
+    private final String certsPath;
+
+    SimulatorHandler(IamSimulator simulator, String rootPath) {
+        this.simulator = simulator;
+        this.tokenPath = rootPath + "/token";
+        this.certsPath = rootPath + "/certs";
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        String path = new QueryStringDecoder(request.uri()).path();
+        if (request.method() == HttpMethod.POST && path.equals(tokenPath)) {
+            token(ctx, request, keepAlive);
+        } else if (request.method() == HttpMethod.GET && path.equals(certsPath)) {
+            respond(ctx, HttpResponseStatus.OK, CERTS, keepAlive);
+        } else if (request.method() == HttpMethod.HEAD) {
+            // the warm-up of the connection pool
+            respond(ctx, HttpResponseStatus.OK, EMPTY, keepAlive);
+        } else {
+            respond(ctx, HttpResponseStatus.NOT_FOUND, EMPTY, keepAlive);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug("simulator connection failed", cause);
+        ctx.close();
+    }
+
+    private void token(ChannelHandlerContext ctx, FullHttpRequest request, boolean keepAlive) {
+        SimulatorStats stats = simulator.stats();
+        ResponseBehavior behavior = simulator.getBehavior();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        stats.requests.increment();
+
+        if (behavior.inBurst(simulator.elapsedNanos())) {
+            stats.bursts.increment();
+            boolean tooMany = behavior.getBurstStatus() == 429;
+            HttpResponseStatus status = HttpResponseStatus.valueOf(behavior.getBurstStatus());
+            long retryAfter = Math.max(1, behavior.getBurstRetryAfter().toSeconds());
+            later(
+                    ctx,
+                    behavior,
+                    random,
+                    () -> {
+                        FullHttpResponse response =
+                                response(status, tooMany ? TOO_MANY_REQUESTS : UNAVAILABLE);
+                        response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter);
+                        write(ctx, response, keepAlive);
+                    });
+            return;
+        }
+
+        // the ratios are consecutive slices of [0, 1), the outcome is the slice the draw falls in
+        double outcome = random.nextDouble();
+        if ((outcome -= behavior.getResetRatio()) < 0) {
+            stats.resets.increment();
+            // SO_LINGER 0 turns the close into a tcp reset
+            ctx.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+            ctx.close();
+            return;
+        }
+        if ((outcome -= behavior.getErrorRatio()) < 0) {
+            stats.errors.increment();
+            HttpResponseStatus status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+            later(ctx, behavior, random, () -> respond(ctx, status, SERVER_ERROR, keepAlive));
+            return;
+        }
+        if ((outcome -= behavior.getInvalidGrantRatio()) < 0) {
+            stats.invalidGrants.increment();
+            HttpResponseStatus status = HttpResponseStatus.BAD_REQUEST;
+            later(ctx, behavior, random, () -> respond(ctx, status, INVALID_GRANT, keepAlive));
+            return;
+        }
+
+        Map<String, List<String>> form =
+                new QueryStringDecoder(request.content().toString(StandardCharsets.UTF_8), false)
+                        .parameters();
+        String clientId = first(form, "client_id");
+        byte[] body =
+                simulator
+                        .tokenGenerator()
+                        .tokenResponse(
+                                first(form, "username"),
+                                clientId != null ? clientId : DEFAULT_CLIENT_ID,
+                                !"client_credentials".equals(first(form, "grant_type")),
+                                behavior);
+        stats.tokens.increment();
+        if ((outcome -= behavior.getTrickleRatio()) < 0) {
+            stats.trickles.increment();
+            later(ctx, behavior, random, () -> trickle(ctx, body, 0, behavior, keepAlive));
+        } else {
+            HttpResponseStatus status = HttpResponseStatus.OK;
+            later(ctx, behavior, random, () -> respond(ctx, status, body, keepAlive));
+        }
+    }
+
+    /** the headers, then one chunk every trickleInterval. */
+    private void trickle(
+            ChannelHandlerContext ctx,
+            byte[] body,
+            int offset,
+            ResponseBehavior behavior,
+            boolean keepAlive) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        if (offset == 0) {
+            HttpResponse response =
+                    new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            headers(response, body.length, keepAlive);
+            ctx.write(response);
+        }
+        int length = Math.min(behavior.getTrickleChunkSize(), body.length - offset);
+        int next = offset + length;
+        if (next >= body.length) {
+            HttpContent last =
+                    new DefaultLastHttpContent(Unpooled.wrappedBuffer(body, offset, length));
+            ctx.writeAndFlush(last).addListener(closeListener(keepAlive));
+            return;
+        }
+        ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(body, offset, length)));
+        ctx.executor()
+                .schedule(
+                        () -> trickle(ctx, body, next, behavior, keepAlive),
+                        behavior.getTrickleInterval().toNanos(),
+                        TimeUnit.NANOSECONDS);
+    }
+
+    private static void later(
+            ChannelHandlerContext ctx,
+            ResponseBehavior behavior,
+            ThreadLocalRandom random,
+            Runnable task) {
+        long delay = behavior.getLatency().sampleNanos(random);
+        if (delay <= 0) {
+            task.run();
+        } else {
+            ctx.executor().schedule(task, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void respond(
+            ChannelHandlerContext ctx, HttpResponseStatus status, byte[] body, boolean keepAlive) {
+        write(ctx, response(status, body), keepAlive);
+    }
+
+    private static FullHttpResponse response(HttpResponseStatus status, byte[] body) {
+        return new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, status, Unpooled.wrappedBuffer(body));
+    }
+
+    private static void write(
+            ChannelHandlerContext ctx, FullHttpResponse response, boolean keepAlive) {
+        if (!ctx.channel().isActive()) {
+            response.release();
+            return;
+        }
+        headers(response, response.content().readableBytes(), keepAlive);
+        ctx.writeAndFlush(response).addListener(closeListener(keepAlive));
+    }
+
+    private static ChannelFutureListener closeListener(boolean keepAlive) {
+        return keepAlive ? ChannelFutureListener.CLOSE_ON_FAILURE : ChannelFutureListener.CLOSE;
+    }
+
+    private static void headers(HttpResponse response, int contentLength, boolean keepAlive) {
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        HttpUtil.setKeepAlive(response, keepAlive);
+    }
+
+    private static String first(Map<String, List<String>> form, String name) {
+        List<String> values = form.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static byte[] json(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
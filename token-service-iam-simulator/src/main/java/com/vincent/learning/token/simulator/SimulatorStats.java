@@ -0,0 +1,59 @@
+package com.vincent.learning.token.simulator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** What the simulator answered since it was started, e.g. to check a test or a run. */
+public class SimulatorStats {
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder tokens = new LongAdder();
+    final LongAdder resets = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder invalidGrants = new LongAdder();
+    final LongAdder trickles = new LongAdder();
+    final LongAdder bursts = new LongAdder();
+
+    /** the token requests. */
+    public long requests() {
+        return requests.sum();
+    }
+
+    /** the token responses, the trickled ones included. */
+    public long tokens() {
+        return tokens.sum();
+    }
+
+    public long resets() {
+        return resets.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public long invalidGrants() {
+        return invalidGrants.sum();
+    }
+
+    public long trickles() {
+        return trickles.sum();
+    }
+
+    /** the requests answered by a burst status. */
+    public long bursts() {
+        return bursts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "requests=%d tokens=%d resets=%d errors=%d invalidGrants=%d trickles=%d bursts=%d",
+                requests(),
+                tokens(),
+                resets(),
+                errors(),
+                invalidGrants(),
+                trickles(),
+                bursts());
+    }
+}
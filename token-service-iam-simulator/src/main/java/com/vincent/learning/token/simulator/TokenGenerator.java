@@ -0,0 +1,157 @@
+package com.vincent.learning.token.simulator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Token responses shaped like the ones of keycloak: an RS256 access token and an HS256 refresh
+ * token with the usual claims, so the sizes and the parsing cost are realistic. The signatures
+ * are random bytes of the right length, nothing verifies them.
+ */
+class TokenGenerator {
+
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+    private static final String ACCESS_HEADER =
+            encode("{\"alg\":\"RS256\",\"typ\":\"JWT\",\"kid\":\"" + UUID.randomUUID() + "\"}");
+    private static final String REFRESH_HEADER =
+            encode("{\"alg\":\"HS256\",\"typ\":\"JWT\",\"kid\":\"" + UUID.randomUUID() + "\"}");
+    private static final String SCOPE = "openid profile email";
+
+    private final String issuer;
+
+    TokenGenerator(String issuer) {
+        this.issuer = issuer;
+    }
+
+    /**
+     * @param username the user of a password grant, null for the other grants
+     * @param clientId the client, the azp of the tokens
+     * @param withRefreshToken false for client_credentials, keycloak issues no refresh token
+     */
+    byte[] tokenResponse(
+            String username, String clientId, boolean withRefreshToken, ResponseBehavior behavior) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.currentTimeMillis() / 1000;
+        long accessLifetime = behavior.getAccessTokenLifetime().toSeconds();
+        long refreshLifetime =
+                withRefreshToken ? behavior.getRefreshTokenLifetime().toSeconds() : 0;
+        String user = username != null ? username : "service-account-" + clientId;
+        String subject = UUID.nameUUIDFromBytes(user.getBytes(StandardCharsets.UTF_8)).toString();
+        String session = new UUID(random.nextLong(), random.nextLong()).toString();
+
+        StringBuilder json = new StringBuilder(2560);
+        json.append("{\"access_token\":\"")
+                .append(accessToken(now, accessLifetime, subject, session, user, clientId, random))
+                .append("\",\"expires_in\":")
+                .append(accessLifetime)
+                .append(",\"refresh_expires_in\":")
+                .append(refreshLifetime);
+        if (withRefreshToken) {
+            json.append(",\"refresh_token\":\"")
+                    .append(refreshToken(now, refreshLifetime, subject, session, clientId, random))
+                    .append('"');
+        }
+        json.append(",\"token_type\":\"Bearer\",\"not-before-policy\":0,\"session_state\":\"")
+                .append(session)
+                .append("\",\"scope\":\"")
+                .append(SCOPE)
+                .append("\"}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String accessToken(
+            long now,
+            long lifetime,
+            String subject,
+            String session,
+            String user,
+            String clientId,
+            ThreadLocalRandom random) {
+        String payload =
+                claims(now, lifetime, subject, session, "Bearer", "account", clientId, random)
+                        + ",\"acr\":\"1\",\"realm_access\":{\"roles\":[\"offline_access\","
+                        + "\"uma_authorization\"]},\"scope\":\""
+                        + SCOPE
+                        + "\",\"email_verified\":false,\"preferred_username\":\""
+                        + escape(user)
+                        + "\"}";
+        // an RSA 2048 signature
+        return ACCESS_HEADER + "." + encode(payload) + "." + signature(256, random);
+    }
+
+    private String refreshToken(
+            long now,
+            long lifetime,
+            String subject,
+            String session,
+            String clientId,
+            ThreadLocalRandom random) {
+        String payload =
+                claims(now, lifetime, subject, session, "Refresh", issuer, clientId, random)
+                        + ",\"scope\":\""
+                        + SCOPE
+                        + "\"}";
+        // an HMAC SHA-256 signature
+        return REFRESH_HEADER + "." + encode(payload) + "." + signature(32, random);
+    }
+
+    private String claims(
+            long now,
+            long lifetime,
+            String subject,
+            String session,
+            String type,
+            String audience,
+            String clientId,
+            ThreadLocalRandom random) {
+        return "{\"exp\":"
+                + (now + lifetime)
+                + ",\"iat\":"
+                + now
+                + ",\"jti\":\""
+                + new UUID(random.nextLong(), random.nextLong())
+                + "\",\"iss\":\""
+                + issuer
+                + "\",\"aud\":\""
+                + audience
+                + "\",\"sub\":\""
+                + subject
+                + "\",\"typ\":\""
+                + type
+                + "\",\"azp\":\""
+                + escape(clientId)
+                + "\",\"session_state\":\""
+                + session
+                + "\",\"sid\":\""
+                + session
+                + "\"";
+    }
+
+    private static String signature(int length, ThreadLocalRandom random) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return BASE64URL.encodeToString(bytes);
+    }
+
+    private static String encode(String json) {
+        return BASE64URL.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** the form values are echoed in the json, they are escaped. */
+    static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package com.vincent.learning.token;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.vincent.learning.token.exception.ErrorConstants;
+import com.vincent.learning.token.model.GrantType;
+import com.vincent.learning.token.simulator.IamSimulator;
+import com.vincent.learning.token.simulator.ResponseBehavior;
+import com.vincent.learning.token.simulator.SimulatorConfig;
+import com.vincent.learning.token.util.EncodeUtil;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
+
+/** The token exchange against the IAM simulator, with its faults. */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@DirtiesContext
+@AutoConfigureWebTestClient(timeout = "10000")
+@ActiveProfiles("test")
+class TokenIntegrationSimulatorTest {
+
+    private static IamSimulator iamSimulator;
+
+    @Autowired private WebTestClient webClient;
+
+    @BeforeAll
+    static void startSimulator() throws IOException, GeneralSecurityException {
+        iamSimulator =
+                new IamSimulator(SimulatorConfig.builder().build(), ResponseBehavior.normal())
+                        .start();
+    }
+
+    @AfterAll
+    static void stopSimulator() {
+        iamSimulator.close();
+    }
+
+    @DynamicPropertySource
+    static void iamProperties(DynamicPropertyRegistry registry) {
+        registry.add("iam.port", () -> iamSimulator.port());
+    }
+
+    @BeforeEach
+    public void setUp() {
+        iamSimulator.setBehavior(ResponseBehavior.normal());
+    }
+
+    @Test
+    void test_get_token() {
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(passwordForm("user1")))
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.token_type")
+                .isEqualTo("Bearer")
+                .jsonPath("$.expires_in")
+                .isEqualTo(300)
+                .jsonPath("$.access_token")
+                .value(token -> assertEquals(3, token.toString().split("\\.").length))
+                .jsonPath("$.refresh_token")
+                .exists();
+    }
+
+    @Test
+    void test_invalid_grant() {
+        iamSimulator.setBehavior(ResponseBehavior.builder().invalidGrantRatio(1).build());
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(passwordForm("user2")))
+                .exchange()
+                .expectStatus()
+                .isBadRequest()
+                .expectBody()
+                .jsonPath("$.error")
+                .isEqualTo(ErrorConstants.INVALID_GRANT);
+    }
+
+    @Test
+    void test_iam_burst() {
+        // a burst as long as its period never ends
+        iamSimulator.setBehavior(
+                ResponseBehavior.builder()
+                        .burstEvery(Duration.ofHours(1))
+                        .burstLength(Duration.ofHours(1))
+                        .burstStatus(429)
+                        .build());
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(passwordForm("user3")))
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+        assertTrue(iamSimulator.stats().bursts() > 0);
+    }
+
+    @Test
+    void test_connection_reset() {
+        iamSimulator.setBehavior(ResponseBehavior.builder().resetRatio(1).build());
+
+        webClient
+                .post()
+                .uri("/iam/openid-connect/v1/token")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(passwordForm("user4")))
+                .exchange()
+                .expectStatus()
+                .is5xxServerError();
+        assertTrue(iamSimulator.stats().resets() > 0);
+    }
+
+    private static MultiValueMap<String, String> passwordForm(String username) {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<>();
+        formData.add("username", username);
+        formData.add("password", EncodeUtil.encodeBase64("passwd"));
+        formData.add("grant_type", GrantType.PASSWORD.name());
+        return formData;
+    }
+}
@@ -0,0 +1,67 @@
+package com.vincent.learning.token.journal;
+
+import com.vincent.learning.token.service.AuthEvent;
+import java.util.Arrays;
+
+/** The count, the errors and the latency percentiles of a group of events. */
+class GroupStats {
+    static final String HEADER =
+            String.format(
+                    "%-40s %10s %8s %10s %10s %10s %10s %12s",
+                    "group",
+                    "count",
+                    "errors",
+                    "p50 ms",
+                    "p99 ms",
+                    "p999 ms",
+                    "max ms",
+                    "upstream p50");
+
+    private int[] latencies = new int[64];
+    private int[] upstreams = new int[64];
+    private int count;
+    private int upstreamCount;
+    private int errors;
+
+    void add(AuthEvent event) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = event.latencyMicros();
+        if (event.upstreamMicros() >= 0) {
+            if (upstreamCount == upstreams.length) {
+                upstreams = Arrays.copyOf(upstreams, upstreamCount * 2);
+            }
+            upstreams[upstreamCount++] = event.upstreamMicros();
+        }
+        if (event.status() >= 400) {
+            errors++;
+        }
+    }
+
+    String format(String group) {
+        Arrays.sort(latencies, 0, count);
+        Arrays.sort(upstreams, 0, upstreamCount);
+        return String.format(
+                "%-40s %10d %8d %10.3f %10.3f %10.3f %10.3f %12s",
+                group,
+                count,
+                errors,
+                percentile(latencies, count, 0.5),
+                percentile(latencies, count, 0.99),
+                percentile(latencies, count, 0.999),
+                percentile(latencies, count, 1),
+                upstreamCount == 0
+                        ? "-"
+                        : String.format("%.3f", percentile(upstreams, upstreamCount, 0.5)));
+    }
+
+    /** the nearest rank percentile of the sorted values, in millis. */
+    private static double percentile(int[] sorted, int length, double quantile) {
+        if (length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * length);
+        return sorted[Math.max(0, rank - 1)] / 1000.0;
+    }
+}
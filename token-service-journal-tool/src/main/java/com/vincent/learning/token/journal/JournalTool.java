@@ -0,0 +1,216 @@
+package com.vincent.learning.token.journal;
+
+import com.vincent.learning.token.service.AuthEvent;
+import com.vincent.learning.token.service.AuthEventSegment;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Decode, filter and aggregate the segments of the auth event journal offline.
+ *
+ * <pre>
+ * java -jar journal-tool.jar dump journal/ --from=2026-10-17T08:00:00Z --status=4xx
+ * java -jar journal-tool.jar stats journal/ --by=hour --grant-type=password
+ * java -jar journal-tool.jar stats journal/auth-events-1792224000000.journal --by=client_ip
+ * java -jar journal-tool.jar hash --user=alice --hash-key=...
+ * </pre>
+ *
+ * The filters are --from and --to (ISO instants, --to excluded), --grant-type, --status (a code
+ * or a class like 5xx), --client-ip and --user (hashed with --hash-key, the key of the service,
+ * required) or --user-hash. stats groups by grant_type (the default), status, client_ip, user,
+ * minute or hour.
+ */
+public class JournalTool {
+    private static final List<String> GROUPS =
+            List.of("grant_type", "status", "client_ip", "user", "minute", "hour");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        List<Path> paths = new ArrayList<>();
+        for (String arg : Arrays.copyOfRange(args, 1, args.length)) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--")) {
+                paths.add(Path.of(arg));
+            } else if (separator < 0) {
+                throw new IllegalArgumentException("expected --name=value, got " + arg);
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+
+        switch (args[0]) {
+            case "dump" -> dump(segments(paths), filter(options), System.out);
+            case "stats" -> stats(segments(paths), filter(options), group(options), System.out);
+            case "hash" -> System.out.println(HexFormat.of().formatHex(userHash(options)));
+            default -> usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println(
+                "usage: dump|stats <segment or directory>... [--from=] [--to=] [--grant-type=]"
+                        + " [--status=] [--client-ip=] [--user= --hash-key=] [--user-hash=]"
+                        + " [--by=grant_type|status|client_ip|user|minute|hour]\n"
+                        + "       hash --user= --hash-key=");
+    }
+
+    /** the segment files, a directory stands for its segments, in time order. */
+    static List<Path> segments(List<Path> paths) throws IOException {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("no segment or directory given");
+        }
+        List<Path> segments = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                segments.addAll(AuthEventSegment.list(path));
+            } else {
+                segments.add(path);
+            }
+        }
+        return segments;
+    }
+
+    static Predicate<AuthEvent> filter(Map<String, String> options) {
+        Predicate<AuthEvent> filter = event -> true;
+        if (options.containsKey("from")) {
+            long from = Instant.parse(options.get("from")).toEpochMilli();
+            filter = filter.and(event -> event.timestamp() >= from);
+        }
+        if (options.containsKey("to")) {
+            long to = Instant.parse(options.get("to")).toEpochMilli();
+            filter = filter.and(event -> event.timestamp() < to);
+        }
+        if (options.containsKey("grant-type")) {
+            String grantType = options.get("grant-type");
+            filter = filter.and(event -> event.grantType().equals(grantType));
+        }
+        if (options.containsKey("status")) {
+            String status = options.get("status");
+            if (status.endsWith("xx")) {
+                int statusClass = Integer.parseInt(status.substring(0, status.length() - 2));
+                filter = filter.and(event -> event.status() / 100 == statusClass);
+            } else {
+                int code = Integer.parseInt(status);
+                filter = filter.and(event -> event.status() == code);
+            }
+        }
+        if (options.containsKey("client-ip")) {
+            InetAddress address = address(options.get("client-ip"));
+            filter = filter.and(event -> address.equals(event.clientAddress()));
+        }
+        if (options.containsKey("user") || options.containsKey("user-hash")) {
+            byte[] userHash = userHash(options);
+            filter = filter.and(event -> Arrays.equals(userHash, event.userHash()));
+        }
+        return filter;
+    }
+
+    private static byte[] userHash(Map<String, String> options) {
+        if (options.containsKey("user-hash")) {
+            return HexFormat.of().parseHex(options.get("user-hash"));
+        }
+        if (!options.containsKey("user")) {
+            throw new IllegalArgumentException("--user is missing");
+        }
+        if (!options.containsKey("hash-key")) {
+            throw new IllegalArgumentException("--hash-key is missing, the key of the service");
+        }
+        byte[] key = options.get("hash-key").getBytes(StandardCharsets.UTF_8);
+        return AuthEventSegment.userHasher(key).apply(options.get("user"));
+    }
+
+    static Function<AuthEvent, String> group(Map<String, String> options) {
+        String by = options.getOrDefault("by", "grant_type");
+        return switch (by) {
+            case "grant_type" -> AuthEvent::grantType;
+            case "status" -> event -> String.valueOf(event.status());
+            case "client_ip" -> event ->
+                    event.clientAddress() == null ? "-" : event.clientAddress().getHostAddress();
+            case "user" -> event -> String.valueOf(event.userHashHex());
+            case "minute" -> event -> event.time().truncatedTo(ChronoUnit.MINUTES).toString();
+            case "hour" -> event -> event.time().truncatedTo(ChronoUnit.HOURS).toString();
+            default -> throw new IllegalArgumentException("--by is one of " + GROUPS);
+        };
+    }
+
+    static void dump(List<Path> segments, Predicate<AuthEvent> filter, PrintStream out)
+            throws IOException {
+        out.println("time\tgrant_type\tstatus\tlatency_ms\tupstream_ms\tclient_ip\tuser");
+        for (Path segment : segments) {
+            AuthEventSegment.read(
+                    segment,
+                    event -> {
+                        if (filter.test(event)) {
+                            out.printf(
+                                    "%s\t%s\t%d\t%s\t%s\t%s\t%s%n",
+                                    event.time(),
+                                    event.grantType(),
+                                    event.status(),
+                                    millis(event.latencyMicros()),
+                                    event.upstreamMicros() < 0
+                                            ? "-"
+                                            : millis(event.upstreamMicros()),
+                                    event.clientAddress() == null
+                                            ? "-"
+                                            : event.clientAddress().getHostAddress(),
+                                    event.userHash() == null ? "-" : event.userHashHex());
+                        }
+                    });
+        }
+    }
+
+    static void stats(
+            List<Path> segments,
+            Predicate<AuthEvent> filter,
+            Function<AuthEvent, String> group,
+            PrintStream out)
+            throws IOException {
+        Map<String, GroupStats> groups = new TreeMap<>();
+        GroupStats total = new GroupStats();
+        for (Path segment : segments) {
+            AuthEventSegment.read(
+                    segment,
+                    event -> {
+                        if (filter.test(event)) {
+                            groups.computeIfAbsent(group.apply(event), key -> new GroupStats())
+                                    .add(event);
+                            total.add(event);
+                        }
+                    });
+        }
+        out.println(GroupStats.HEADER);
+        groups.forEach((key, stats) -> out.println(stats.format(key)));
+        out.println(total.format("total"));
+    }
+
+    private static String millis(int micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+
+    private static InetAddress address(String value) {
+        try {
+            return InetAddress.getByName(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("not an ip address: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.vincent.learning.token.loadtest;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+/**
+ * Open model traffic: the requests are sent at the configured arrival rate whatever the latency of
+ * the service, a slow response does not delay the next request as it would with a fixed number of
+ * users in a loop.
+ *
+ * <p>Two latencies are recorded. The response time is measured from the time the request was
+ * scheduled to be sent, so a stall of the driver or of the service is charged to every request
+ * which should have been sent during the stall (the coordinated omission correction). The service
+ * time is measured from the time it was really sent.
+ */
+@Slf4j
+public class LoadGenerator implements AutoCloseable {
+
+    static final String THREAD_PREFIX = "loadtest";
+
+    private static final CharSequence FORM = HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED;
+    private static final String ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    private final LoadTestOptions options;
+    private final LoopResources loops = LoopResources.create(THREAD_PREFIX, 2, true);
+    private final ConnectionProvider connectionProvider;
+    private final HttpClient client;
+    private final byte[][] passwordForms;
+    private final byte[][] refreshForms;
+
+    private final Recorder responseTime = new Recorder(3);
+    private final Recorder serviceTime = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder success = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger maxOutstanding = new AtomicInteger();
+
+    /** the results of the requests sent in a previous phase are not recorded. */
+    private volatile int phase;
+
+    public LoadGenerator(LoadTestOptions options, int port) {
+        this.options = options;
+        this.connectionProvider =
+                ConnectionProvider.builder(THREAD_PREFIX)
+                        .maxConnections(options.connections())
+                        .pendingAcquireMaxCount(-1)
+                        .pendingAcquireTimeout(options.timeout())
+                        .build();
+        this.client =
+                HttpClient.create(connectionProvider)
+                        .runOn(loops)
+                        .baseUrl("http://localhost:" + port)
+                        .headers(headers -> headers.set(HttpHeaderNames.CONTENT_TYPE, FORM));
+
+        // the forms are built once, the driver should allocate as little as possible per request
+        passwordForms = new byte[options.users()][];
+        refreshForms = new byte[options.users()][];
+        for (int i = 0; i < options.users(); i++) {
+            String password = Base64.getEncoder().encodeToString(("password-" + i).getBytes());
+            passwordForms[i] =
+                    form("grant_type=password&username=user" + i + "&password=" + encode(password));
+            refreshForms[i] =
+                    form("grant_type=refresh_token&refresh_token=" + opaqueToken(750) + i);
+        }
+    }
+
+    /** send at the rate for the duration, then wait for the outstanding responses. */
+    public void run(Duration duration) {
+        int currentPhase = phase;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate();
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        for (long i = 0; ; i++) {
+            long intendedStart = start + i * intervalNanos;
+            if (intendedStart >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intendedStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // late requests are sent at once, their response time still starts at intendedStart
+            send(currentPhase, intendedStart);
+        }
+
+        long drainDeadline = System.nanoTime() + options.timeout().toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    /** discard the results so far, e.g. those of the warm-up. */
+    public void reset() {
+        phase++;
+        responseTime.reset();
+        serviceTime.reset();
+        sent.reset();
+        success.reset();
+        errors.clear();
+        maxOutstanding.set(outstanding.get());
+    }
+
+    public Histogram responseTime() {
+        return responseTime.getIntervalHistogram();
+    }
+
+    public Histogram serviceTime() {
+        return serviceTime.getIntervalHistogram();
+    }
+
+    public long sent() {
+        return sent.sum();
+    }
+
+    public long success() {
+        return success.sum();
+    }
+
+    public Map<String, Long> errors() {
+        Map<String, Long> result = new TreeMap<>();
+        errors.forEach((key, count) -> result.put(key, count.sum()));
+        return result;
+    }
+
+    public int maxOutstanding() {
+        return maxOutstanding.get();
+    }
+
+    @Override
+    public void close() {
+        connectionProvider.dispose();
+        loops.dispose();
+    }
+
+    private void send(int currentPhase, long intendedStart) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int user = random.nextInt(options.users());
+        byte[] form =
+                random.nextDouble() < options.passwordRatio()
+                        ? passwordForms[user]
+                        : refreshForms[user];
+
+        sent.increment();
+        maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+        long sendStart = System.nanoTime();
+        client.post()
+                .uri("/iam/openid-connect/v1/token")
+                .send(Mono.fromSupplier(() -> Unpooled.wrappedBuffer(form)))
+                .responseSingle((response, body) -> body.then(Mono.just(response.status().code())))
+                .timeout(options.timeout())
+                .subscribe(
+                        status -> {
+                            outstanding.decrementAndGet();
+                            if (currentPhase != phase) {
+                                return;
+                            }
+                            record(intendedStart, sendStart);
+                            if (status == 200) {
+                                success.increment();
+                            } else {
+                                error(String.valueOf(status));
+                            }
+                        },
+                        e -> {
+                            outstanding.decrementAndGet();
+                            if (currentPhase != phase) {
+                                return;
+                            }
+                            record(intendedStart, sendStart);
+                            error(e instanceof TimeoutException ? "timeout" : "io_error");
+                            log.debug("request failed", e);
+                        });
+    }
+
+    private void record(long intendedStart, long sendStart) {
+        long now = System.nanoTime();
+        responseTime.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intendedStart));
+        serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(now - sendStart));
+    }
+
+    private void error(String key) {
+        errors.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    private static byte[] form(String form) {
+        return form.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.US_ASCII);
+    }
+
+    /** a base64url string of the given length, shaped like a signed jwt. */
+    static String opaqueToken(int length) {
+        StringBuilder token = new StringBuilder(length);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < length; i++) {
+            boolean separator = i == length / 3 || i == 2 * length / 3;
+            token.append(separator ? '.' : ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return token.toString();
+    }
+}
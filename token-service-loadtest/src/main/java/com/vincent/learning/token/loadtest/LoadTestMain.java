@@ -0,0 +1,144 @@
+package com.vincent.learning.token.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vincent.learning.token.TokenServiceApplication;
+import com.vincent.learning.token.simulator.IamSimulator;
+import com.vincent.learning.token.simulator.LatencyDistribution;
+import com.vincent.learning.token.simulator.ResponseBehavior;
+import com.vincent.learning.token.simulator.SimulatorConfig;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Boot the token service against the IAM simulator, drive /token at a constant arrival rate and
+ * write the latencies, errors, cpu and allocation of the run as json.
+ *
+ * <pre>
+ * java -jar target/loadtest.jar --load.rate=2000 --load.duration=2m \
+ *     --load.report=http2.json --iam.client.http2.enabled=true
+ * </pre>
+ *
+ * The service listens on a random port and calls the simulator over plain http, the other arguments
+ * are passed to it as they are, see {@link LoadTestOptions}.
+ */
+@Slf4j
+public class LoadTestMain {
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        // the scheduling loop runs on this thread, it is accounted as the driver
+        Thread.currentThread().setName(LoadGenerator.THREAD_PREFIX + "-main");
+
+        try (IamSimulator iam = startIam(options);
+                ConfigurableApplicationContext context = startService(options, iam.port());
+                LoadGenerator generator = new LoadGenerator(options, servicePort(context))) {
+            log.info("warm-up for {} at {} requests/s", options.warmup(), options.rate());
+            generator.run(options.warmup());
+            generator.reset();
+
+            log.info("measure for {}", options.duration());
+            ResourceSampler sampler = new ResourceSampler();
+            sampler.start();
+            String startTime = Instant.now().toString();
+            long start = System.nanoTime();
+            generator.run(options.duration());
+            long elapsedNanos = System.nanoTime() - start;
+
+            LoadTestReport report = report(options, startTime, generator, sampler, elapsedNanos);
+            new ObjectMapper()
+                    .writerWithDefaultPrettyPrinter()
+                    .writeValue(options.report().toFile(), report);
+            log.info(
+                    "{} requests, {} errors, p50 {}ms, p99 {}ms, p99.9 {}ms, report in {}",
+                    report.requests().completed(),
+                    report.requests().completed() - report.requests().success(),
+                    report.responseTime().p50(),
+                    report.responseTime().p99(),
+                    report.responseTime().p999(),
+                    options.report().toAbsolutePath());
+        }
+    }
+
+    private static IamSimulator startIam(LoadTestOptions options)
+            throws IOException, GeneralSecurityException {
+        SimulatorConfig config =
+                SimulatorConfig.builder().threadPrefix(ResourceSampler.IAM_THREAD_PREFIX).build();
+        ResponseBehavior behavior =
+                ResponseBehavior.builder()
+                        .latency(LatencyDistribution.parse(options.iamLatency()))
+                        .build();
+        return new IamSimulator(config, behavior).start();
+    }
+
+    private static ConfigurableApplicationContext startService(LoadTestOptions options, int port) {
+        // the defaults, an argument of the command line overrides them
+        Map<String, Object> defaults =
+                Map.of(
+                        "server.port", 0,
+                        "iam.tls-enable", "disabled",
+                        "iam.host", "localhost",
+                        "iam.port", port,
+                        "iam.endpoints", "");
+        return new SpringApplicationBuilder(TokenServiceApplication.class)
+                .properties(defaults)
+                .run(options.applicationArgs().toArray(String[]::new));
+    }
+
+    private static int servicePort(ConfigurableApplicationContext context) {
+        return context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+
+    private static LoadTestReport report(
+            LoadTestOptions options,
+            String startTime,
+            LoadGenerator generator,
+            ResourceSampler sampler,
+            long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Long> errors = generator.errors();
+        long success = generator.success();
+        long completed = success + errors.values().stream().mapToLong(Long::longValue).sum();
+        Histogram responseTime = generator.responseTime();
+        Histogram serviceTime = generator.serviceTime();
+
+        Map<String, ResourceSampler.Usage> usage = sampler.usageByGroup();
+        Map<String, Double> cpuCores = new TreeMap<>();
+        Map<String, Long> allocationRate = new TreeMap<>();
+        usage.forEach(
+                (group, groupUsage) -> {
+                    cpuCores.put(group, groupUsage.cpuNanos() / (double) elapsedNanos);
+                    allocationRate.put(group, (long) (groupUsage.allocatedBytes() / seconds));
+                });
+        ResourceSampler.Usage service =
+                usage.getOrDefault(ResourceSampler.SERVICE, new ResourceSampler.Usage(0, 0));
+        long serviceAllocation = completed == 0 ? 0 : service.allocatedBytes() / completed;
+
+        return new LoadTestReport(
+                startTime,
+                LoadTestReport.Environment.current(),
+                LoadTestReport.Scenario.of(options),
+                new LoadTestReport.Requests(
+                        generator.sent(),
+                        completed,
+                        success,
+                        completed / seconds,
+                        generator.maxOutstanding(),
+                        errors),
+                LoadTestReport.Latency.of(responseTime),
+                LoadTestReport.Latency.of(serviceTime),
+                new LoadTestReport.Resources(
+                        sampler.processCpuNanos() / (double) elapsedNanos,
+                        cpuCores,
+                        allocationRate,
+                        serviceAllocation,
+                        sampler.gcCount(),
+                        sampler.gcMillis()));
+    }
+}
@@ -0,0 +1,82 @@
+package com.vincent.learning.token.loadtest;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.convert.DurationStyle;
+
+/**
+ * The options of one run. The arguments prefixed by --load. are the options of the driver, every
+ * other argument is passed to the application, e.g. --iam.client.http2.enabled=true, so the same
+ * scenario can be compared across configuration flags.
+ *
+ * @param rate the arrival rate, requests per second, whatever the latency of the service
+ * @param warmup the time at the rate before the measurement, its results are discarded
+ * @param duration the time of the measurement
+ * @param passwordRatio the share of password grants, the rest are refresh_token grants
+ * @param users the distinct users, so the requests are not all coalesced into one IAM call
+ * @param connections the max connections of the driver to the service
+ * @param timeout a request without response after this time is counted as a timeout error
+ * @param iamLatency the latency distribution of the IAM simulator, e.g. lognormal:20ms:150ms
+ * @param report the file of the json report
+ * @param applicationArgs the arguments of the application
+ */
+public record LoadTestOptions(
+        int rate,
+        Duration warmup,
+        Duration duration,
+        double passwordRatio,
+        int users,
+        int connections,
+        Duration timeout,
+        String iamLatency,
+        Path report,
+        List<String> applicationArgs) {
+
+    static final String PREFIX = "--load.";
+
+    public static LoadTestOptions parse(String... args) {
+        Map<String, String> options = new HashMap<>();
+        List<String> applicationArgs = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith(PREFIX) && separator > 0) {
+                String name = arg.substring(PREFIX.length(), separator);
+                options.put(name, arg.substring(separator + 1));
+            } else {
+                applicationArgs.add(arg);
+            }
+        }
+
+        LoadTestOptions loadTestOptions =
+                new LoadTestOptions(
+                        Integer.parseInt(options.getOrDefault("rate", "500")),
+                        duration(options.getOrDefault("warmup", "30s")),
+                        duration(options.getOrDefault("duration", "60s")),
+                        Double.parseDouble(options.getOrDefault("password-ratio", "0.2")),
+                        Integer.parseInt(options.getOrDefault("users", "1000")),
+                        Integer.parseInt(options.getOrDefault("connections", "1000")),
+                        duration(options.getOrDefault("timeout", "10s")),
+                        options.getOrDefault("iam-latency", "lognormal:20ms:150ms"),
+                        Path.of(options.getOrDefault("report", "loadtest-report.json")),
+                        List.copyOf(applicationArgs));
+        loadTestOptions.check();
+        return loadTestOptions;
+    }
+
+    private void check() {
+        if (rate <= 0 || users <= 0 || connections <= 0) {
+            throw new IllegalArgumentException("rate, users and connections must be positive");
+        }
+        if (passwordRatio < 0 || passwordRatio > 1) {
+            throw new IllegalArgumentException("password-ratio must be between 0 and 1");
+        }
+    }
+
+    private static Duration duration(String value) {
+        return DurationStyle.detectAndParse(value);
+    }
+}
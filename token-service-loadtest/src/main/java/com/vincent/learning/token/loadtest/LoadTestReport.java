@@ -0,0 +1,119 @@
+package com.vincent.learning.token.loadtest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The machine readable result of one run, written as json. The latencies are in milliseconds,
+ * the full histograms are kept in the compressed HdrHistogram encoding so two runs can be
+ * compared at any percentile or merged afterwards.
+ */
+public record LoadTestReport(
+        String startTime,
+        Environment environment,
+        Scenario scenario,
+        Requests requests,
+        Latency responseTime,
+        Latency serviceTime,
+        Resources resources) {
+
+    public record Environment(String javaVersion, String vm, int availableProcessors) {
+
+        static Environment current() {
+            return new Environment(
+                    System.getProperty("java.version"),
+                    System.getProperty("java.vm.name"),
+                    Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public record Scenario(
+            int rate,
+            String warmup,
+            String duration,
+            double passwordRatio,
+            int users,
+            int connections,
+            String timeout,
+            String iamLatency,
+            List<String> applicationArgs) {
+
+        static Scenario of(LoadTestOptions options) {
+            return new Scenario(
+                    options.rate(),
+                    options.warmup().toString(),
+                    options.duration().toString(),
+                    options.passwordRatio(),
+                    options.users(),
+                    options.connections(),
+                    options.timeout().toString(),
+                    options.iamLatency(),
+                    options.applicationArgs());
+        }
+    }
+
+    /**
+     * @param throughput the completed requests per second, below the rate when the service or
+     *     the driver cannot keep up
+     * @param errors by http status, timeout or io_error
+     */
+    public record Requests(
+            long sent,
+            long completed,
+            long success,
+            double throughput,
+            int maxOutstanding,
+            Map<String, Long> errors) {}
+
+    public record Latency(
+            long count,
+            double mean,
+            double p50,
+            double p90,
+            double p99,
+            double p999,
+            double p9999,
+            double max,
+            String histogram) {
+
+        private static final double MICROS_PER_MILLI = 1000.0;
+
+        static Latency of(Histogram histogram) {
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+            return new Latency(
+                    histogram.getTotalCount(),
+                    histogram.getMean() / MICROS_PER_MILLI,
+                    millis(histogram, 50),
+                    millis(histogram, 90),
+                    millis(histogram, 99),
+                    millis(histogram, 99.9),
+                    millis(histogram, 99.99),
+                    histogram.getMaxValue() / MICROS_PER_MILLI,
+                    Base64.getEncoder().encodeToString(
+                            Arrays.copyOf(buffer.array(), length)));
+        }
+
+        private static double millis(Histogram histogram, double percentile) {
+            return histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI;
+        }
+    }
+
+    /**
+     * @param processCpuCores the cpu of the whole jvm (service, driver and iam), in cores
+     * @param cpuCores the cpu by thread group, in cores
+     * @param allocationRate the allocated bytes per second by thread group
+     * @param serviceAllocationPerRequest the bytes allocated by the service threads per request
+     */
+    public record Resources(
+            double processCpuCores,
+            Map<String, Double> cpuCores,
+            Map<String, Long> allocationRate,
+            long serviceAllocationPerRequest,
+            long gcCount,
+            long gcMillis) {}
+}
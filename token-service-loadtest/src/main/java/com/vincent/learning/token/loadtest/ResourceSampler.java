@@ -0,0 +1,113 @@
+package com.vincent.learning.token.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * The cpu time and the allocated bytes of the threads between two samples. The service, the
+ * driver and the IAM simulator run in the same jvm, the threads are grouped by name so the
+ * figures of the service are not inflated by the load test itself. A thread which ends between
+ * the samples is not accounted, the event loops and the schedulers live for the whole run.
+ */
+public class ResourceSampler {
+
+    static final String SERVICE = "service";
+    static final String DRIVER = "driver";
+    static final String IAM = "iam";
+    static final String IAM_THREAD_PREFIX = "iam-simulator";
+
+    public record Usage(long cpuNanos, long allocatedBytes) {}
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private Map<Long, Usage> startByThread;
+    private long startProcessCpu;
+    private long startGcCount;
+    private long startGcMillis;
+
+    public ResourceSampler() {
+        threads.setThreadAllocatedMemoryEnabled(true);
+        threads.setThreadCpuTimeEnabled(true);
+    }
+
+    public void start() {
+        startByThread = sampleThreads(new HashMap<>());
+        startProcessCpu = os.getProcessCpuTime();
+        startGcCount = sumCollectors(GarbageCollectorMXBean::getCollectionCount);
+        startGcMillis = sumCollectors(GarbageCollectorMXBean::getCollectionTime);
+    }
+
+    /** the usage of every group since the start. */
+    public Map<String, Usage> usageByGroup() {
+        Map<Long, String> groups = new HashMap<>();
+        Map<Long, Usage> current = sampleThreads(groups);
+        Map<String, Usage> result = new TreeMap<>();
+        current.forEach(
+                (id, usage) -> {
+                    Usage start = startByThread.getOrDefault(id, new Usage(0, 0));
+                    Usage delta =
+                            new Usage(
+                                    usage.cpuNanos() - start.cpuNanos(),
+                                    usage.allocatedBytes() - start.allocatedBytes());
+                    result.merge(
+                            groups.get(id),
+                            delta,
+                            (a, b) ->
+                                    new Usage(
+                                            a.cpuNanos() + b.cpuNanos(),
+                                            a.allocatedBytes() + b.allocatedBytes()));
+                });
+        return result;
+    }
+
+    public long processCpuNanos() {
+        return os.getProcessCpuTime() - startProcessCpu;
+    }
+
+    public long gcCount() {
+        return sumCollectors(GarbageCollectorMXBean::getCollectionCount) - startGcCount;
+    }
+
+    public long gcMillis() {
+        return sumCollectors(GarbageCollectorMXBean::getCollectionTime) - startGcMillis;
+    }
+
+    private Map<Long, Usage> sampleThreads(Map<Long, String> groups) {
+        Map<Long, Usage> usage = new HashMap<>();
+        long[] ids = threads.getAllThreadIds();
+        long[] cpu = threads.getThreadCpuTime(ids);
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            ThreadInfo info = threads.getThreadInfo(ids[i]);
+            // -1 when the thread ended in the meantime
+            if (info == null || cpu[i] < 0 || allocated[i] < 0) {
+                continue;
+            }
+            usage.put(ids[i], new Usage(cpu[i], allocated[i]));
+            groups.put(ids[i], group(info.getThreadName()));
+        }
+        return usage;
+    }
+
+    private static String group(String threadName) {
+        if (threadName.startsWith(LoadGenerator.THREAD_PREFIX)) {
+            return DRIVER;
+        }
+        if (threadName.startsWith(IAM_THREAD_PREFIX)) {
+            return IAM;
+        }
+        return SERVICE;
+    }
+
+    private static long sumCollectors(ToLongFunction<GarbageCollectorMXBean> value) {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(value).sum();
+    }
+}